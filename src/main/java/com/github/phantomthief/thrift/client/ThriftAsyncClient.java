@@ -0,0 +1,61 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClient;
+
+/**
+ * <p>ThriftAsyncClient interface.</p>
+ * <p>The counterpart of {@link ThriftClient} over non-blocking transports, a call doesn't
+ * occupy the caller thread while waiting for the response.</p>
+ *
+ * <pre>{@code
+ * CompletableFuture<String> future = asyncClient.asyncIface(AsyncClient.class,
+ *         (client, callback) -> client.echo("hello", callback), echo_call::getResult);
+ * }</pre>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public interface ThriftAsyncClient {
+
+    /**
+     * <p>asyncIface.</p>
+     *
+     * @param ifaceClass the {@link java.lang.Class} of the TAsyncClient.
+     * @param call starts the method call on the client with the given callback.
+     * @param result gets the result from the finished method call.
+     * @return a {@link java.util.concurrent.CompletableFuture} of the result.
+     */
+    <X extends TAsyncClient, C, R> CompletableFuture<R> asyncIface(Class<X> ifaceClass,
+            AsyncCall<X, C> call, AsyncResult<C, R> result);
+
+    /**
+     * <p>asyncIface.</p>
+     *
+     * @param ifaceClass the {@link java.lang.Class} of the TAsyncClient.
+     * @param call starts the method call on the client with the given callback.
+     * @param result gets the result from the finished method call.
+     * @param hash a int.
+     * @return a {@link java.util.concurrent.CompletableFuture} of the result.
+     */
+    <X extends TAsyncClient, C, R> CompletableFuture<R> asyncIface(Class<X> ifaceClass,
+            AsyncCall<X, C> call, AsyncResult<C, R> result, int hash);
+
+    @FunctionalInterface
+    interface AsyncCall<X, C> {
+
+        void call(X client, AsyncMethodCallback<C> callback) throws TException;
+    }
+
+    @FunctionalInterface
+    interface AsyncResult<C, R> {
+
+        R get(C methodCall) throws TException;
+    }
+}
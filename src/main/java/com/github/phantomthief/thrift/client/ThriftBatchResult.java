@@ -0,0 +1,125 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>ThriftBatchResult class.</p>
+ * <p>Results of {@link ThriftClient#invokeAll}, in the order of the keys. A key fails alone,
+ * its failure is kept instead of failing the whole batch.</p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public final class ThriftBatchResult<K, R> {
+
+    private final List<K> keys;
+
+    private final Object[] results;
+
+    private final Throwable[] failures;
+
+    /**
+     * @param keys the keys called.
+     * @param results result of each key, at the index of the key.
+     * @param failures failure of each key, {@code null} for the keys succeeded.
+     */
+    public ThriftBatchResult(List<K> keys, Object[] results, Throwable[] failures) {
+        this.keys = keys;
+        this.results = results;
+        this.failures = failures;
+    }
+
+    /**
+     * calls the keys one after another by the client, see the default of
+     * {@link ThriftClient#invokeAll}.
+     */
+    static <X, K, R> ThriftBatchResult<K, R> callOneByOne(X client,
+            ThriftClient.BatchCall<X, K, R> call, Collection<K> keys) {
+        List<K> keyList = new ArrayList<>(keys);
+        Object[] results = new Object[keyList.size()];
+        Throwable[] failures = new Throwable[keyList.size()];
+        for (int i = 0; i < keyList.size(); i++) {
+            try {
+                results[i] = call.call(client, keyList.get(i));
+            } catch (Throwable e) {
+                failures[i] = e;
+            }
+        }
+        return new ThriftBatchResult<>(keyList, results, failures);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public K getKey(int index) {
+        return keys.get(index);
+    }
+
+    public boolean isSuccess(int index) {
+        return failures[index] == null;
+    }
+
+    /**
+     * @return the result of the key at the index, {@code null} if it failed.
+     */
+    @SuppressWarnings("unchecked")
+    public R get(int index) {
+        return (R) results[index];
+    }
+
+    /**
+     * @return the failure of the key at the index, {@code null} if it succeeded.
+     */
+    public Throwable getFailure(int index) {
+        return failures[index];
+    }
+
+    /**
+     * @return results of the keys succeeded, in the order of the keys.
+     */
+    public Map<K, R> getResults() {
+        Map<K, R> map = new LinkedHashMap<>();
+        for (int i = 0; i < results.length; i++) {
+            if (failures[i] == null) {
+                map.put(keys.get(i), get(i));
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @return failures of the keys failed, in the order of the keys.
+     */
+    public Map<K, Throwable> getFailures() {
+        Map<K, Throwable> map = new LinkedHashMap<>();
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] != null) {
+                map.put(keys.get(i), failures[i]);
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    public boolean hasFailure() {
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "ThriftBatchResult [results=" + getResults() + ", failures=" + getFailures() + "]";
+    }
+}
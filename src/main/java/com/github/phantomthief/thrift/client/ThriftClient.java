@@ -3,12 +3,18 @@
  */
 package com.github.phantomthief.thrift.client;
 
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
+import org.apache.thrift.TException;
 import org.apache.thrift.TServiceClient;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TTransport;
 
+import com.github.phantomthief.thrift.client.utils.ThriftClientUtils;
+
 /**
  * <p>ThriftClient interface.</p>
  *
@@ -34,6 +40,24 @@ public interface ThriftClient {
      */
     <X extends TServiceClient> X iface(Class<X> ifaceClass, int hash);
 
+    /**
+     * <p>iface.</p>
+     * <p>The same iface is returned for the same timeout, each method call must finish in the
+     * timeout (the borrowing included), or a
+     * {@link com.github.phantomthief.thrift.client.exception.DeadlineExceededException} is
+     * thrown. A {@link ThriftDeadline} of the caller thread earlier than it wins.</p>
+     * <p>The default isn't supported, an implementation can't be told to time out.</p>
+     *
+     * @param ifaceClass a {@link java.lang.Class} object.
+     * @param timeout the timeout of each method call.
+     * @param unit the unit of the timeout.
+     * @return a X object.
+     */
+    default <X extends TServiceClient> X iface(Class<X> ifaceClass, long timeout,
+            TimeUnit unit) {
+        throw new UnsupportedOperationException("timeout isn't supported by " + getClass());
+    }
+
     /**
      * <p>iface.</p>
      *
@@ -45,6 +69,22 @@ public interface ThriftClient {
     <X extends TServiceClient> X iface(Class<X> ifaceClass,
             Function<TTransport, TProtocol> protocolProvider, int hash);
 
+    /**
+     * <p>iface.</p>
+     * <p>The same iface is returned for the same arguments, it borrows a connection for each
+     * method call, so it's thread safe and could be kept in a field.</p>
+     * <p>The default isn't supported.</p>
+     *
+     * @param ifaceClass a {@link java.lang.Class} object.
+     * @param protocolProvider a {@link java.util.function.Function} object.
+     * @param hashStrategy calculates the hash from the arguments of each method call.
+     * @return a X object.
+     */
+    default <X extends TServiceClient> X iface(Class<X> ifaceClass,
+            Function<TTransport, TProtocol> protocolProvider, ToIntFunction<Object[]> hashStrategy) {
+        throw new UnsupportedOperationException("hashStrategy isn't supported by " + getClass());
+    }
+
     /**
      * <p>mpiface.</p>
      *
@@ -76,4 +116,90 @@ public interface ThriftClient {
     public <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName,
             Function<TTransport, TProtocol> protocolProvider, int hash);
 
+    /**
+     * <p>mpiface.</p>
+     * <p>The same iface is returned for the same arguments, it borrows a connection for each
+     * method call, so it's thread safe and could be kept in a field.</p>
+     * <p>The default isn't supported.</p>
+     *
+     * @param ifaceClass the {@link java.lang.Class} of the TServiceClient.
+     * @param serviceName the {@link java.lang.String} name of the service.
+     * @param protocolProvider a {@link java.util.function.Function} object.
+     * @param hashStrategy calculates the hash from the arguments of each method call.
+     * @return a X object.
+     */
+    public default <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName,
+            Function<TTransport, TProtocol> protocolProvider, ToIntFunction<Object[]> hashStrategy) {
+        throw new UnsupportedOperationException("hashStrategy isn't supported by " + getClass());
+    }
+
+    /**
+     * <p>invokeAll.</p>
+     * <p>Calls a method for each key, with at most {@code parallelism} calls in flight. Each
+     * in-flight slot borrows a connection and calls the keys it takes one after another over
+     * it, the slots spread over the servers. A key failed doesn't fail the others.</p>
+     * <p>The default calls the keys one after another by an iface.</p>
+     *
+     * <pre>{@code
+     * ThriftBatchResult<String, String> result = client.invokeAll(Client.class,
+     *         Client::echo, keys, 16);
+     * }</pre>
+     *
+     * @param ifaceClass the {@link java.lang.Class} of the TServiceClient.
+     * @param call calls the method for a key.
+     * @param keys the keys to call.
+     * @param parallelism max calls in flight.
+     * @return results and failures in the order of the keys.
+     */
+    default <X extends TServiceClient, K, R> ThriftBatchResult<K, R> invokeAll(
+            Class<X> ifaceClass, BatchCall<X, K, R> call, Collection<K> keys, int parallelism) {
+        return ThriftBatchResult.callOneByOne(iface(ifaceClass), call, keys);
+    }
+
+    /**
+     * <p>invokeAll.</p>
+     * <p>Like {@link #invokeAll(Class, BatchCall, Collection, int)}, by the given protocol.</p>
+     * <p>The default calls the keys one after another by an iface.</p>
+     *
+     * @param ifaceClass the {@link java.lang.Class} of the TServiceClient.
+     * @param protocolProvider a {@link java.util.function.Function} object.
+     * @param call calls the method for a key.
+     * @param keys the keys to call.
+     * @param parallelism max calls in flight.
+     * @return results and failures in the order of the keys.
+     */
+    default <X extends TServiceClient, K, R> ThriftBatchResult<K, R> invokeAll(
+            Class<X> ifaceClass, Function<TTransport, TProtocol> protocolProvider,
+            BatchCall<X, K, R> call, Collection<K> keys, int parallelism) {
+        return ThriftBatchResult.callOneByOne(iface(ifaceClass, protocolProvider,
+                ThriftClientUtils.randomNextInt()), call, keys);
+    }
+
+    /**
+     * <p>invokeAll.</p>
+     * <p>Like {@link #invokeAll(Class, BatchCall, Collection, int)}, to a service of a
+     * Multiplexed Server by the given protocol.</p>
+     * <p>The default calls the keys one after another by an iface.</p>
+     *
+     * @param ifaceClass the {@link java.lang.Class} of the TServiceClient.
+     * @param serviceName the {@link java.lang.String} name of the service.
+     * @param protocolProvider a {@link java.util.function.Function} object.
+     * @param call calls the method for a key.
+     * @param keys the keys to call.
+     * @param parallelism max calls in flight.
+     * @return results and failures in the order of the keys.
+     */
+    default <X extends TServiceClient, K, R> ThriftBatchResult<K, R> invokeAll(
+            Class<X> ifaceClass, String serviceName,
+            Function<TTransport, TProtocol> protocolProvider, BatchCall<X, K, R> call,
+            Collection<K> keys, int parallelism) {
+        return ThriftBatchResult.callOneByOne(mpiface(ifaceClass, serviceName, protocolProvider,
+                ThriftClientUtils.randomNextInt()), call, keys);
+    }
+
+    @FunctionalInterface
+    interface BatchCall<X, K, R> {
+
+        R call(X client, K key) throws TException;
+    }
 }
@@ -0,0 +1,85 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>ThriftDeadline class.</p>
+ * <p>A deadline of the calls made by the current thread in a scope, the time left is the
+ * socket timeout of each call, the borrowing time included.</p>
+ *
+ * <pre>{@code
+ * try (ThriftDeadline deadline = ThriftDeadline.within(100, TimeUnit.MILLISECONDS)) {
+ *     iface.echo("hello");
+ * }
+ * }</pre>
+ *
+ * <p>A nested scope could only shorten the deadline, the outer one is restored on close.</p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public final class ThriftDeadline implements AutoCloseable {
+
+    private static final ThreadLocal<ThriftDeadline> CURRENT = new ThreadLocal<>();
+
+    private final long deadlineNanos;
+
+    private final ThriftDeadline previous;
+
+    private ThriftDeadline(long deadlineNanos, ThriftDeadline previous) {
+        this.deadlineNanos = deadlineNanos;
+        this.previous = previous;
+    }
+
+    /**
+     * starts a scope, the calls made by the current thread until it's closed must finish in
+     * the timeout.
+     */
+    public static ThriftDeadline within(long timeout, TimeUnit unit) {
+        ThriftDeadline previous = CURRENT.get();
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        if (previous != null && previous.deadlineNanos - deadlineNanos < 0) {
+            deadlineNanos = previous.deadlineNanos;
+        }
+        ThriftDeadline deadline = new ThriftDeadline(deadlineNanos, previous);
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * @return the deadline of the current thread, {@code null} if it's not in a scope.
+     */
+    public static ThriftDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the deadline in {@link System#nanoTime()}.
+     */
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+
+    /**
+     * ends the scope, the outer deadline is restored.
+     */
+    @Override
+    public void close() {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+}
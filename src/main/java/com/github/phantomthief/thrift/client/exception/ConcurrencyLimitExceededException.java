@@ -0,0 +1,27 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.exception;
+
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * <p>
+ * ConcurrencyLimitExceededException class.
+ * </p>
+ * <p>
+ * The call is rejected at once as every server is at its concurrency limit, it's a
+ * {@link TTransportException} so it's thrown by the iface methods as is.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class ConcurrencyLimitExceededException extends TTransportException {
+
+    private static final long serialVersionUID = 2911384203713945716L;
+
+    public ConcurrencyLimitExceededException(String message) {
+        super(UNKNOWN, message);
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.exception;
+
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * <p>
+ * DeadlineExceededException class.
+ * </p>
+ * <p>
+ * The call didn't finish before its deadline, it's a {@link TTransportException} so it's
+ * thrown by the iface methods as is.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class DeadlineExceededException extends TTransportException {
+
+    private static final long serialVersionUID = -4391651842563185830L;
+
+    public DeadlineExceededException(String message) {
+        super(TIMED_OUT, message);
+    }
+
+    public DeadlineExceededException(String message, Throwable cause) {
+        super(TIMED_OUT, message, cause);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>
+ * CircuitBreakerPolicy class.
+ * </p>
+ * <p>
+ * A circuit breaker per server of {@link ThriftClientImpl}: it opens after the server failed
+ * {@code failureThreshold} calls (or borrows) in a row and no call goes to it, after
+ * {@code openMillis} it's half-open and lets {@code halfOpenTrials} calls through, it closes
+ * when they all succeed or opens again when one fails.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class CircuitBreakerPolicy {
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private final int halfOpenTrials;
+
+    /**
+     * <p>
+     * Constructor for CircuitBreakerPolicy.
+     * </p>
+     *
+     * @param failureThreshold failures in a row to open the circuit.
+     * @param openMillis how long the circuit stays open before the trials.
+     * @param halfOpenTrials calls let through when half-open, all must succeed to close.
+     */
+    public CircuitBreakerPolicy(int failureThreshold, long openMillis, int halfOpenTrials) {
+        checkArgument(failureThreshold > 0, "failureThreshold must be positive.");
+        checkArgument(openMillis > 0, "openMillis must be positive.");
+        checkArgument(halfOpenTrials > 0, "halfOpenTrials must be positive.");
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenTrials = halfOpenTrials;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    public int getHalfOpenTrials() {
+        return halfOpenTrials;
+    }
+}
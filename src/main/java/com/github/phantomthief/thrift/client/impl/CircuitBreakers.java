@@ -0,0 +1,230 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+
+/**
+ * the circuit breakers of the servers by a {@link CircuitBreakerPolicy}. A breaker is created
+ * on the first failure of a server, so the healthy servers cost a map lookup. The state is an
+ * immutable phase swapped by CAS, the counters of the phase are atomics, so nothing locks.
+ *
+ * @author w.vela
+ */
+final class CircuitBreakers {
+
+    private static final Logger logger = getLogger(CircuitBreakers.class);
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Phase CLOSED = new Phase(State.CLOSED, 0, 0);
+
+    /** the token of a call let through without a trial. */
+    static final Object NO_TRIAL = new Object();
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private final int halfOpenTrials;
+
+    private final ConcurrentMap<ThriftServerInfo, Breaker> breakers = new ConcurrentHashMap<>();
+
+    CircuitBreakers(CircuitBreakerPolicy policy) {
+        this.failureThreshold = policy.getFailureThreshold();
+        this.openNanos = MILLISECONDS.toNanos(policy.getOpenMillis());
+        this.halfOpenTrials = policy.getHalfOpenTrials();
+    }
+
+    /**
+     * @return {@code null} if no call should go to the server now, otherwise the token of the
+     *         call for {@link #onSuccess}: a trial is taken if it's half-open, so only ask for
+     *         the server going to be called.
+     */
+    Object allow(ThriftServerInfo server) {
+        Breaker breaker = breakers.get(server);
+        return breaker == null ? NO_TRIAL : breaker.allow();
+    }
+
+    /**
+     * @return false if no call should go to the server now, like {@link #allow} but no trial
+     *         is taken.
+     */
+    boolean isAllowing(ThriftServerInfo server) {
+        Breaker breaker = breakers.get(server);
+        return breaker == null || breaker.isAllowing();
+    }
+
+    /**
+     * @param trial the token of the call given by {@link #allow}, only a trial of the current
+     *        half-open phase counts for closing, not a call let through before it opened.
+     */
+    void onSuccess(ThriftServerInfo server, Object trial) {
+        Breaker breaker = breakers.get(server);
+        if (breaker != null) {
+            breaker.onSuccess(trial);
+        }
+    }
+
+    /**
+     * gives back the trial of a call which wasn't made, so it doesn't wait to be given again.
+     *
+     * @param trial the token of the call given by {@link #allow}.
+     */
+    void giveBack(ThriftServerInfo server, Object trial) {
+        Breaker breaker = breakers.get(server);
+        if (breaker != null) {
+            breaker.giveBack(trial);
+        }
+    }
+
+    void onFailure(ThriftServerInfo server) {
+        Breaker breaker = breakers.get(server);
+        if (breaker == null) {
+            breaker = breakers.computeIfAbsent(server, Breaker::new);
+        }
+        breaker.onFailure();
+    }
+
+    State getState(ThriftServerInfo server) {
+        Breaker breaker = breakers.get(server);
+        return breaker == null ? State.CLOSED : breaker.phase.get().state;
+    }
+
+    private final class Breaker {
+
+        private final ThriftServerInfo server;
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private final AtomicReference<Phase> phase = new AtomicReference<>(CLOSED);
+
+        private Breaker(ThriftServerInfo server) {
+            this.server = server;
+        }
+
+        private Object allow() {
+            while (true) {
+                Phase current = phase.get();
+                switch (current.state) {
+                    case CLOSED:
+                        return NO_TRIAL;
+                    case OPEN:
+                        if (System.nanoTime() - current.sinceNanos < openNanos) {
+                            return null;
+                        }
+                        if (phase.compareAndSet(current, halfOpen())) {
+                            logger.info("circuit of {} is half-open.", server);
+                        }
+                        break;
+                    default:
+                        if (current.takeTrial()) {
+                            return current;
+                        }
+                        // a trial which never reports (the call wasn't made) mustn't keep it
+                        // half-open forever, so the trials are given again after a while.
+                        if (System.nanoTime() - current.sinceNanos < openNanos
+                                || !phase.compareAndSet(current, halfOpen())) {
+                            return null;
+                        }
+                }
+            }
+        }
+
+        private boolean isAllowing() {
+            Phase current = phase.get();
+            switch (current.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    return System.nanoTime() - current.sinceNanos >= openNanos;
+                default:
+                    return current.trials.get() > 0
+                            || System.nanoTime() - current.sinceNanos >= openNanos;
+            }
+        }
+
+        private void onSuccess(Object trial) {
+            Phase current = phase.get();
+            if (current.state == State.CLOSED) {
+                if (failures.get() != 0) {
+                    failures.set(0);
+                }
+            } else if (current.state == State.HALF_OPEN && trial == current
+                    && current.successes.incrementAndGet() >= halfOpenTrials
+                    && phase.compareAndSet(current, CLOSED)) {
+                failures.set(0);
+                logger.info("circuit of {} is closed.", server);
+            }
+        }
+
+        private void giveBack(Object trial) {
+            Phase current = phase.get();
+            if (current.state == State.HALF_OPEN && trial == current) {
+                current.trials.incrementAndGet();
+            }
+        }
+
+        private void onFailure() {
+            Phase current = phase.get();
+            if (current.state == State.CLOSED) {
+                if (failures.incrementAndGet() >= failureThreshold
+                        && phase.compareAndSet(current, open())) {
+                    logger.warn("circuit of {} is open after {} failures.", server,
+                            failureThreshold);
+                }
+            } else if (current.state == State.HALF_OPEN
+                    && phase.compareAndSet(current, open())) {
+                logger.warn("circuit of {} is open again, a trial failed.", server);
+            }
+        }
+
+        private Phase open() {
+            return new Phase(State.OPEN, System.nanoTime(), 0);
+        }
+
+        private Phase halfOpen() {
+            return new Phase(State.HALF_OPEN, System.nanoTime(), halfOpenTrials);
+        }
+    }
+
+    private static final class Phase {
+
+        private final State state;
+
+        private final long sinceNanos;
+
+        private final AtomicInteger trials;
+
+        private final AtomicInteger successes = new AtomicInteger();
+
+        private Phase(State state, long sinceNanos, int trials) {
+            this.state = state;
+            this.sinceNanos = sinceNanos;
+            this.trials = new AtomicInteger(trials);
+        }
+
+        private boolean takeTrial() {
+            int left;
+            while ((left = trials.get()) > 0) {
+                if (trials.compareAndSet(left, left - 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.thrift.transport.TTransportException;
+
+import com.github.phantomthief.thrift.client.exception.DeadlineExceededException;
+import com.github.phantomthief.thrift.client.impl.MethodCodec.Key;
+import com.github.phantomthief.thrift.client.metrics.ThriftClientMetrics;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * coalesces the equal calls in flight of a {@link ThriftClientImpl} ("single flight"): the
+ * first caller of a {@link Key} calls the server, the callers coming while it's in flight wait
+ * for its outcome instead of borrowing their own connections.
+ * <p>
+ * The call is unregistered before it's completed, so a caller after that makes a new call.
+ * The waiters get the same exception as the caller, or a copy of its result each (by the
+ * {@link MethodCodec}), so nobody shares a mutable struct. The result is serialized once by
+ * the caller before it's published, so the waiters only deserialize it, without a lock, and
+ * never see it changed by the caller. A waiter waits only until its own
+ * deadline, and calls the server itself if the call failed by the deadline of its caller
+ * while it still has time.
+ * </p>
+ *
+ * @author w.vela
+ */
+final class Coalescer {
+
+    private final Set<String> methods;
+
+    private final ThriftClientMetrics metrics;
+
+    private final ConcurrentMap<Key, CompletableFuture<Outcome>> inFlight = new ConcurrentHashMap<>();
+
+    Coalescer(Set<String> methods, ThriftClientMetrics metrics) {
+        this.methods = ImmutableSet.copyOf(methods);
+        this.metrics = metrics;
+    }
+
+    boolean isCoalesced(String method) {
+        return methods.contains(method);
+    }
+
+    /**
+     * @param serviceName the service of a multiplexed iface, {@code null} for a plain one.
+     * @param deadline of the caller in {@link System#nanoTime()},
+     *        {@link ThriftClientImpl#NO_DEADLINE} if there is none.
+     * @param call calls the server.
+     */
+    Object call(String serviceName, Method method, Object[] args, long deadline, IfaceCall call)
+            throws Throwable {
+        MethodCodec codec = MethodCodec.of(method);
+        if (codec == null) {
+            return call.call();
+        }
+        Key key = codec.key(serviceName, args);
+        while (true) {
+            CompletableFuture<Outcome> existing = inFlight.get(key);
+            if (existing == null) {
+                CompletableFuture<Outcome> flight = new CompletableFuture<>();
+                existing = inFlight.putIfAbsent(key, flight);
+                if (existing == null) {
+                    return lead(key, flight, codec, call);
+                }
+            }
+            metrics.onCoalesced(key.getMethod());
+            Outcome outcome = await(existing, deadline, key);
+            if (outcome != null) {
+                return outcome.copy(codec);
+            }
+        }
+    }
+
+    private Object lead(Key key, CompletableFuture<Outcome> flight, MethodCodec codec,
+            IfaceCall call) throws Throwable {
+        Object result;
+        try {
+            result = call.call();
+        } catch (Throwable e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(key, flight);
+        try {
+            flight.complete(new Outcome(result == null ? null : codec.serializeResult(result)));
+        } catch (Exception e) {
+            // the caller has its result, only the waiters fail.
+            flight.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return {@code null} if the call failed by the deadline of its caller but the waiter
+     *         still has time, it should call again.
+     */
+    private static Outcome await(CompletableFuture<Outcome> flight, long deadline, Key key)
+            throws Throwable {
+        try {
+            if (deadline == ThriftClientImpl.NO_DEADLINE) {
+                return flight.get();
+            }
+            return flight.get(deadline - System.nanoTime(), NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("deadline exceeded in waiting for the same call"
+                    + " of " + key.getMethod());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TTransportException("interrupted in waiting for the same call of "
+                    + key.getMethod(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DeadlineExceededException
+                    && (deadline == ThriftClientImpl.NO_DEADLINE
+                            || deadline - System.nanoTime() > 0)) {
+                return null;
+            }
+            throw cause;
+        }
+    }
+
+    /**
+     * the result of a call, serialized once for all the waiters.
+     */
+    private static final class Outcome {
+
+        /** {@code null} for a {@code null} result. */
+        private final byte[] bytes;
+
+        private Outcome(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private Object copy(MethodCodec codec) throws Exception {
+            return bytes == null ? null : codec.deserializeResult(bytes);
+        }
+    }
+}
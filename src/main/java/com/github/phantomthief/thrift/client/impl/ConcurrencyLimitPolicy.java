@@ -0,0 +1,86 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>
+ * ConcurrencyLimitPolicy class.
+ * </p>
+ * <p>
+ * An adaptive limit of the calls in flight to each server of {@link ThriftClientImpl}. The
+ * limit follows the latency: it grows while the recent latency stays within
+ * {@code rttTolerance} times the fastest recent calls and shrinks as it goes beyond, or when
+ * a call fails. A call over the limit goes to another server, or it's rejected at once by a
+ * {@link com.github.phantomthief.thrift.client.exception.ConcurrencyLimitExceededException}.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class ConcurrencyLimitPolicy {
+
+    private static final double DEFAULT_RTT_TOLERANCE = 1.5;
+
+    private final int initialLimit;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double rttTolerance;
+
+    /**
+     * <p>
+     * Constructor for ConcurrencyLimitPolicy.
+     * </p>
+     *
+     * @param initialLimit the limit of a server before its latency is known.
+     * @param minLimit the limit never goes below it.
+     * @param maxLimit the limit never goes beyond it.
+     */
+    public ConcurrencyLimitPolicy(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, DEFAULT_RTT_TOLERANCE);
+    }
+
+    /**
+     * <p>
+     * Constructor for ConcurrencyLimitPolicy.
+     * </p>
+     *
+     * @param initialLimit the limit of a server before its latency is known.
+     * @param minLimit the limit never goes below it.
+     * @param maxLimit the limit never goes beyond it.
+     * @param rttTolerance how much slower than usual the calls could be before the limit
+     *        shrinks, at least 1.
+     */
+    public ConcurrencyLimitPolicy(int initialLimit, int minLimit, int maxLimit,
+            double rttTolerance) {
+        checkArgument(minLimit > 0, "minLimit must be positive.");
+        checkArgument(minLimit <= initialLimit && initialLimit <= maxLimit,
+                "initialLimit must be between minLimit and maxLimit.");
+        checkArgument(rttTolerance >= 1, "rttTolerance must be at least 1.");
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.rttTolerance = rttTolerance;
+    }
+
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public double getRttTolerance() {
+        return rttTolerance;
+    }
+}
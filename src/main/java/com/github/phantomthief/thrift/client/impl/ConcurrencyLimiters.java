@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+
+/**
+ * the concurrency limits of the servers by a {@link ConcurrencyLimitPolicy}.
+ * <p>
+ * A gradient limit: the recent latency is a moving average of the successful calls and the
+ * baseline is the fastest call of the last {@value #RTT_WINDOW_SAMPLES}, the limit is scaled
+ * by {@code rttTolerance * minRtt / shortRtt} (capped to [0.5, 1]) plus a headroom of its
+ * square root, and smoothed. So it grows by the headroom while the calls are as fast as the
+ * server could be and shrinks as they queue up. A failed call cuts it by
+ * {@value #BACKOFF_RATIO} like AIMD. Taking a slot is a CAS on the in-flight count. The limit
+ * update after a call takes a {@link ReentrantLock} of its server (no monitor, which would pin
+ * a virtual thread), a successful call whose server is being updated by another one is
+ * dropped from the samples rather than waiting, a failed one waits so no backoff is lost.
+ * </p>
+ *
+ * @author w.vela
+ */
+final class ConcurrencyLimiters {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double SHORT_RTT_WEIGHT = 0.1;
+    private static final int RTT_WINDOW_SAMPLES = 1000;
+    private static final double SMOOTHING = 0.2;
+    private static final double MIN_GRADIENT = 0.5;
+
+    private final ConcurrencyLimitPolicy policy;
+
+    private final ConcurrentMap<ThriftServerInfo, Limiter> limiters = new ConcurrentHashMap<>();
+
+    ConcurrencyLimiters(ConcurrencyLimitPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @return false if the server is at its limit, otherwise a slot is taken and it must be
+     *         given back by {@link #release}.
+     */
+    boolean tryAcquire(ThriftServerInfo server) {
+        return limiter(server).tryAcquire();
+    }
+
+    void release(ThriftServerInfo server) {
+        limiter(server).inFlight.decrementAndGet();
+    }
+
+    /**
+     * updates the limit by a call made in a slot taken.
+     */
+    void onSample(ThriftServerInfo server, long rttNanos, boolean success) {
+        limiter(server).onSample(rttNanos, success);
+    }
+
+    boolean isLimited(ThriftServerInfo server) {
+        Limiter limiter = limiters.get(server);
+        return limiter != null && limiter.inFlight.get() >= limiter.limit;
+    }
+
+    private Limiter limiter(ThriftServerInfo server) {
+        Limiter limiter = limiters.get(server);
+        if (limiter == null) {
+            limiter = limiters.computeIfAbsent(server, s -> new Limiter());
+        }
+        return limiter;
+    }
+
+    private final class Limiter {
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private volatile int limit = policy.getInitialLimit();
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // guarded by lock
+        private double estimatedLimit = limit;
+
+        private double shortRtt;
+
+        private long baselineRtt = Long.MAX_VALUE;
+
+        private long windowMinRtt = Long.MAX_VALUE;
+
+        private int windowSamples;
+
+        private boolean tryAcquire() {
+            int current;
+            while ((current = inFlight.get()) < limit) {
+                if (inFlight.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void onSample(long rttNanos, boolean success) {
+            if (!success) {
+                lock.lock();
+                try {
+                    update(estimatedLimit * BACKOFF_RATIO);
+                } finally {
+                    lock.unlock();
+                }
+            } else if (lock.tryLock()) {
+                try {
+                    onSuccess(rttNanos);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private void onSuccess(long rttNanos) {
+            rttNanos = Math.max(1, rttNanos);
+            shortRtt = shortRtt == 0 ? rttNanos : shortRtt + (rttNanos - shortRtt)
+                    * SHORT_RTT_WEIGHT;
+            windowMinRtt = Math.min(windowMinRtt, rttNanos);
+            if (++windowSamples >= RTT_WINDOW_SAMPLES) {
+                // the server could get faster or slower for good, so the baseline is the
+                // fastest call of the last window, not of all time.
+                baselineRtt = windowMinRtt;
+                windowMinRtt = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+            long minRtt = Math.min(baselineRtt, windowMinRtt);
+            // a server far from its limit tells nothing about a higher one.
+            if (inFlight.get() < estimatedLimit / 2) {
+                return;
+            }
+            double gradient = Math.max(MIN_GRADIENT,
+                    Math.min(1, policy.getRttTolerance() * minRtt / shortRtt));
+            double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            update(estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING);
+        }
+
+        private void update(double newLimit) {
+            estimatedLimit = Math.max(policy.getMinLimit(),
+                    Math.min(policy.getMaxLimit(), newLimit));
+            limit = (int) estimatedLimit;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import java.lang.reflect.Constructor;
+import java.util.Objects;
+import java.util.function.Function;
+
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TTransport;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * the client instances of a {@link ThriftClientImpl} bound to the pooled connections, so a
+ * call on a connection used before takes its client (and the protocols under it) as is.
+ * <p>
+ * A client is bound to the connection by its class, the protocol provider (by identity, the
+ * ifaces keep theirs) and the service name of a multiplexed iface. A connection is only used
+ * by its borrower, and handed over by the pool, so the bindings of a connection need no
+ * lock. A connection failed in a call is returned as broken and never borrowed again, so a
+ * bound client never sees a protocol left in the middle of a message. The connections are
+ * weakly referenced, the ones closed by the pool go with their clients.
+ * </p>
+ *
+ * @author w.vela
+ */
+final class ConnectionClients {
+
+    /** the clients bound to a connection at most, the oldest is replaced then. */
+    private static final int MAX_BINDINGS = 8;
+
+    private final boolean reusingConnections;
+
+    private final Cache<TTransport, Bindings> bindings = CacheBuilder.newBuilder() //
+            .weakKeys() //
+            .build();
+
+    /**
+     * @param reusingConnections false if each borrowing gets a new transport, nothing is
+     *        bound then.
+     */
+    ConnectionClients(boolean reusingConnections) {
+        this.reusingConnections = reusingConnections;
+    }
+
+    /**
+     * @param serviceName the service of a multiplexed iface, {@code null} for a plain one.
+     * @return the client bound to the connection, a new one is bound if there is none.
+     */
+    TServiceClient get(TTransport transport,
+            Constructor<? extends TServiceClient> clientConstructor,
+            Function<TTransport, TProtocol> protocolProvider, String serviceName)
+            throws ReflectiveOperationException {
+        if (!reusingConnections) {
+            return newClient(transport, clientConstructor, protocolProvider, serviceName);
+        }
+        Bindings connectionBindings = bindings.getIfPresent(transport);
+        if (connectionBindings == null) {
+            connectionBindings = new Bindings();
+            bindings.put(transport, connectionBindings);
+        }
+        return connectionBindings.get(transport, clientConstructor, protocolProvider,
+                serviceName);
+    }
+
+    private static TServiceClient newClient(TTransport transport,
+            Constructor<? extends TServiceClient> clientConstructor,
+            Function<TTransport, TProtocol> protocolProvider, String serviceName)
+            throws ReflectiveOperationException {
+        TProtocol protocol = protocolProvider.apply(transport);
+        if (serviceName != null) {
+            protocol = new TMultiplexedProtocol(protocol, serviceName);
+        }
+        return clientConstructor.newInstance(protocol);
+    }
+
+    /**
+     * the clients bound to a connection, only touched by its borrower.
+     */
+    private static final class Bindings {
+
+        private final Constructor<?>[] clientConstructors = new Constructor<?>[MAX_BINDINGS];
+
+        private final Object[] protocolProviders = new Object[MAX_BINDINGS];
+
+        private final String[] serviceNames = new String[MAX_BINDINGS];
+
+        private final TServiceClient[] clients = new TServiceClient[MAX_BINDINGS];
+
+        private int size;
+
+        private int next;
+
+        private TServiceClient get(TTransport transport,
+                Constructor<? extends TServiceClient> clientConstructor,
+                Function<TTransport, TProtocol> protocolProvider, String serviceName)
+                throws ReflectiveOperationException {
+            for (int i = 0; i < size; i++) {
+                if (clientConstructors[i] == clientConstructor
+                        && protocolProviders[i] == protocolProvider
+                        && Objects.equals(serviceNames[i], serviceName)) {
+                    return clients[i];
+                }
+            }
+            TServiceClient client = newClient(transport, clientConstructor, protocolProvider,
+                    serviceName);
+            int i;
+            if (size < MAX_BINDINGS) {
+                i = size++;
+            } else {
+                i = next;
+                next = (next + 1) % MAX_BINDINGS;
+            }
+            clientConstructors[i] = clientConstructor;
+            protocolProviders[i] = protocolProvider;
+            serviceNames[i] = serviceName;
+            clients[i] = client;
+            return client;
+        }
+    }
+}
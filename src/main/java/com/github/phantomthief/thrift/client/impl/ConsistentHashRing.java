@@ -0,0 +1,87 @@
+package com.github.phantomthief.thrift.client.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Immutable consistent hash ring, each server is placed on the ring by {@code virtualNodes}
+ * points. It's never modified after built, a membership change builds a new one.
+ */
+final class ConsistentHashRing {
+
+    static final ConsistentHashRing EMPTY = new ConsistentHashRing(new int[0],
+            new ThriftServerInfo[0]);
+
+    private static final HashFunction POINT_HASH = Hashing.murmur3_32();
+
+    private final int[] points;
+
+    private final ThriftServerInfo[] owners;
+
+    private ConsistentHashRing(int[] points, ThriftServerInfo[] owners) {
+        this.points = points;
+        this.owners = owners;
+    }
+
+    static ConsistentHashRing build(Collection<ThriftServerInfo> servers, int virtualNodes) {
+        if (servers.isEmpty()) {
+            return EMPTY;
+        }
+        ThriftServerInfo[] serverArray = servers.toArray(new ThriftServerInfo[servers.size()]);
+        // high 32 bits is the point, low 32 bits is the server index, so a collision is still ordered.
+        long[] sorted = new long[serverArray.length * virtualNodes];
+        int i = 0;
+        for (int serverIndex = 0; serverIndex < serverArray.length; serverIndex++) {
+            ThriftServerInfo server = serverArray[serverIndex];
+            for (int node = 0; node < virtualNodes; node++) {
+                int point = POINT_HASH.hashString(
+                        server.getHost() + ":" + server.getPort() + "#" + node, UTF_8).asInt();
+                sorted[i++] = ((long) point << 32) | serverIndex;
+            }
+        }
+        Arrays.sort(sorted);
+        int[] points = new int[sorted.length];
+        ThriftServerInfo[] owners = new ThriftServerInfo[sorted.length];
+        for (int j = 0; j < sorted.length; j++) {
+            points[j] = (int) (sorted[j] >> 32);
+            owners[j] = serverArray[(int) sorted[j]];
+        }
+        return new ConsistentHashRing(points, owners);
+    }
+
+    ThriftServerInfo get(int hash) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, mix(hash));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0;
+            }
+        }
+        return owners[index];
+    }
+
+    boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    /**
+     * murmur3 finalizer, spreads sequential hashes (like small ids) over the whole ring.
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
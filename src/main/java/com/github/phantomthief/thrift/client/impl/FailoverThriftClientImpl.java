@@ -3,28 +3,31 @@
  */
 package com.github.phantomthief.thrift.client.impl;
 
+import com.github.phantomthief.thrift.client.ThriftBatchResult;
 import com.github.phantomthief.thrift.client.ThriftClient;
 import com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider;
 import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
 import com.github.phantomthief.thrift.client.pool.impl.DefaultThriftConnectionPoolImpl;
 import com.github.phantomthief.thrift.client.utils.FailoverCheckingStrategy;
-import com.github.phantomthief.thrift.client.utils.ThriftClientUtils;
 import org.apache.thrift.TServiceClient;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TTransport;
 
-import java.util.List;
-import java.util.Set;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
-import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
-import static java.util.stream.Collectors.toList;
 
 /**
  * <p>
  * FailoverThriftClientImpl class.
  * </p>
+ * <p>
+ * The calls skip the servers failed by the {@link FailoverCheckingStrategy}, unless all of
+ * them are failed.
+ * </p>
  *
  * @author w.vela
  * @version $Id: $Id
@@ -64,9 +67,32 @@ public class FailoverThriftClientImpl implements ThriftClient {
             FailoverCheckingStrategy<ThriftServerInfo> failoverCheckingStrategy,
             ThriftServerInfoManager manager,
             ThriftConnectionPoolProvider poolProvider) {
+        this(failoverCheckingStrategy, manager, poolProvider, new ThriftClientConfig());
+    }
+
+    /**
+     * <p>
+     * Constructor for FailoverThriftClientImpl.
+     * </p>
+     *
+     * @param failoverCheckingStrategy a
+     *        {@link com.github.phantomthief.thrift.client.utils.FailoverCheckingStrategy}
+     *        object.
+     * @param manager a
+     *        object.
+     * @param poolProvider a
+     *        {@link com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider}
+     *        object.
+     * @param config optional features of the client.
+     */
+    public FailoverThriftClientImpl(
+            FailoverCheckingStrategy<ThriftServerInfo> failoverCheckingStrategy,
+            ThriftServerInfoManager manager, ThriftConnectionPoolProvider poolProvider,
+            ThriftClientConfig config) {
         FailoverStategy failoverStategy = new FailoverStategy( manager, poolProvider,
                 failoverCheckingStrategy);
-        this.thriftClient = new ThriftClientImpl(manager, failoverStategy);
+        this.thriftClient = new ThriftClientImpl(manager, failoverStategy, config,
+                failoverStategy.healthyServers);
     }
 
     /** {@inheritDoc} */
@@ -85,6 +111,12 @@ public class FailoverThriftClientImpl implements ThriftClient {
         return thriftClient.iface(ifaceClass, hash);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TServiceClient> X iface(Class<X> ifaceClass, long timeout, TimeUnit unit) {
+        return thriftClient.iface(ifaceClass, timeout, unit);
+    }
+
     /* (non-Javadoc)
      * @see com.github.phantomthief.thrift.client.ThriftClient#iface(java.lang.Class, int)
      */
@@ -96,10 +128,17 @@ public class FailoverThriftClientImpl implements ThriftClient {
         return thriftClient.iface(ifaceClass, protocolProvider, hash);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TServiceClient> X iface(Class<X> ifaceClass,
+            Function<TTransport, TProtocol> protocolProvider, ToIntFunction<Object[]> hashStrategy) {
+        return thriftClient.iface(ifaceClass, protocolProvider, hashStrategy);
+    }
+
     /** {@inheritDoc} */
     @Override
     public <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName) {
-        return thriftClient.mpiface(ifaceClass, serviceName, ThriftClientUtils.randomNextInt());
+        return thriftClient.mpiface(ifaceClass, serviceName);
     }
 
     /** {@inheritDoc} */
@@ -115,36 +154,56 @@ public class FailoverThriftClientImpl implements ThriftClient {
         return thriftClient.mpiface(ifaceClass, serviceName, protocolProvider, hash);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName,
+            Function<TTransport, TProtocol> protocolProvider, ToIntFunction<Object[]> hashStrategy) {
+        return thriftClient.mpiface(ifaceClass, serviceName, protocolProvider, hashStrategy);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TServiceClient, K, R> ThriftBatchResult<K, R> invokeAll(
+            Class<X> ifaceClass, BatchCall<X, K, R> call, Collection<K> keys, int parallelism) {
+        return thriftClient.invokeAll(ifaceClass, call, keys, parallelism);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TServiceClient, K, R> ThriftBatchResult<K, R> invokeAll(
+            Class<X> ifaceClass, Function<TTransport, TProtocol> protocolProvider,
+            BatchCall<X, K, R> call, Collection<K> keys, int parallelism) {
+        return thriftClient.invokeAll(ifaceClass, protocolProvider, call, keys, parallelism);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TServiceClient, K, R> ThriftBatchResult<K, R> invokeAll(
+            Class<X> ifaceClass, String serviceName,
+            Function<TTransport, TProtocol> protocolProvider, BatchCall<X, K, R> call,
+            Collection<K> keys, int parallelism) {
+        return thriftClient.invokeAll(ifaceClass, serviceName, protocolProvider, call, keys,
+                parallelism);
+    }
+
     /* (non-Javadoc)
      * @see com.github.phantomthief.thrift.client.ThriftClient#iface(java.lang.Class, java.util.function.Function, int)
      */
 
-    private class FailoverStategy implements
-                                 Supplier<List<ThriftServerInfo>>,
-                                 ThriftConnectionPoolProvider {
-
-        private final ThriftServerInfoManager manager;
+    private class FailoverStategy implements ThriftConnectionPoolProvider {
 
         private final ThriftConnectionPoolProvider connectionPoolProvider;
 
         private final FailoverCheckingStrategy<ThriftServerInfo> failoverCheckingStrategy;
 
+        private final HealthyServers healthyServers;
+
         private FailoverStategy(ThriftServerInfoManager manager,
                 ThriftConnectionPoolProvider connectionPoolProvider,
                 FailoverCheckingStrategy<ThriftServerInfo> failoverCheckingStrategy) {
-            this.manager = manager;
             this.connectionPoolProvider = connectionPoolProvider;
             this.failoverCheckingStrategy = failoverCheckingStrategy;
-        }
-
-        /* (non-Javadoc)
-         * @see java.util.function.Supplier#get()
-         */
-        @Override
-        public List<ThriftServerInfo> get() {
-            Set<ThriftServerInfo> failedServers = failoverCheckingStrategy.getFailed();
-            return manager.getAll().stream()
-                    .filter(i -> !failedServers.contains(i)).collect(toList());
+            this.healthyServers = new HealthyServers(manager, failoverCheckingStrategy);
         }
 
         /* (non-Javadoc)
@@ -160,6 +219,7 @@ public class FailoverThriftClientImpl implements ThriftClient {
          */
         @Override
         public void returnConnection(ThriftServerInfo thriftServerInfo, TTransport transport) {
+            failoverCheckingStrategy.success(thriftServerInfo);
             connectionPoolProvider.returnConnection(thriftServerInfo, transport);
         }
 
@@ -171,6 +231,48 @@ public class FailoverThriftClientImpl implements ThriftClient {
             failoverCheckingStrategy.fail(thriftServerInfo);
             connectionPoolProvider.returnBrokenConnection(thriftServerInfo, transport);
         }
+
+        /**
+         * not a success of the server.
+         */
+        @Override
+        public void returnUnusedConnection(ThriftServerInfo thriftServerInfo,
+                TTransport transport) {
+            connectionPoolProvider.returnUnusedConnection(thriftServerInfo, transport);
+        }
+
+        /* (non-Javadoc)
+         * @see com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider#setTimeout(org.apache.thrift.transport.TTransport, int)
+         */
+        @Override
+        public boolean setTimeout(TTransport transport, int timeoutMillis) {
+            return connectionPoolProvider.setTimeout(transport, timeoutMillis);
+        }
+
+        /**
+         * not a failure of the server.
+         */
+        @Override
+        public void discardConnection(ThriftServerInfo thriftServerInfo, TTransport transport) {
+            connectionPoolProvider.discardConnection(thriftServerInfo, transport);
+        }
+
+        /* (non-Javadoc)
+         * @see com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider#warmUp(com.github.phantomthief.thrift.client.pool.ThriftServerInfo, int)
+         */
+        @Override
+        public void warmUp(ThriftServerInfo thriftServerInfo, int connectTimeout)
+                throws Exception {
+            connectionPoolProvider.warmUp(thriftServerInfo, connectTimeout);
+        }
+
+        /* (non-Javadoc)
+         * @see com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider#isReusingConnections()
+         */
+        @Override
+        public boolean isReusingConnections() {
+            return connectionPoolProvider.isReusingConnections();
+        }
     }
 
 }
@@ -0,0 +1,95 @@
+package com.github.phantomthief.thrift.client.impl;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.utils.FailoverCheckingStrategy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * the valid servers of a {@link ThriftServerInfoManager} which aren't failed by a
+ * {@link FailoverCheckingStrategy}. It's rebuilt only when the version of either changes, or a
+ * second later if some are filtered out (a failed server recovers silently), so reading it
+ * doesn't allocate.
+ */
+final class HealthyServers implements Supplier<List<ThriftServerInfo>> {
+
+    private static final long REFRESH_NANOS = SECONDS.toNanos(1);
+
+    private final ThriftServerInfoManager manager;
+
+    private final FailoverCheckingStrategy<ThriftServerInfo> failoverCheckingStrategy;
+
+    private volatile Snapshot snapshot;
+
+    HealthyServers(ThriftServerInfoManager manager,
+            FailoverCheckingStrategy<ThriftServerInfo> failoverCheckingStrategy) {
+        this.manager = manager;
+        this.failoverCheckingStrategy = failoverCheckingStrategy;
+    }
+
+    @Override
+    public List<ThriftServerInfo> get() {
+        return current().servers;
+    }
+
+    /**
+     * @return false if the server is failed by the {@link FailoverCheckingStrategy}.
+     */
+    boolean isHealthy(ThriftServerInfo server) {
+        return !current().failed.contains(server);
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        long managerVersion = manager.getVersion();
+        long failedVersion = failoverCheckingStrategy.getVersion();
+        if (current == null || current.managerVersion != managerVersion
+                || current.failedVersion != failedVersion || current.filtered
+                && System.nanoTime() - current.builtNanos >= REFRESH_NANOS) {
+            // built from the versions read before, a change in between is caught next time.
+            current = new Snapshot(managerVersion, failedVersion);
+            snapshot = current;
+        }
+        return current;
+    }
+
+    private final class Snapshot {
+
+        private final long managerVersion;
+
+        private final long failedVersion;
+
+        private final long builtNanos = System.nanoTime();
+
+        private final List<ThriftServerInfo> servers;
+
+        private final Set<ThriftServerInfo> failed;
+
+        private final boolean filtered;
+
+        private Snapshot(long managerVersion, long failedVersion) {
+            this.managerVersion = managerVersion;
+            this.failedVersion = failedVersion;
+            List<ThriftServerInfo> all = manager.getAll();
+            Set<ThriftServerInfo> failedServers = failoverCheckingStrategy.getFailed();
+            ImmutableList.Builder<ThriftServerInfo> builder = ImmutableList.builder();
+            ImmutableSet.Builder<ThriftServerInfo> failedBuilder = ImmutableSet.builder();
+            for (ThriftServerInfo server : all) {
+                if (failedServers.contains(server)) {
+                    failedBuilder.add(server);
+                } else {
+                    builder.add(server);
+                }
+            }
+            this.servers = builder.build();
+            this.failed = failedBuilder.build();
+            this.filtered = !failed.isEmpty();
+        }
+    }
+}
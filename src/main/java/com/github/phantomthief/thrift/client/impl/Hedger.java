@@ -0,0 +1,341 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import org.apache.thrift.transport.TTransport;
+import org.slf4j.Logger;
+
+import com.github.phantomthief.thrift.client.exception.NoBackendException;
+import com.github.phantomthief.thrift.client.metrics.LatencyHistogram;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * runs the hedged calls of a {@link ThriftClientImpl} by its {@link HedgingPolicy}.
+ * <p>
+ * The primary attempt runs on the caller thread, a timer starts the hedge attempt on the
+ * executor after the delay. The first attempt succeeded wins, the other one is cancelled by
+ * closing its connection (so a stalled read fails at once), the owner of the connection then
+ * discards it, which isn't a failure of the server. Every hedgeable call earns {@code budgetPercent} credits and a hedge
+ * costs {@value #HEDGE_COST}, so hedges are at most {@code budgetPercent} of the calls.
+ * </p>
+ *
+ * @author w.vela
+ */
+final class Hedger {
+
+    private static final Logger logger = getLogger(Hedger.class);
+    private static final long HEDGE_COST = 100;
+    private static final long MAX_CREDITS = HEDGE_COST * 10;
+    private static final long LATENCY_WINDOW_NANOS = SECONDS.toNanos(10);
+    private static final int MIN_LATENCY_SAMPLES = 100;
+
+    private final HedgingPolicy policy;
+
+    private final Executor executor;
+
+    private final AtomicLong credits = new AtomicLong();
+
+    private final ConcurrentMap<ThriftServerInfo, RecentLatency> latencies = new ConcurrentHashMap<>();
+
+    Hedger(HedgingPolicy policy, Executor executor) {
+        this.policy = policy;
+        this.executor = executor;
+    }
+
+    boolean isHedged(String method) {
+        return policy.getMethods().contains(method);
+    }
+
+    /**
+     * @param call calls the method, on the given server or the one selected by hash if it's
+     *        {@code null}.
+     * @param otherServer selects a server other than the given one for the hedge,
+     *        {@code null} if there is none.
+     */
+    Object invoke(AttemptCall call, UnaryOperator<ThriftServerInfo> otherServer)
+            throws Throwable {
+        long balance;
+        while ((balance = credits.get()) < MAX_CREDITS) {
+            if (credits.compareAndSet(balance,
+                    Math.min(MAX_CREDITS, balance + policy.getBudgetPercent()))) {
+                break;
+            }
+        }
+        HedgedCall hedgedCall = new HedgedCall(call, otherServer);
+        Object result;
+        try {
+            result = call.call(hedgedCall.primary, null);
+        } catch (Throwable e) {
+            return hedgedCall.primaryFailed(e);
+        }
+        return hedgedCall.primarySucceeded(result);
+    }
+
+    void record(ThriftServerInfo server, long latencyNanos) {
+        RecentLatency latency = latencies.get(server);
+        if (latency == null) {
+            latency = latencies.computeIfAbsent(server, s -> new RecentLatency());
+        }
+        latency.record(latencyNanos);
+    }
+
+    /**
+     * @return -1 if the delay is derived from the latency but not enough calls are recorded.
+     */
+    private long delayNanos(ThriftServerInfo server) {
+        if (policy.getDelayMillis() > 0) {
+            return MILLISECONDS.toNanos(policy.getDelayMillis());
+        }
+        RecentLatency latency = latencies.get(server);
+        return latency == null ? -1 : latency.p95Nanos;
+    }
+
+    private boolean tryAcquire() {
+        long balance;
+        while ((balance = credits.get()) >= HEDGE_COST) {
+            if (credits.compareAndSet(balance, balance - HEDGE_COST)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @FunctionalInterface
+    interface AttemptCall {
+
+        Object call(Attempt attempt, ThriftServerInfo server) throws Throwable;
+    }
+
+    /**
+     * one of the two calls of a hedged call, the caller of {@link AttemptCall} reports the
+     * connection by {@link #start} and the end by {@link #finish}.
+     */
+    static final class Attempt {
+
+        private static final int RUNNING = 0;
+        private static final int DONE = 1;
+        private static final int CANCELLED = 2;
+
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+        private final Consumer<Attempt> onStart;
+
+        private volatile ThriftServerInfo server;
+
+        private volatile TTransport transport;
+
+        private Attempt(Consumer<Attempt> onStart) {
+            this.onStart = onStart;
+        }
+
+        /**
+         * @return false if it's cancelled, the connection should be discarded.
+         */
+        boolean start(ThriftServerInfo server, TTransport transport) {
+            this.server = server;
+            this.transport = transport;
+            if (state.get() != RUNNING) {
+                return false;
+            }
+            if (onStart != null) {
+                onStart.accept(this);
+            }
+            return true;
+        }
+
+        /**
+         * @return false if it's cancelled, the result should be dropped and the connection
+         *         discarded.
+         */
+        boolean finish() {
+            return state.compareAndSet(RUNNING, DONE);
+        }
+
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void cancel() {
+            if (state.compareAndSet(RUNNING, CANCELLED)) {
+                TTransport current = transport;
+                if (current != null) {
+                    try {
+                        current.close();
+                    } catch (Throwable e) {
+                        logger.error("fail to close the connection of a lost hedge:{}", server, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private final class HedgedCall {
+
+        private static final int NONE = 0;
+        private static final int PRIMARY = 1;
+        private static final int HEDGE = 2;
+
+        private static final int NOT_STARTED = 0;
+        private static final int STARTED = 1;
+        private static final int ABANDONED = 2;
+
+        private final AttemptCall call;
+
+        private final UnaryOperator<ThriftServerInfo> otherServer;
+
+        private final Attempt primary = new Attempt(this::scheduleHedge);
+
+        private final Attempt hedge = new Attempt(null);
+
+        private final CompletableFuture<Object> hedgeResult = new CompletableFuture<>();
+
+        private final AtomicInteger winner = new AtomicInteger(NONE);
+
+        private final AtomicInteger hedgeState = new AtomicInteger(NOT_STARTED);
+
+        private volatile ScheduledFuture<?> timer;
+
+        private HedgedCall(AttemptCall call, UnaryOperator<ThriftServerInfo> otherServer) {
+            this.call = call;
+            this.otherServer = otherServer;
+        }
+
+        private void scheduleHedge(Attempt attempt) {
+            long delay = delayNanos(attempt.server);
+            if (delay >= 0) {
+                timer = TimerHolder.INSTANCE.schedule(this::startHedge, delay, NANOSECONDS);
+            }
+        }
+
+        private void startHedge() {
+            if (hedgeState.get() != NOT_STARTED || !tryAcquire()) {
+                return;
+            }
+            if (!hedgeState.compareAndSet(NOT_STARTED, STARTED)) {
+                return;
+            }
+            ThriftServerInfo server = otherServer.apply(primary.server);
+            if (server == null) {
+                hedgeResult.completeExceptionally(new NoBackendException());
+                return;
+            }
+            try {
+                executor.execute(() -> runHedge(server));
+            } catch (Throwable e) {
+                hedgeResult.completeExceptionally(e);
+            }
+        }
+
+        private void runHedge(ThriftServerInfo server) {
+            try {
+                Object result = call.call(hedge, server);
+                if (winner.compareAndSet(NONE, HEDGE)) {
+                    hedgeResult.complete(result);
+                    primary.cancel();
+                } else {
+                    hedgeResult.complete(result);
+                }
+            } catch (Throwable e) {
+                hedgeResult.completeExceptionally(e);
+            }
+        }
+
+        private Object primarySucceeded(Object result) throws Throwable {
+            if (winner.compareAndSet(NONE, PRIMARY)) {
+                if (!hedgeState.compareAndSet(NOT_STARTED, ABANDONED)) {
+                    hedge.cancel();
+                }
+                cancelTimer();
+                return result;
+            }
+            return join();
+        }
+
+        private Object primaryFailed(Throwable e) throws Throwable {
+            if (winner.get() == HEDGE) {
+                return join();
+            }
+            if (hedgeState.compareAndSet(NOT_STARTED, ABANDONED)) {
+                cancelTimer();
+                throw e;
+            }
+            try {
+                return join();
+            } catch (Throwable hedgeFailure) {
+                e.addSuppressed(hedgeFailure);
+                throw e;
+            }
+        }
+
+        private void cancelTimer() {
+            ScheduledFuture<?> current = timer;
+            if (current != null) {
+                current.cancel(false);
+            }
+        }
+
+        private Object join() throws Throwable {
+            try {
+                return hedgeResult.get();
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * the p95 of the last full window, the current window is recorded and swapped when it's
+     * over, so the delay follows the recent latency.
+     */
+    private static final class RecentLatency {
+
+        private final AtomicLong windowEnd = new AtomicLong(System.nanoTime()
+                + LATENCY_WINDOW_NANOS);
+
+        private volatile LatencyHistogram current = new LatencyHistogram();
+
+        private volatile long p95Nanos = -1;
+
+        private void record(long latencyNanos) {
+            current.record(latencyNanos / 1000);
+            long end = windowEnd.get();
+            long now = System.nanoTime();
+            if (now - end >= 0 && windowEnd.compareAndSet(end, now + LATENCY_WINDOW_NANOS)) {
+                LatencyHistogram last = current;
+                current = new LatencyHistogram();
+                if (last.getCount() >= MIN_LATENCY_SAMPLES) {
+                    p95Nanos = last.getPercentile(95) * 1000;
+                }
+            }
+        }
+    }
+
+    private static class TimerHolder {
+
+        private static final ScheduledThreadPoolExecutor INSTANCE;
+        static {
+            INSTANCE = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                    .setNameFormat("thrift-hedge-timer-%d").setDaemon(true).build());
+            INSTANCE.setRemoveOnCancelPolicy(true);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * <p>
+ * HedgingPolicy class.
+ * </p>
+ * <p>
+ * Which calls of {@link ThriftClientImpl} are hedged: if a call to a server doesn't return in
+ * the delay, the same call is sent to another server and the first answer wins. Only list the
+ * idempotent (read-only) methods, a hedged call might run on both servers.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class HedgingPolicy {
+
+    private final Set<String> methods;
+
+    private final long delayMillis;
+
+    private final int budgetPercent;
+
+    /**
+     * <p>
+     * Constructor for HedgingPolicy, the delay is the recent p95 latency of the server called.
+     * </p>
+     *
+     * @param methods names of the methods hedged.
+     * @param budgetPercent max hedges in percent of the hedgeable calls, like 10.
+     */
+    public HedgingPolicy(Set<String> methods, int budgetPercent) {
+        this(methods, 0, budgetPercent);
+    }
+
+    /**
+     * <p>
+     * Constructor for HedgingPolicy.
+     * </p>
+     *
+     * @param methods names of the methods hedged.
+     * @param delayMillis the call is hedged if it doesn't return in it, 0 for the recent p95
+     *        latency of the server called.
+     * @param budgetPercent max hedges in percent of the hedgeable calls, like 10.
+     */
+    public HedgingPolicy(Set<String> methods, long delayMillis, int budgetPercent) {
+        checkArgument(delayMillis >= 0, "delayMillis must not be negative.");
+        checkArgument(budgetPercent > 0 && budgetPercent <= 100,
+                "budgetPercent must be in (0, 100].");
+        this.methods = ImmutableSet.copyOf(methods);
+        this.delayMillis = delayMillis;
+        this.budgetPercent = budgetPercent;
+    }
+
+    public Set<String> getMethods() {
+        return methods;
+    }
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    public int getBudgetPercent() {
+        return budgetPercent;
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+/**
+ * a method call of an iface proxy of {@link ThriftClientImpl}, the layers in front of the
+ * server call (the response cache, the coalescing) wrap it.
+ *
+ * @author w.vela
+ */
+@FunctionalInterface
+interface IfaceCall {
+
+    Object call() throws Throwable;
+}
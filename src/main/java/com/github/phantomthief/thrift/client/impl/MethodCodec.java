@@ -0,0 +1,183 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.slf4j.Logger;
+
+/**
+ * serializes the arguments and the result of an iface method by the generated
+ * {@code <method>_args} and {@code <method>_result} structs of its service, so equal calls
+ * get equal {@link Key}s and a result could be kept as bytes or copied. A method without
+ * these structs (or a void one) has no codec.
+ *
+ * @author w.vela
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+final class MethodCodec {
+
+    private static final Logger logger = getLogger(MethodCodec.class);
+
+    /** the field id of the return value in the result struct. */
+    private static final short SUCCESS_FIELD_ID = 0;
+
+    private static final ConcurrentMap<Method, Optional<MethodCodec>> codecs = new ConcurrentHashMap<>();
+
+    private final String method;
+
+    private final Class<?> argsClass;
+
+    private final Constructor<? extends TBase> argsConstructor;
+
+    private final Constructor<? extends TBase> resultConstructor;
+
+    private final TFieldIdEnum successField;
+
+    private MethodCodec(String method, Class<?> argsClass,
+            Constructor<? extends TBase> argsConstructor,
+            Constructor<? extends TBase> resultConstructor, TFieldIdEnum successField) {
+        this.method = method;
+        this.argsClass = argsClass;
+        this.argsConstructor = argsConstructor;
+        this.resultConstructor = resultConstructor;
+        this.successField = successField;
+    }
+
+    /**
+     * @return {@code null} if the arguments and the result of the method couldn't be
+     *         serialized.
+     */
+    static MethodCodec of(Method method) {
+        Optional<MethodCodec> codec = codecs.get(method);
+        if (codec == null) {
+            codec = codecs.computeIfAbsent(method, m -> Optional.ofNullable(create(m)));
+        }
+        return codec.orElse(null);
+    }
+
+    private static MethodCodec create(Method method) {
+        Class<?> service = method.getDeclaringClass().getEnclosingClass();
+        if (service == null || method.getReturnType() == void.class) {
+            return null;
+        }
+        try {
+            Class<? extends TBase> argsClass = Class.forName(
+                    service.getName() + "$" + method.getName() + "_args", true,
+                    service.getClassLoader()).asSubclass(TBase.class);
+            Class<? extends TBase> resultClass = Class.forName(
+                    service.getName() + "$" + method.getName() + "_result", true,
+                    service.getClassLoader()).asSubclass(TBase.class);
+            // the fields of the args struct are the parameters in order.
+            Constructor<? extends TBase> argsConstructor = method.getParameterCount() == 0
+                    ? argsClass.getConstructor()
+                    : argsClass.getConstructor(method.getParameterTypes());
+            Constructor<? extends TBase> resultConstructor = resultClass.getConstructor();
+            TFieldIdEnum successField = resultConstructor.newInstance().fieldForId(
+                    SUCCESS_FIELD_ID);
+            if (successField == null) {
+                return null;
+            }
+            return new MethodCodec(method.getName(), argsClass, argsConstructor,
+                    resultConstructor, successField);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            logger.warn("method {} has no generated args and result structs.", method, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param serviceName the service of a multiplexed iface, {@code null} for a plain one.
+     */
+    Key key(String serviceName, Object[] args) throws ReflectiveOperationException,
+            TException {
+        TBase struct = args == null || args.length == 0 ? argsConstructor.newInstance()
+                : argsConstructor.newInstance(args);
+        return new Key(argsClass, serviceName, method, serialize(struct));
+    }
+
+    byte[] serializeResult(Object result) throws ReflectiveOperationException, TException {
+        TBase struct = resultConstructor.newInstance();
+        struct.setFieldValue(successField, result);
+        return serialize(struct);
+    }
+
+    Object deserializeResult(byte[] bytes) throws ReflectiveOperationException, TException {
+        TBase struct = resultConstructor.newInstance();
+        new TDeserializer(new TCompactProtocol.Factory()).deserialize(struct, bytes);
+        return struct.getFieldValue(successField);
+    }
+
+    private static byte[] serialize(TBase struct) throws TException {
+        return new TSerializer(new TCompactProtocol.Factory()).serialize(struct);
+    }
+
+    /**
+     * a call by its method, its service and its serialized arguments.
+     */
+    static final class Key {
+
+        private final Class<?> argsClass;
+
+        private final String serviceName;
+
+        private final String method;
+
+        private final byte[] args;
+
+        private final int hash;
+
+        private Key(Class<?> argsClass, String serviceName, String method, byte[] args) {
+            this.argsClass = argsClass;
+            this.serviceName = serviceName;
+            this.method = method;
+            this.args = args;
+            this.hash = Objects.hash(argsClass, serviceName) * 31 + Arrays.hashCode(args);
+        }
+
+        String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the size of the serialized arguments.
+         */
+        int getWeight() {
+            return args.length;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return argsClass == other.argsClass
+                    && Objects.equals(serviceName, other.serviceName)
+                    && Arrays.equals(args, other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.lang.reflect.Method;
+
+import com.github.phantomthief.thrift.client.impl.MethodCodec.Key;
+import com.github.phantomthief.thrift.client.metrics.ThriftClientMetrics;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * the response cache of a {@link ThriftClientImpl} by a {@link ResponseCachePolicy}.
+ * <p>
+ * The key is the call serialized by its {@link MethodCodec}, the result is kept serialized
+ * too, so the entries are weighed by their real size and every hit gets its own copy of the
+ * result. A method without a codec is called as usual.
+ * </p>
+ *
+ * @author w.vela
+ */
+final class ResponseCache {
+
+    private final ResponseCachePolicy policy;
+
+    private final ThriftClientMetrics metrics;
+
+    private final Cache<Key, byte[]> cache;
+
+    ResponseCache(ResponseCachePolicy policy, ThriftClientMetrics metrics) {
+        this.policy = policy;
+        this.metrics = metrics;
+        this.cache = CacheBuilder.newBuilder() //
+                .maximumWeight(policy.getMaxWeightBytes()) //
+                .<Key, byte[]> weigher((key, value) -> key.getWeight() + value.length) //
+                .expireAfterWrite(policy.getTtlMillis(), MILLISECONDS) //
+                .removalListener(notification -> {
+                    if (notification.wasEvicted()) {
+                        metrics.onCacheEviction(notification.getKey().getMethod());
+                    }
+                }) //
+                .build();
+    }
+
+    boolean isCached(String method) {
+        return policy.getMethods().contains(method);
+    }
+
+    /**
+     * @param serviceName the service of a multiplexed iface, {@code null} for a plain one.
+     * @param call calls the server on a miss.
+     */
+    Object get(String serviceName, Method method, Object[] args, IfaceCall call)
+            throws Throwable {
+        MethodCodec codec = MethodCodec.of(method);
+        if (codec == null) {
+            return call.call();
+        }
+        Key key = codec.key(serviceName, args);
+        byte[] cached = cache.getIfPresent(key);
+        if (cached != null) {
+            metrics.onCacheHit(key.getMethod());
+            return codec.deserializeResult(cached);
+        }
+        metrics.onCacheMiss(key.getMethod());
+        Object result = call.call();
+        if (result != null) {
+            cache.put(key, codec.serializeResult(result));
+        }
+        return result;
+    }
+}
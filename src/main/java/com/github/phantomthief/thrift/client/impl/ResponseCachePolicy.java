@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * <p>
+ * ResponseCachePolicy class.
+ * </p>
+ * <p>
+ * Which calls of {@link ThriftClientImpl} are answered from a local cache: the key is the
+ * method and its serialized arguments, a hit doesn't borrow a connection at all. The cache is
+ * bounded by the serialized size of the entries and an entry expires {@code ttlMillis} after
+ * it's loaded. Only list the idempotent (read-only) methods whose result could be a bit stale.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class ResponseCachePolicy {
+
+    private final Set<String> methods;
+
+    private final long maxWeightBytes;
+
+    private final long ttlMillis;
+
+    /**
+     * <p>
+     * Constructor for ResponseCachePolicy.
+     * </p>
+     *
+     * @param methods names of the methods cached.
+     * @param maxWeightBytes max serialized size of the arguments and results cached, the
+     *        least recently used are evicted beyond it.
+     * @param ttlMillis how long a result is cached.
+     */
+    public ResponseCachePolicy(Set<String> methods, long maxWeightBytes, long ttlMillis) {
+        checkArgument(maxWeightBytes > 0, "maxWeightBytes must be positive.");
+        checkArgument(ttlMillis > 0, "ttlMillis must be positive.");
+        this.methods = ImmutableSet.copyOf(methods);
+        this.maxWeightBytes = maxWeightBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public Set<String> getMethods() {
+        return methods;
+    }
+
+    public long getMaxWeightBytes() {
+        return maxWeightBytes;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+}
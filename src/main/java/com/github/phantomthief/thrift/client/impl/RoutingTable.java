@@ -0,0 +1,61 @@
+package com.github.phantomthief.thrift.client.impl;
+
+import java.util.Collection;
+
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Immutable routing snapshot of a {@link ThriftServerInfoManager}: the valid servers, the hash
+ * ring over them and the invalid servers. A change of the servers builds a new one with the
+ * next version, so the readers take the current one by one volatile read and never lock or
+ * allocate.
+ */
+final class RoutingTable {
+
+    private final long version;
+
+    private final ImmutableList<ThriftServerInfo> valid;
+
+    private final ImmutableSet<ThriftServerInfo> invalid;
+
+    private final ConsistentHashRing ring;
+
+    private RoutingTable(long version, ImmutableList<ThriftServerInfo> valid,
+            ImmutableSet<ThriftServerInfo> invalid, ConsistentHashRing ring) {
+        this.version = version;
+        this.valid = valid;
+        this.invalid = invalid;
+        this.ring = ring;
+    }
+
+    static RoutingTable build(long version, Collection<ThriftServerInfo> valid,
+            Collection<ThriftServerInfo> invalid, int virtualNodes) {
+        return new RoutingTable(version, ImmutableList.copyOf(valid), ImmutableSet.copyOf(invalid),
+                ConsistentHashRing.build(valid, virtualNodes));
+    }
+
+    /**
+     * @return the ring is reused if the valid servers don't change.
+     */
+    RoutingTable withInvalid(Collection<ThriftServerInfo> newInvalid) {
+        return new RoutingTable(version + 1, valid, ImmutableSet.copyOf(newInvalid), ring);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    ImmutableList<ThriftServerInfo> getValid() {
+        return valid;
+    }
+
+    ImmutableSet<ThriftServerInfo> getInvalid() {
+        return invalid;
+    }
+
+    ConsistentHashRing getRing() {
+        return ring;
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClient;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TNonblockingTransport;
+import org.slf4j.Logger;
+
+import com.github.phantomthief.thrift.client.ThriftAsyncClient;
+import com.github.phantomthief.thrift.client.exception.NoBackendException;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.utils.FailoverCheckingStrategy;
+import com.github.phantomthief.thrift.client.utils.ThriftClientUtils;
+
+/**
+ * <p>
+ * ThriftAsyncClientImpl class.
+ * </p>
+ * <p>
+ * All connections are driven by a few {@link TAsyncClientManager} selector threads. A
+ * {@link TAsyncClient} could only run one call at a time, so the clients are pooled per server
+ * and a call borrows one, the client is returned when the call finished. The futures are
+ * completed on the selector threads, use the async methods of
+ * {@link CompletableFuture} for blocking work.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class ThriftAsyncClientImpl implements ThriftAsyncClient, Closeable {
+
+    private static final Logger logger = getLogger(ThriftAsyncClientImpl.class);
+    private static final int DEFAULT_SELECTOR_THREADS = 2;
+    private static final int MAX_IDLE_PER_SERVER = 1000;
+    private static final int TIMEOUT = (int) MINUTES.toMillis(5);
+
+    private static final ConcurrentMap<Class<?>, Constructor<?>> clientConstructorCache = new ConcurrentHashMap<>();
+
+    private final ThriftServerInfoManager serverInfoManager;
+
+    private final FailoverCheckingStrategy<ThriftServerInfo> failoverCheckingStrategy;
+
+    private final HealthyServers healthyServers;
+
+    private final TProtocolFactory protocolFactory;
+
+    private final int timeout;
+
+    private final TAsyncClientManager[] clientManagers;
+
+    private final AtomicInteger nextClientManager = new AtomicInteger();
+
+    private final ConcurrentMap<Class<?>, ConcurrentMap<ThriftServerInfo, IdleConnections>> idleConnections = new ConcurrentHashMap<>();
+
+    /**
+     * <p>
+     * Constructor for ThriftAsyncClientImpl.
+     * </p>
+     *
+     * @param manager a {@link ThriftServerInfoManager} object.
+     */
+    public ThriftAsyncClientImpl(ThriftServerInfoManager manager) throws IOException {
+        this(manager, new FailoverCheckingStrategy<>(), new TCompactProtocol.Factory(),
+                DEFAULT_SELECTOR_THREADS, TIMEOUT);
+    }
+
+    /**
+     * <p>
+     * Constructor for ThriftAsyncClientImpl.
+     * </p>
+     *
+     * @param manager a {@link ThriftServerInfoManager} object.
+     * @param failoverCheckingStrategy marks the servers whose calls failed.
+     * @param protocolFactory a {@link org.apache.thrift.protocol.TProtocolFactory} object.
+     * @param selectorThreads how many selector threads drive the connections.
+     * @param timeout timeout of a call in milliseconds.
+     */
+    public ThriftAsyncClientImpl(ThriftServerInfoManager manager,
+            FailoverCheckingStrategy<ThriftServerInfo> failoverCheckingStrategy,
+            TProtocolFactory protocolFactory, int selectorThreads, int timeout)
+            throws IOException {
+        this.serverInfoManager = manager;
+        this.failoverCheckingStrategy = failoverCheckingStrategy;
+        this.healthyServers = new HealthyServers(manager, failoverCheckingStrategy);
+        this.protocolFactory = protocolFactory;
+        this.timeout = timeout;
+        this.clientManagers = new TAsyncClientManager[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            clientManagers[i] = new TAsyncClientManager();
+        }
+        serverInfoManager.start();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TAsyncClient, C, R> CompletableFuture<R> asyncIface(Class<X> ifaceClass,
+            AsyncCall<X, C> call, AsyncResult<C, R> result) {
+        return asyncIface(ifaceClass, call, result, ThriftClientUtils.randomNextInt());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TAsyncClient, C, R> CompletableFuture<R> asyncIface(Class<X> ifaceClass,
+            AsyncCall<X, C> call, AsyncResult<C, R> result, int hash) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        AsyncConnection<X> connection;
+        try {
+            connection = borrow(ifaceClass, select(hash));
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        try {
+            call.call(connection.client, new AsyncMethodCallback<C>() {
+
+                @Override
+                public void onComplete(C response) {
+                    failoverCheckingStrategy.success(connection.server);
+                    R r;
+                    try {
+                        r = result.get(response);
+                    } catch (Throwable e) {
+                        // the response was read fully, the connection is still fine.
+                        release(connection);
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                    release(connection);
+                    future.complete(r);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    fail(connection);
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (Throwable e) {
+            fail(connection);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private ThriftServerInfo select(int hash) {
+        ThriftServerInfo server = serverInfoManager.get(hash);
+        if (server == null) {
+            throw new NoBackendException();
+        }
+        if (failoverCheckingStrategy.getFailed().contains(server)) {
+            List<ThriftServerInfo> candidates = healthyServers.get();
+            if (!candidates.isEmpty()) {
+                server = candidates.get(Math.abs(hash % candidates.size()));
+            }
+        }
+        return server;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <X extends TAsyncClient> AsyncConnection<X> borrow(Class<X> ifaceClass,
+            ThriftServerInfo server) throws Exception {
+        IdleConnections idle = idleConnections
+                .computeIfAbsent(ifaceClass, c -> new ConcurrentHashMap<>())
+                .computeIfAbsent(server, s -> new IdleConnections());
+        AsyncConnection<?> connection;
+        while ((connection = idle.poll()) != null) {
+            if (connection.transport.isOpen() && !connection.client.hasError()) {
+                return (AsyncConnection<X>) connection;
+            }
+            connection.transport.close();
+        }
+        TNonblockingSocket transport = new TNonblockingSocket(server.getHost(), server.getPort(),
+                timeout);
+        TAsyncClientManager clientManager = clientManagers[Math.abs(nextClientManager
+                .getAndIncrement() % clientManagers.length)];
+        X client = getClientConstructor(ifaceClass).newInstance(protocolFactory, clientManager,
+                transport);
+        client.setTimeout(timeout);
+        logger.trace("make new async thrift connection:{}", server);
+        return new AsyncConnection<>(server, idle, transport, client);
+    }
+
+    private void release(AsyncConnection<?> connection) {
+        if (!connection.idle.offer(connection)) {
+            connection.transport.close();
+        }
+    }
+
+    private void fail(AsyncConnection<?> connection) {
+        failoverCheckingStrategy.fail(connection.server);
+        connection.transport.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <X extends TAsyncClient> Constructor<X> getClientConstructor(
+            Class<X> ifaceClass) {
+        return (Constructor<X>) clientConstructorCache.computeIfAbsent(ifaceClass, c -> {
+            try {
+                return c.getConstructor(TProtocolFactory.class, TAsyncClientManager.class,
+                        TNonblockingTransport.class);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("fail to find async client constructor.", e);
+            }
+        });
+    }
+
+    /**
+     * stops the selector threads and closes the idle connections.
+     */
+    @Override
+    public void close() {
+        for (TAsyncClientManager clientManager : clientManagers) {
+            clientManager.stop();
+        }
+        idleConnections.values().forEach(byServer -> byServer.values().forEach(idle -> {
+            AsyncConnection<?> connection;
+            while ((connection = idle.poll()) != null) {
+                connection.transport.close();
+            }
+        }));
+    }
+
+    private static final class AsyncConnection<X extends TAsyncClient> {
+
+        private final ThriftServerInfo server;
+
+        private final IdleConnections idle;
+
+        private final TNonblockingTransport transport;
+
+        private final X client;
+
+        private AsyncConnection(ThriftServerInfo server, IdleConnections idle,
+                TNonblockingTransport transport, X client) {
+            this.server = server;
+            this.idle = idle;
+            this.transport = transport;
+            this.client = client;
+        }
+    }
+
+    private static final class IdleConnections {
+
+        private final Queue<AsyncConnection<?>> queue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        private AsyncConnection<?> poll() {
+            AsyncConnection<?> connection = queue.poll();
+            if (connection != null) {
+                size.decrementAndGet();
+            }
+            return connection;
+        }
+
+        private boolean offer(AsyncConnection<?> connection) {
+            if (size.incrementAndGet() > MAX_IDLE_PER_SERVER) {
+                size.decrementAndGet();
+                return false;
+            }
+            queue.offer(connection);
+            return true;
+        }
+    }
+}
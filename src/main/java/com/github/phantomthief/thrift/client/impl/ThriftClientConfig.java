@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import com.github.phantomthief.thrift.client.metrics.ThriftClientMetrics;
+import com.github.phantomthief.thrift.client.selector.ThriftServerSelector;
+
+/**
+ * <p>
+ * ThriftClientConfig class.
+ * </p>
+ * <p>
+ * Optional features of {@link ThriftClientImpl}, it's read when the client is created.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class ThriftClientConfig {
+
+    private ThriftClientMetrics metrics = ThriftClientMetrics.NONE;
+
+    private ThriftServerSelector selector = ThriftServerSelector.CONSISTENT_HASH;
+
+    private Executor callExecutor;
+
+    private HedgingPolicy hedgingPolicy;
+
+    private WarmUpPolicy warmUpPolicy;
+
+    private CircuitBreakerPolicy circuitBreakerPolicy;
+
+    private ConcurrencyLimitPolicy concurrencyLimitPolicy;
+
+    private ResponseCachePolicy responseCachePolicy;
+
+    private Set<String> coalescedMethods;
+
+    public ThriftClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics listener of the calls, like
+     *        {@link com.github.phantomthief.thrift.client.metrics.impl.DefaultThriftClientMetricsImpl}.
+     */
+    public void setMetrics(ThriftClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ThriftServerSelector getSelector() {
+        return selector;
+    }
+
+    /**
+     * @param selector picks the server of each call, like
+     *        {@link com.github.phantomthief.thrift.client.selector.impl.LeastInFlightThriftServerSelector}.
+     */
+    public void setSelector(ThriftServerSelector selector) {
+        this.selector = selector;
+    }
+
+    public Executor getCallExecutor() {
+        return callExecutor;
+    }
+
+    /**
+     * @param callExecutor runs the calls off the caller thread, the workers of
+     *        {@link com.github.phantomthief.thrift.client.ThriftClient#invokeAll} and the
+     *        hedges, a shared cached pool of daemon threads if it's {@code null}.
+     */
+    public void setCallExecutor(Executor callExecutor) {
+        this.callExecutor = callExecutor;
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * @param hedgingPolicy the methods hedged, no hedging if it's {@code null}.
+     */
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    public WarmUpPolicy getWarmUpPolicy() {
+        return warmUpPolicy;
+    }
+
+    /**
+     * @param warmUpPolicy the connections opened when the client is created, no warm up if
+     *        it's {@code null}.
+     */
+    public void setWarmUpPolicy(WarmUpPolicy warmUpPolicy) {
+        this.warmUpPolicy = warmUpPolicy;
+    }
+
+    public CircuitBreakerPolicy getCircuitBreakerPolicy() {
+        return circuitBreakerPolicy;
+    }
+
+    /**
+     * @param circuitBreakerPolicy the circuit breaker of each server, no circuit breaker if
+     *        it's {@code null}.
+     */
+    public void setCircuitBreakerPolicy(CircuitBreakerPolicy circuitBreakerPolicy) {
+        this.circuitBreakerPolicy = circuitBreakerPolicy;
+    }
+
+    public ConcurrencyLimitPolicy getConcurrencyLimitPolicy() {
+        return concurrencyLimitPolicy;
+    }
+
+    /**
+     * @param concurrencyLimitPolicy the adaptive limit of the calls in flight to each server,
+     *        no limit but the pool if it's {@code null}.
+     */
+    public void setConcurrencyLimitPolicy(ConcurrencyLimitPolicy concurrencyLimitPolicy) {
+        this.concurrencyLimitPolicy = concurrencyLimitPolicy;
+    }
+
+    public ResponseCachePolicy getResponseCachePolicy() {
+        return responseCachePolicy;
+    }
+
+    /**
+     * @param responseCachePolicy the methods answered from a local cache, no cache if it's
+     *        {@code null}.
+     */
+    public void setResponseCachePolicy(ResponseCachePolicy responseCachePolicy) {
+        this.responseCachePolicy = responseCachePolicy;
+    }
+
+    public Set<String> getCoalescedMethods() {
+        return coalescedMethods;
+    }
+
+    /**
+     * @param coalescedMethods names of the methods whose equal calls in flight are coalesced
+     *        into one call to the server, only list the idempotent (read-only) ones. No
+     *        coalescing if it's {@code null} or empty.
+     */
+    public void setCoalescedMethods(Set<String> coalescedMethods) {
+        this.coalescedMethods = coalescedMethods;
+    }
+}
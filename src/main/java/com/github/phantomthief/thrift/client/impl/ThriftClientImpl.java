@@ -3,12 +3,23 @@
  */
 package com.github.phantomthief.thrift.client.impl;
 
+import com.github.phantomthief.thrift.client.ThriftBatchResult;
 import com.github.phantomthief.thrift.client.ThriftClient;
+import com.github.phantomthief.thrift.client.ThriftDeadline;
+import com.github.phantomthief.thrift.client.exception.ConcurrencyLimitExceededException;
+import com.github.phantomthief.thrift.client.exception.DeadlineExceededException;
 import com.github.phantomthief.thrift.client.exception.NoBackendException;
+import com.github.phantomthief.thrift.client.impl.Hedger.Attempt;
+import com.github.phantomthief.thrift.client.metrics.ThriftClientMetrics;
 import com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider;
 import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
 import com.github.phantomthief.thrift.client.pool.impl.DefaultThriftConnectionPoolImpl;
+import com.github.phantomthief.thrift.client.selector.ThriftServerSelector;
 import com.github.phantomthief.thrift.client.utils.ThriftClientUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import javassist.util.proxy.Proxy;
 import javassist.util.proxy.ProxyFactory;
 import org.apache.thrift.TServiceClient;
@@ -16,18 +27,90 @@ import org.apache.thrift.protocol.TCompactProtocol;
 import org.apache.thrift.protocol.TMultiplexedProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 public class ThriftClientImpl implements ThriftClient {
 
+    private static final ConcurrentMap<Class<?>, Constructor<?>> proxyConstructorCache = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<Class<?>, Constructor<?>> clientConstructorCache = new ConcurrentHashMap<>();
+
+    private static final Function<TTransport, TProtocol> DEFAULT_PROTOCOL = TCompactProtocol::new;
+
+    private static final ToIntFunction<Object[]> RANDOM_HASH = args -> ThriftClientUtils
+            .randomNextInt();
+
+    /** no deadline for the call, a deadline is a {@link System#nanoTime()}. */
+    static final long NO_DEADLINE = 0;
+
+    /** the method name of the batch calls given to the metrics. */
+    private static final String BATCH_METHOD = "invokeAll";
+
     private final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(getClass());
 
+    /** the shared ifaces at most, a new strategy (a capturing lambda) per call isn't kept. */
+    private static final int MAX_SHARED_IFACES = 1024;
+
+    /**
+     * the ifaces are shared by the identity of their protocol provider and hash strategy, a
+     * lambda made on each call is a new one, so it's bounded.
+     */
+    private final Cache<SharedIfaceKey, TServiceClient> sharedIfaces = CacheBuilder.newBuilder() //
+            .maximumSize(MAX_SHARED_IFACES) //
+            .build();
+
     private ThriftConnectionPoolProvider poolProvider;
 
     private ThriftServerInfoManager serverInfoManager ;
 
+    private final ThriftClientMetrics metrics;
+
+    private final ThriftServerSelector selector;
+
+    private final Executor callExecutor;
+
+    private final Hedger hedger;
+
+    private final CircuitBreakers circuitBreakers;
+
+    private final ConcurrencyLimiters concurrencyLimiters;
+
+    private final ResponseCache responseCache;
+
+    private final Coalescer coalescer;
+
+    private final ConnectionClients connectionClients;
+
+    /** {@code null} if no server is failed over. */
+    private final HealthyServers healthyServers;
+
     /**
      * <p>
      * Constructor for ThriftClientImpl.
@@ -35,16 +118,56 @@ public class ThriftClientImpl implements ThriftClient {
      *
      */
     public ThriftClientImpl(ThriftServerInfoManager manager) {
-        poolProvider = DefaultThriftConnectionPoolImpl.getInstance();
-        this.serverInfoManager = manager;
-        this.serverInfoManager.start();
+        this(manager, DefaultThriftConnectionPoolImpl.getInstance());
     }
 
     public ThriftClientImpl(ThriftServerInfoManager manager,
                             ThriftConnectionPoolProvider poolProvider) {
+        this(manager, poolProvider, new ThriftClientConfig());
+    }
+
+    /**
+     * <p>
+     * Constructor for ThriftClientImpl.
+     * </p>
+     *
+     * @param config optional features of the client.
+     */
+    public ThriftClientImpl(ThriftServerInfoManager manager,
+            ThriftConnectionPoolProvider poolProvider, ThriftClientConfig config) {
+        this(manager, poolProvider, config, null);
+    }
+
+    /**
+     * @param healthyServers the servers not failed over, the others are only called when
+     *        all are failed. {@code null} to call all the servers.
+     */
+    ThriftClientImpl(ThriftServerInfoManager manager, ThriftConnectionPoolProvider poolProvider,
+            ThriftClientConfig config, HealthyServers healthyServers) {
         this.poolProvider = poolProvider;
+        this.healthyServers = healthyServers;
         this.serverInfoManager = manager;
+        this.metrics = config.getMetrics();
+        this.selector = config.getSelector();
+        this.callExecutor = config.getCallExecutor() != null ? config.getCallExecutor()
+                : CallExecutorHolder.INSTANCE;
+        this.hedger = config.getHedgingPolicy() == null ? null : new Hedger(
+                config.getHedgingPolicy(), callExecutor);
+        this.circuitBreakers = config.getCircuitBreakerPolicy() == null ? null
+                : new CircuitBreakers(config.getCircuitBreakerPolicy());
+        this.concurrencyLimiters = config.getConcurrencyLimitPolicy() == null ? null
+                : new ConcurrencyLimiters(config.getConcurrencyLimitPolicy());
+        this.responseCache = config.getResponseCachePolicy() == null ? null
+                : new ResponseCache(config.getResponseCachePolicy(), metrics);
+        this.coalescer = config.getCoalescedMethods() == null
+                || config.getCoalescedMethods().isEmpty() ? null : new Coalescer(
+                config.getCoalescedMethods(), metrics);
+        this.connectionClients = new ConnectionClients(poolProvider.isReusingConnections());
         serverInfoManager.start();
+        if (config.getWarmUpPolicy() != null) {
+            WarmUp.run(config.getWarmUpPolicy(), new ArrayList<>(serverInfoManager.getAll()),
+                    poolProvider, metrics);
+        }
     }
 
     /**
@@ -56,7 +179,7 @@ public class ThriftClientImpl implements ThriftClient {
      */
     @Override
     public <X extends TServiceClient> X iface(Class<X> ifaceClass) {
-        return iface(ifaceClass, ThriftClientUtils.randomNextInt());
+        return iface(ifaceClass, DEFAULT_PROTOCOL, RANDOM_HASH);
     }
 
     /**
@@ -68,7 +191,23 @@ public class ThriftClientImpl implements ThriftClient {
      */
     @Override
     public <X extends TServiceClient> X iface(Class<X> ifaceClass, int hash) {
-        return iface(ifaceClass, TCompactProtocol::new, hash);
+        return iface(ifaceClass, DEFAULT_PROTOCOL, hash);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * iface.
+     * </p>
+     */
+    @Override
+    public <X extends TServiceClient> X iface(Class<X> ifaceClass, long timeout, TimeUnit unit) {
+        checkArgument(timeout > 0, "timeout must be positive.");
+        long timeoutNanos = unit.toNanos(timeout);
+        return sharedIface(new SharedIfaceKey(ifaceClass, null, DEFAULT_PROTOCOL, RANDOM_HASH,
+                timeoutNanos), () -> newProxy(ifaceClass, null, DEFAULT_PROTOCOL, RANDOM_HASH,
+                timeoutNanos));
     }
 
     /**
@@ -78,53 +217,25 @@ public class ThriftClientImpl implements ThriftClient {
      * iface.
      * </p>
      */
-    @SuppressWarnings("unchecked")
     @Override
     public <X extends TServiceClient> X iface(Class<X> ifaceClass,
             Function<TTransport, TProtocol> protocolProvider, int hash) {
-        ThriftServerInfo server = null;
-        TTransport transport = null;
-        TProtocol protocol = null;
-        while(transport == null){
-            server = serverInfoManager.get();
-            if(server == null)throw new NoBackendException();
-            try {
-                transport = poolProvider.getConnection(server);
-                break;
-            } catch (Exception e) {
-                logger.error("Create TTransport connecting to {} throws exception, invalid it.",server,e);
-                serverInfoManager.invalid(server);
-            }
-        }
-        protocol = protocolProvider.apply(transport);
-        ProxyFactory factory = new ProxyFactory();
-        factory.setSuperclass(ifaceClass);
-        factory.setFilter(m -> ThriftClientUtils.getInterfaceMethodNames(ifaceClass).contains(
-                m.getName()));
-        try {
-            X x = (X) factory.create(new Class[] { TProtocol.class },
-                    new Object[] { protocol });
-            ThriftServerInfo finalServer = server;
-            TTransport finalTransport = transport;
-            ((Proxy) x).setHandler((self, thisMethod, proceed, args) -> {
-                boolean success = false;
-                try {
-                    Object result = proceed.invoke(self, args);
-                    success = true;
-                    return result;
-                } finally {
-                    if (success) {
-                        poolProvider.returnConnection(finalServer, finalTransport);
-                    } else {
-                        poolProvider.returnBrokenConnection(finalServer, finalTransport);
-                    }
-                }
-            });
-            return x;
-        } catch (NoSuchMethodException | IllegalArgumentException | InstantiationException
-                | IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException("fail to create proxy.", e);
-        }
+        return newProxy(ifaceClass, null, protocolProvider, args -> hash, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * iface.
+     * </p>
+     */
+    @Override
+    public <X extends TServiceClient> X iface(Class<X> ifaceClass,
+            Function<TTransport, TProtocol> protocolProvider, ToIntFunction<Object[]> hashStrategy) {
+        return sharedIface(
+                new SharedIfaceKey(ifaceClass, null, protocolProvider, hashStrategy, 0),
+                () -> newProxy(ifaceClass, null, protocolProvider, hashStrategy, 0));
     }
 
     /**
@@ -136,7 +247,7 @@ public class ThriftClientImpl implements ThriftClient {
      */
     @Override
     public <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName) {
-        return mpiface(ifaceClass, serviceName, ThriftClientUtils.randomNextInt());
+        return mpiface(ifaceClass, serviceName, DEFAULT_PROTOCOL, RANDOM_HASH);
     }
 
     /**
@@ -148,7 +259,7 @@ public class ThriftClientImpl implements ThriftClient {
      */
     @Override
     public <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName, int hash) {
-        return mpiface(ifaceClass, serviceName, TCompactProtocol::new, hash);
+        return mpiface(ifaceClass, serviceName, DEFAULT_PROTOCOL, hash);
     }
 
     /**
@@ -161,8 +272,673 @@ public class ThriftClientImpl implements ThriftClient {
     @Override
     public <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName,
         Function<TTransport, TProtocol> protocolProvider, int hash) {
-        return iface(ifaceClass,
-            protocolProvider.andThen((p) -> new TMultiplexedProtocol(p, serviceName)), hash);
+        return newProxy(ifaceClass, serviceName, protocolProvider, args -> hash, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * mpiface.
+     * </p>
+     */
+    @Override
+    public <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName,
+            Function<TTransport, TProtocol> protocolProvider, ToIntFunction<Object[]> hashStrategy) {
+        return sharedIface(
+                new SharedIfaceKey(ifaceClass, serviceName, protocolProvider, hashStrategy, 0),
+                () -> newProxy(ifaceClass, serviceName, protocolProvider, hashStrategy, 0));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <X extends TServiceClient> X sharedIface(SharedIfaceKey key, Supplier<X> factory) {
+        TServiceClient x = sharedIfaces.getIfPresent(key);
+        if (x == null) {
+            x = factory.get();
+            TServiceClient existing = sharedIfaces.asMap().putIfAbsent(key, x);
+            if (existing != null) {
+                x = existing;
+            }
+        }
+        return (X) x;
+    }
+
+    /**
+     * the proxy holds no connection, each method call borrows one (unless it's answered by
+     * the response cache or joins the same call in flight), so it's thread safe and could be
+     * reused.
+     *
+     * @param serviceName the service of a multiplexed iface, {@code null} for a plain one.
+     * @param protocolProvider the protocol under the {@link TMultiplexedProtocol} of a
+     *        multiplexed iface.
+     */
+    private <X extends TServiceClient> X newProxy(Class<X> ifaceClass, String serviceName,
+            Function<TTransport, TProtocol> protocolProvider,
+            ToIntFunction<Object[]> hashStrategy, long timeoutNanos) {
+        Constructor<X> clientConstructor = getClientConstructor(ifaceClass);
+        try {
+            X x = getProxyConstructor(ifaceClass).newInstance((TProtocol) null);
+            ((Proxy) x).setHandler((self, thisMethod, proceed, args) -> {
+                long deadline = deadlineOf(timeoutNanos);
+                String method = thisMethod.getName();
+                boolean cached = responseCache != null && responseCache.isCached(method);
+                boolean coalesced = coalescer != null && coalescer.isCoalesced(method);
+                if (!cached && !coalesced) {
+                    return invoke(clientConstructor, protocolProvider, serviceName,
+                            hashStrategy.applyAsInt(args), deadline, thisMethod, args);
+                }
+                IfaceCall call = () -> invoke(clientConstructor, protocolProvider, serviceName,
+                        hashStrategy.applyAsInt(args), deadline, thisMethod, args);
+                IfaceCall miss = coalesced ? () -> coalescer.call(serviceName, thisMethod, args,
+                        deadline, call) : call;
+                return cached ? responseCache.get(serviceName, thisMethod, args, miss)
+                        : miss.call();
+            });
+            return x;
+        } catch (IllegalArgumentException | InstantiationException | IllegalAccessException
+                | InvocationTargetException e) {
+            throw new RuntimeException("fail to create proxy.", e);
+        }
+    }
+
+    /**
+     * @param deadline in {@link System#nanoTime()}, {@link #NO_DEADLINE} if there is none.
+     */
+    private Object invoke(Constructor<? extends TServiceClient> clientConstructor,
+            Function<TTransport, TProtocol> protocolProvider, String serviceName, int hash, long deadline,
+            Method method, Object[] args) throws Throwable {
+        if (hedger != null && hedger.isHedged(method.getName())) {
+            return hedger.invoke((attempt, hedgeServer) -> invokeAttempt(attempt, hedgeServer,
+                    clientConstructor, protocolProvider, serviceName, hash, deadline, method,
+                    args),
+                    this::otherServer);
+        }
+        Object[] trial = newTrial();
+        ThriftServerInfo server;
+        TTransport transport;
+        do {
+            server = select(hash, trial);
+            transport = borrow(server);
+        } while (transport == null);
+        checkBorrowDeadline(server, transport, deadline, trial);
+        boolean success = false;
+        selector.onCallStart(server);
+        long start = System.nanoTime();
+        try {
+            Object result = call(clientConstructor, protocolProvider, serviceName, transport,
+                    deadline, method, args);
+            success = true;
+            return result;
+        } finally {
+            long latency = System.nanoTime() - start;
+            metrics.onCall(server, method.getName(), latency, success);
+            selector.onCallEnd(server);
+            release(server, transport, success, latency, trial);
+        }
+    }
+
+    /**
+     * like {@link #invoke}, the attempt could be cancelled by the other attempt of the hedged
+     * call, then its connection is closed and discarded, which isn't a failure of the server.
+     *
+     * @param hedgeServer the server of the hedge, {@code null} for the primary attempt.
+     */
+    private Object invokeAttempt(Attempt attempt, ThriftServerInfo hedgeServer,
+            Constructor<? extends TServiceClient> clientConstructor,
+            Function<TTransport, TProtocol> protocolProvider, String serviceName, int hash,
+            long deadline, Method method, Object[] args) throws Throwable {
+        Object[] trial = newTrial();
+        ThriftServerInfo server;
+        TTransport transport;
+        if (hedgeServer == null) {
+            do {
+                server = select(hash, trial);
+                transport = borrow(server);
+            } while (transport == null);
+        } else {
+            server = hedgeServer;
+            if (concurrencyLimiters != null && !concurrencyLimiters.tryAcquire(server)) {
+                metrics.onLimitExceeded(server);
+                throw new ConcurrencyLimitExceededException("the server to hedge is at its "
+                        + "concurrency limit:" + server);
+            }
+            if (trial != null && (trial[0] = circuitBreakers.allow(server)) == null) {
+                leave(server);
+                throw new TTransportException(TTransportException.NOT_OPEN,
+                        "the circuit of the server to hedge is open:" + server);
+            }
+            transport = borrow(server);
+            if (transport == null) {
+                throw new TTransportException(TTransportException.NOT_OPEN,
+                        "fail to borrow a connection to hedge:" + server);
+            }
+        }
+        checkBorrowDeadline(server, transport, deadline, trial);
+        if (!attempt.start(server, transport)) {
+            poolProvider.returnUnusedConnection(server, transport);
+            abandon(server, trial);
+            throw new CancellationException();
+        }
+        boolean success = false;
+        selector.onCallStart(server);
+        long start = System.nanoTime();
+        try {
+            Object result = call(clientConstructor, protocolProvider, serviceName, transport,
+                    deadline, method, args);
+            if (!attempt.finish()) {
+                throw new CancellationException();
+            }
+            success = true;
+            return result;
+        } finally {
+            long latency = System.nanoTime() - start;
+            if (!attempt.isCancelled()) {
+                metrics.onCall(server, method.getName(), latency, success);
+            }
+            if (success) {
+                hedger.record(server, latency);
+            }
+            selector.onCallEnd(server);
+            if (attempt.isCancelled()) {
+                // the server didn't fail, the other attempt won.
+                poolProvider.discardConnection(server, transport);
+                abandon(server, trial);
+            } else {
+                release(server, transport, success, latency, trial);
+            }
+        }
+    }
+
+    /**
+     * the time left is the socket timeout of the call, the original one is restored if the
+     * call succeeds (a failed connection is closed anyway). The client is the one bound to the
+     * connection by an earlier call if any.
+     */
+    private Object call(Constructor<? extends TServiceClient> clientConstructor,
+            Function<TTransport, TProtocol> protocolProvider, String serviceName,
+            TTransport transport, long deadline, Method method, Object[] args) throws Throwable {
+        Socket socket = deadline == NO_DEADLINE ? null : ThriftClientUtils.getSocket(transport);
+        int soTimeout = socket == null ? 0 : setSoTimeout(socket, deadline);
+        if (socket == null && deadline != NO_DEADLINE) {
+            poolProvider.setTimeout(transport, remainingMillis(deadline));
+        }
+        try {
+            TServiceClient client = connectionClients.get(transport, clientConstructor,
+                    protocolProvider, serviceName);
+            Object result = method.invoke(client, args);
+            if (socket != null) {
+                socket.setSoTimeout(soTimeout);
+            }
+            return result;
+        } catch (InvocationTargetException e) {
+            if (deadline != NO_DEADLINE && deadline - System.nanoTime() <= 0) {
+                throw new DeadlineExceededException("deadline exceeded in calling "
+                        + method.getName(), e.getCause());
+            }
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the original SO_TIMEOUT.
+     */
+    private static int setSoTimeout(Socket socket, long deadline) throws SocketException {
+        int soTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(remainingMillis(deadline));
+        return soTimeout;
+    }
+
+    /**
+     * @return the time left rounded up, at least 1ms (0 means no timeout for a socket).
+     */
+    private static int remainingMillis(long deadline) {
+        long remainingMillis = NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, remainingMillis));
+    }
+
+    /**
+     * the borrowing time comes out of the deadline, the connection isn't used if nothing left,
+     * which tells nothing about the server.
+     */
+    private void checkBorrowDeadline(ThriftServerInfo server, TTransport transport,
+            long deadline, Object[] trial) throws DeadlineExceededException {
+        if (deadline != NO_DEADLINE && deadline - System.nanoTime() <= 0) {
+            poolProvider.returnUnusedConnection(server, transport);
+            abandon(server, trial);
+            throw new DeadlineExceededException("deadline exceeded in borrowing a connection to "
+                    + server);
+        }
+    }
+
+    /**
+     * @return the earlier of the deadline of the current thread and the timeout of the iface
+     *         from now, {@link #NO_DEADLINE} if there is neither.
+     */
+    private static long deadlineOf(long timeoutNanos) {
+        ThriftDeadline current = ThriftDeadline.current();
+        long deadline;
+        if (timeoutNanos > 0) {
+            deadline = System.nanoTime() + timeoutNanos;
+            if (current != null && current.getDeadlineNanos() - deadline < 0) {
+                deadline = current.getDeadlineNanos();
+            }
+        } else if (current != null) {
+            deadline = current.getDeadlineNanos();
+        } else {
+            return NO_DEADLINE;
+        }
+        return deadline == NO_DEADLINE ? deadline + 1 : deadline;
+    }
+
+    /**
+     * @return a server other than the given one, {@code null} if there is none. No trial of
+     *         its circuit is taken, the attempt calling it takes one.
+     */
+    private ThriftServerInfo otherServer(ThriftServerInfo server) {
+        for (int i = 0; i < 3; i++) {
+            ThriftServerInfo other = selector.select(serverInfoManager,
+                    ThriftClientUtils.randomNextInt());
+            if (other != null && !other.equals(server) && isHealthy(other)
+                    && isAllowing(other)) {
+                return other;
+            }
+        }
+        // few servers, or the selector keeps picking the same one.
+        List<ThriftServerInfo> servers = serverInfoManager.getAll();
+        int offset = ThriftClientUtils.randomNextInt() & Integer.MAX_VALUE;
+        for (int i = 0; i < servers.size(); i++) {
+            ThriftServerInfo other = servers.get((offset + i) % servers.size());
+            if (!other.equals(server) && isHealthy(other) && isAllowing(other)) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TServiceClient, K, R> ThriftBatchResult<K, R> invokeAll(Class<X> ifaceClass,
+            BatchCall<X, K, R> call, Collection<K> keys, int parallelism) {
+        return invokeAll(ifaceClass, null, DEFAULT_PROTOCOL, call, keys, parallelism);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TServiceClient, K, R> ThriftBatchResult<K, R> invokeAll(Class<X> ifaceClass,
+            Function<TTransport, TProtocol> protocolProvider, BatchCall<X, K, R> call,
+            Collection<K> keys, int parallelism) {
+        return invokeAll(ifaceClass, null, protocolProvider, call, keys, parallelism);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <X extends TServiceClient, K, R> ThriftBatchResult<K, R> invokeAll(Class<X> ifaceClass,
+            String serviceName, Function<TTransport, TProtocol> protocolProvider,
+            BatchCall<X, K, R> call, Collection<K> keys, int parallelism) {
+        checkArgument(parallelism > 0, "parallelism must be positive.");
+        List<K> keyList = new ArrayList<>(keys);
+        Object[] results = new Object[keyList.size()];
+        Throwable[] failures = new Throwable[keyList.size()];
+        Constructor<X> clientConstructor = getClientConstructor(ifaceClass);
+        AtomicInteger nextKey = new AtomicInteger();
+        long deadline = deadlineOf(0);
+        int workers = Math.min(parallelism, keyList.size());
+        CountDownLatch done = new CountDownLatch(workers);
+        Runnable worker = () -> {
+            try {
+                callBatch(clientConstructor, protocolProvider, serviceName, call, keyList,
+                        results, failures, nextKey, deadline);
+            } finally {
+                done.countDown();
+            }
+        };
+        // the caller thread is one of the workers.
+        for (int i = 1; i < workers; i++) {
+            try {
+                callExecutor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                done.countDown();
+            }
+        }
+        if (workers > 0) {
+            worker.run();
+        }
+        Uninterruptibles.awaitUninterruptibly(done);
+        return new ThriftBatchResult<>(keyList, results, failures);
+    }
+
+    /**
+     * takes the keys one by one until all are taken, over one borrowed connection as long as
+     * the calls succeed. The deadline of the caller thread applies to all the calls.
+     *
+     * @param serviceName the service of a multiplexed iface, {@code null} for a plain one.
+     */
+    private <X extends TServiceClient, K, R> void callBatch(Constructor<X> clientConstructor,
+            Function<TTransport, TProtocol> protocolProvider, String serviceName,
+            BatchCall<X, K, R> call, List<K> keys, Object[] results, Throwable[] failures,
+            AtomicInteger nextKey, long deadline) {
+        int hash = ThriftClientUtils.randomNextInt();
+        Object[] trial = newTrial();
+        ThriftServerInfo server = null;
+        TTransport transport = null;
+        Socket socket = null;
+        int soTimeout = 0;
+        X client = null;
+        int index;
+        while ((index = nextKey.getAndIncrement()) < keys.size()) {
+            if (deadline != NO_DEADLINE && deadline - System.nanoTime() <= 0) {
+                failures[index] = new DeadlineExceededException("deadline exceeded in batch.");
+                continue;
+            }
+            if (transport == null) {
+                try {
+                    do {
+                        server = select(hash, trial);
+                        transport = borrow(server);
+                    } while (transport == null);
+                    socket = deadline == NO_DEADLINE ? null : ThriftClientUtils
+                            .getSocket(transport);
+                    soTimeout = socket == null ? 0 : socket.getSoTimeout();
+                    client = clientConstructor.getDeclaringClass().cast(connectionClients.get(
+                            transport, clientConstructor, protocolProvider, serviceName));
+                } catch (Throwable e) {
+                    if (transport != null) {
+                        poolProvider.returnBrokenConnection(server, transport);
+                        leave(server);
+                        transport = null;
+                    }
+                    failures[index] = e;
+                    continue;
+                }
+            }
+            boolean success = false;
+            selector.onCallStart(server);
+            long start = System.nanoTime();
+            try {
+                if (socket != null) {
+                    setSoTimeout(socket, deadline);
+                } else if (deadline != NO_DEADLINE) {
+                    poolProvider.setTimeout(transport, remainingMillis(deadline));
+                }
+                results[index] = call.call(client, keys.get(index));
+                success = true;
+            } catch (Throwable e) {
+                failures[index] = deadline != NO_DEADLINE && deadline - System.nanoTime() <= 0
+                        ? new DeadlineExceededException("deadline exceeded in batch.", e) : e;
+            } finally {
+                long latency = System.nanoTime() - start;
+                metrics.onCall(server, BATCH_METHOD, latency, success);
+                selector.onCallEnd(server);
+                report(server, success, latency, trial);
+                if (!success) {
+                    poolProvider.returnBrokenConnection(server, transport);
+                    leave(server);
+                    transport = null;
+                }
+            }
+        }
+        if (transport != null) {
+            try {
+                if (socket != null) {
+                    socket.setSoTimeout(soTimeout);
+                }
+                poolProvider.returnConnection(server, transport);
+            } catch (SocketException e) {
+                poolProvider.returnBrokenConnection(server, transport);
+            }
+            leave(server);
+        }
+    }
+
+    /**
+     * @param trial gets the token of the circuit of the server, see {@link #newTrial()}.
+     * @return the server of the call, a slot of its concurrency limit is taken then.
+     */
+    private ThriftServerInfo select(int hash, Object[] trial)
+            throws ConcurrencyLimitExceededException {
+        ThriftServerInfo server = selector.select(serverInfoManager, hash);
+        if (server != null && !(isHealthy(server) && admit(server, trial))) {
+            ThriftServerInfo selected = server;
+            server = admittedServer(hash, selected, trial);
+            if (server == null && concurrencyLimiters != null
+                    && concurrencyLimiters.isLimited(selected)) {
+                throw new ConcurrencyLimitExceededException(
+                        "all servers are at their concurrency limits.");
+            }
+        }
+        if (server == null) {
+            metrics.onNoBackend();
+            throw new NoBackendException();
+        }
+        return server;
+    }
+
+    /**
+     * the server picked by the selector is failed over, at its concurrency limit, or its
+     * circuit is open (or it's half-open without trials left), so the next server of the hash
+     * which takes the call. The failed over servers are only taken if all are failed.
+     */
+    private ThriftServerInfo admittedServer(int hash, ThriftServerInfo selected,
+            Object[] trial) {
+        List<ThriftServerInfo> servers = serverInfoManager.getAll();
+        int offset = hash & Integer.MAX_VALUE;
+        for (int i = 0; i < servers.size(); i++) {
+            ThriftServerInfo server = servers.get((offset + i) % servers.size());
+            if (!server.equals(selected) && isHealthy(server) && admit(server, trial)) {
+                return server;
+            }
+        }
+        if (healthyServers != null && healthyServers.get().isEmpty()) {
+            for (int i = 0; i < servers.size(); i++) {
+                ThriftServerInfo server = servers.get((offset + i) % servers.size());
+                if (admit(server, trial)) {
+                    return server;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * takes a slot of the concurrency limit and a trial of the circuit of the server.
+     */
+    private boolean admit(ThriftServerInfo server, Object[] trial) {
+        if (concurrencyLimiters != null && !concurrencyLimiters.tryAcquire(server)) {
+            metrics.onLimitExceeded(server);
+            return false;
+        }
+        if (trial != null && (trial[0] = circuitBreakers.allow(server)) == null) {
+            leave(server);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * gives back the slot of the concurrency limit taken for the call.
+     */
+    private void leave(ThriftServerInfo server) {
+        if (concurrencyLimiters != null) {
+            concurrencyLimiters.release(server);
+        }
+    }
+
+    /**
+     * gives back the slot and the trial taken by {@link #admit} for a call without an outcome.
+     */
+    private void abandon(ThriftServerInfo server, Object[] trial) {
+        if (trial != null) {
+            circuitBreakers.giveBack(server, trial[0]);
+            trial[0] = CircuitBreakers.NO_TRIAL;
+        }
+        leave(server);
+    }
+
+    /**
+     * @return false if the server is failed over.
+     */
+    private boolean isHealthy(ThriftServerInfo server) {
+        return healthyServers == null || healthyServers.isHealthy(server);
+    }
+
+    /**
+     * @return false if the circuit of the server lets no call through now, no trial is taken.
+     */
+    private boolean isAllowing(ThriftServerInfo server) {
+        return circuitBreakers == null || circuitBreakers.isAllowing(server);
+    }
+
+    /**
+     * @return the holder of the token of the circuit of a call, which is given by
+     *         {@link CircuitBreakers#allow} and tells a trial of a half-open circuit from a call
+     *         let through before it opened. {@code null} if there are no circuit breakers.
+     */
+    private Object[] newTrial() {
+        return circuitBreakers == null ? null : new Object[1];
+    }
+
+    /**
+     * returns the connection of a call and its slot, after {@link #report}.
+     */
+    private void release(ThriftServerInfo server, TTransport transport, boolean success,
+            long latencyNanos, Object[] trial) {
+        report(server, success, latencyNanos, trial);
+        if (success) {
+            poolProvider.returnConnection(server, transport);
+        } else {
+            poolProvider.returnBrokenConnection(server, transport);
+        }
+        leave(server);
+    }
+
+    /**
+     * tells the circuit and the concurrency limit of the server how a call went. The trial is
+     * used up, the next calls over the same connection don't count as trials.
+     */
+    private void report(ThriftServerInfo server, boolean success, long latencyNanos,
+            Object[] trial) {
+        if (circuitBreakers != null) {
+            if (success) {
+                circuitBreakers.onSuccess(server, trial[0]);
+            } else {
+                circuitBreakers.onFailure(server);
+            }
+            trial[0] = CircuitBreakers.NO_TRIAL;
+        }
+        if (concurrencyLimiters != null) {
+            concurrencyLimiters.onSample(server, latencyNanos, success);
+        }
+    }
+
+    /**
+     * @return {@code null} if it fails, the server is invalid then, or it's a failure of its
+     *         circuit if there are circuit breakers. The slot taken for the call is given
+     *         back too.
+     */
+    private TTransport borrow(ThriftServerInfo server) {
+        long borrowStart = System.nanoTime();
+        try {
+            TTransport transport = poolProvider.getConnection(server);
+            metrics.onBorrow(server, System.nanoTime() - borrowStart);
+            return transport;
+        } catch (Exception e) {
+            metrics.onBorrowFailure(server, e);
+            leave(server);
+            if (circuitBreakers != null) {
+                logger.error("Create TTransport connecting to {} throws exception.", server, e);
+                circuitBreakers.onFailure(server);
+            } else {
+                logger.error("Create TTransport connecting to {} throws exception, invalid it.",
+                        server, e);
+                serverInfoManager.invalid(server);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * the proxy class only depends on the iface class (the method filter is derived from it),
+     * so it's generated once and only the instantiation is paid per call.
+     */
+    @SuppressWarnings("unchecked")
+    private static <X extends TServiceClient> Constructor<X> getProxyConstructor(
+            Class<X> ifaceClass) {
+        return (Constructor<X>) proxyConstructorCache.computeIfAbsent(ifaceClass, c -> {
+            Set<String> methodNames = ThriftClientUtils.getInterfaceMethodNames(c);
+            ProxyFactory factory = new ProxyFactory();
+            factory.setSuperclass(c);
+            factory.setFilter(m -> methodNames.contains(m.getName()));
+            try {
+                return factory.createClass().getConstructor(TProtocol.class);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("fail to create proxy.", e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <X extends TServiceClient> Constructor<X> getClientConstructor(
+            Class<X> ifaceClass) {
+        return (Constructor<X>) clientConstructorCache.computeIfAbsent(ifaceClass, c -> {
+            try {
+                return c.getConstructor(TProtocol.class);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("fail to create proxy.", e);
+            }
+        });
+    }
+
+    private static class CallExecutorHolder {
+
+        private static final ExecutorService INSTANCE = Executors
+                .newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("thrift-call-%d")
+                        .setDaemon(true).build());
+    }
+
+    private static final class SharedIfaceKey {
+
+        private final Class<?> ifaceClass;
+
+        private final String serviceName;
+
+        private final Function<TTransport, TProtocol> protocolProvider;
+
+        private final ToIntFunction<Object[]> hashStrategy;
+
+        private final long timeoutNanos;
+
+        private final int hashCode;
+
+        private SharedIfaceKey(Class<?> ifaceClass, String serviceName,
+                Function<TTransport, TProtocol> protocolProvider,
+                ToIntFunction<Object[]> hashStrategy, long timeoutNanos) {
+            this.ifaceClass = ifaceClass;
+            this.serviceName = serviceName;
+            this.protocolProvider = protocolProvider;
+            this.hashStrategy = hashStrategy;
+            this.timeoutNanos = timeoutNanos;
+            this.hashCode = Objects.hash(ifaceClass, serviceName, protocolProvider, hashStrategy,
+                    timeoutNanos);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SharedIfaceKey)) {
+                return false;
+            }
+            SharedIfaceKey other = (SharedIfaceKey) obj;
+            return ifaceClass == other.ifaceClass && Objects.equals(serviceName, other.serviceName)
+                    && protocolProvider == other.protocolProvider
+                    && hashStrategy == other.hashStrategy && timeoutNanos == other.timeoutNanos;
+        }
     }
 
 }
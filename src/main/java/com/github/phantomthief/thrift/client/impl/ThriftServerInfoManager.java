@@ -1,105 +1,443 @@
 package com.github.phantomthief.thrift.client.impl;
 
+import com.github.phantomthief.thrift.client.metrics.LatencyHistogram;
 import com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider;
 import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 /**
  * Created by fafu on 2017/4/18.
  */
 public class ThriftServerInfoManager extends Thread {
     private static final Logger logger = LoggerFactory.getLogger(ThriftServerInfoManager.class);
-    private CopyOnWriteArrayList<ThriftServerInfo> storage;
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+    private static final long PROBE_TICK_MILLIS = 100;
+    private static final int DEFAULT_PROBE_PARALLELISM = 16;
+    private AtomicInteger inc = new AtomicInteger(0);
 
+    private Function<ThriftServerInfo,Boolean> validator;
 
-    private CopyOnWriteArrayList<ThriftServerInfo> invalidStorage = new CopyOnWriteArrayList<>();
+    private final int virtualNodes;
 
-    private AtomicInteger inc = new AtomicInteger(0);
+    /**
+     * the servers, replaced as a whole when they change.
+     */
+    private volatile RoutingTable table;
 
-    private Function<ThriftServerInfo,Boolean> validator;
+    private final ConcurrentMap<ThriftServerInfo, ProbeState> probes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger probesInFlight = new AtomicInteger();
+
+    private final LatencyHistogram probeLatency = new LatencyHistogram();
+
+    private final LatencyHistogram recoveryTime = new LatencyHistogram();
+
+    private volatile int probeParallelism = DEFAULT_PROBE_PARALLELISM;
+
+    private volatile long probeTimeoutNanos = SECONDS.toNanos(3);
+
+    private volatile long probeInitialBackoffNanos = SECONDS.toNanos(1);
+
+    private volatile long probeMaxBackoffNanos = SECONDS.toNanos(30);
+
+    /**
+     * guards the changes of the servers, a j.u.c lock instead of a monitor so a virtual thread
+     * invalidating a server doesn't pin its carrier.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
 
     public ThriftServerInfoManager(ThriftConnectionPoolProvider provider,Function<ThriftServerInfo,Boolean> validator) {
-        setDaemon(true);
-        storage = new CopyOnWriteArrayList<>(storage);
-        this.validator = validator;
+        this(new ArrayList<>(), provider, validator);
     }
 
     public ThriftServerInfoManager(List<ThriftServerInfo> list,ThriftConnectionPoolProvider provider,Function<ThriftServerInfo,Boolean> validator) {
-        storage = new CopyOnWriteArrayList<>(list);
+        this(list, provider, validator, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param virtualNodes points each server takes on the hash ring, more points means the
+     *        keys are spread more evenly over the servers.
+     */
+    public ThriftServerInfoManager(List<ThriftServerInfo> list,
+            ThriftConnectionPoolProvider provider, Function<ThriftServerInfo, Boolean> validator,
+            int virtualNodes) {
+        checkArgument(virtualNodes > 0, "virtualNodes must be positive.");
         setDaemon(true);
         this.validator = validator;
+        this.virtualNodes = virtualNodes;
+        this.table = RoutingTable.build(0, list, ImmutableSet.of(), virtualNodes);
     }
 
+    /**
+     * adds a server as valid, nothing if it's already valid. An invalid one is made valid.
+     */
     public void add(ThriftServerInfo info) {
-        storage.add(info);
+        lock.lock();
+        try {
+            RoutingTable current = table;
+            if (current.getValid().contains(info)) {
+                return;
+            }
+            List<ThriftServerInfo> valid = new ArrayList<>(current.getValid());
+            valid.add(info);
+            publish(valid, without(current.getInvalid(), info));
+            probes.remove(info);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void remove(ThriftServerInfo info){
-        storage.remove(info);
-        invalidStorage.remove(info);
+    public void remove(ThriftServerInfo info){
+        lock.lock();
+        try {
+            RoutingTable current = table;
+            if (current.getValid().contains(info)) {
+                publish(without(current.getValid(), info), without(current.getInvalid(), info));
+            } else if (current.getInvalid().contains(info)) {
+                table = current.withInvalid(without(current.getInvalid(), info));
+            }
+            // after the table, so the checking thread sees it gone if it recreates the state.
+            probes.remove(info);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void invalid(ThriftServerInfo info) {
-        storage.remove(info);
-        invalidStorage.add(info);
+    /**
+     * every failing call might invalidate its server, so an invalid server returns without
+     * locking or copying.
+     */
+    public void invalid(ThriftServerInfo info) {
+        if (table.getInvalid().contains(info)) {
+            return;
+        }
+        lock.lock();
+        try {
+            RoutingTable current = table;
+            if (current.getInvalid().contains(info)) {
+                return;
+            }
+            probes.putIfAbsent(info, new ProbeState(System.nanoTime()));
+            List<ThriftServerInfo> invalid = new ArrayList<>(current.getInvalid());
+            invalid.add(info);
+            if (current.getValid().contains(info)) {
+                publish(without(current.getValid(), info), invalid);
+            } else {
+                table = current.withInvalid(invalid);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void valid(ThriftServerInfo info) {
-        invalidStorage.remove(info);
-        storage.add(info);
+    public void valid(ThriftServerInfo info) {
+        lock.lock();
+        try {
+            RoutingTable current = table;
+            probes.remove(info);
+            List<ThriftServerInfo> invalid = without(current.getInvalid(), info);
+            if (!current.getValid().contains(info)) {
+                List<ThriftServerInfo> valid = new ArrayList<>(current.getValid());
+                valid.add(info);
+                publish(valid, invalid);
+            } else if (invalid.size() != current.getInvalid().size()) {
+                table = current.withInvalid(invalid);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public ThriftServerInfo get() {
+    /**
+     * makes a server probed valid again, unless it's no longer invalid: removed (or made valid)
+     * while it was probed.
+     */
+    private boolean recover(ThriftServerInfo info) {
+        lock.lock();
         try {
-            if (storage.size() > 0) {
-                int index = inc.getAndIncrement();
-                if (index < 0) index = 0;
-                return storage.get(index % storage.size());
+            if (!table.getInvalid().contains(info)) {
+                return false;
             }
-            return null;
-        }catch (Exception e){
-            logger.error("",e);
+            valid(info);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * only called with the lock held.
+     */
+    private void publish(Collection<ThriftServerInfo> valid, Collection<ThriftServerInfo> invalid) {
+        table = RoutingTable.build(table.getVersion() + 1, valid, invalid, virtualNodes);
+    }
+
+    private static List<ThriftServerInfo> without(Collection<ThriftServerInfo> servers,
+            ThriftServerInfo info) {
+        List<ThriftServerInfo> result = new ArrayList<>(servers);
+        result.removeIf(info::equals);
+        return result;
+    }
+
+    /**
+     * the same hash goes to the same server as long as it stays valid, when the servers
+     * change only about 1/N of the hashes move to another server.
+     *
+     * @return {@code null} if there is no valid server.
+     */
+    public ThriftServerInfo get(int hash) {
+        return table.getRing().get(hash);
+    }
+
+    public ThriftServerInfo get() {
+        List<ThriftServerInfo> valid = table.getValid();
+        if (valid.isEmpty()) {
             return null;
         }
+        return valid.get((inc.getAndIncrement() & Integer.MAX_VALUE) % valid.size());
     }
 
+    /**
+     * starts the checking thread, the clients sharing this manager could all call it.
+     */
+    @Override
+    public synchronized void start() {
+        if (getState() == State.NEW) {
+            super.start();
+        }
+    }
+
+    /**
+     * probes the invalid servers on a pool of {@code probeParallelism} threads, each one after
+     * its backoff, so a slow or hung probe doesn't hold up the others.
+     */
     @Override
     public void run() {
-        while(true){
-            List<ThriftServerInfo> becomeValid = new ArrayList<>();
-            if(invalidStorage != null){
-                for(ThriftServerInfo serverInfo:invalidStorage){
-                    try {
-                        boolean ret = validator.apply(serverInfo);
-                        if(ret){
-                            becomeValid.add(serverInfo);
-                        }
-                    } catch (Exception e) {
-                        logger.error("ThriftServerInfo '{}:{}' is still invalid.",
-                                serverInfo.getHost(),serverInfo.getPort());
-                    }
+        ThreadPoolExecutor probeExecutor = new ThreadPoolExecutor(probeParallelism,
+                probeParallelism, 1, MINUTES, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("thrift-probe-%d").setDaemon(true)
+                        .build());
+        probeExecutor.allowCoreThreadTimeOut(true);
+        try {
+            while (true) {
+                try {
+                    probe(probeExecutor);
+                } catch (Throwable e) {
+                    logger.error("fail to probe the invalid servers.", e);
                 }
-                becomeValid.forEach(i->{
-                    valid(i);
-                });
+                Thread.sleep(PROBE_TICK_MILLIS);
             }
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                logger.error("",e);
-                return;
+        } catch (InterruptedException e) {
+            logger.error("", e);
+        } finally {
+            probeExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * only called by the checking thread, so the probe states need no locking.
+     */
+    private void probe(ExecutorService probeExecutor) {
+        long now = System.nanoTime();
+        for (ThriftServerInfo server : table.getInvalid()) {
+            ProbeState state = probes.get(server);
+            if (state == null) {
+                state = probes.computeIfAbsent(server, s -> new ProbeState(now));
+                if (!table.getInvalid().contains(server)) {
+                    // removed since the snapshot.
+                    probes.remove(server, state);
+                    continue;
+                }
+            }
+            Probe probe = state.probe;
+            if (probe == null) {
+                if (now - state.nextProbeNanos >= 0 && probesInFlight.get() < probeParallelism) {
+                    probesInFlight.incrementAndGet();
+                    state.probe = probe = new Probe(server, now);
+                    probe.future = probeExecutor.submit(probe);
+                }
+                continue;
+            }
+            boolean recovered;
+            if (probe.future.isDone()) {
+                recovered = isRecovered(probe);
+            } else if (now - probe.submitNanos > probeTimeoutNanos) {
+                probe.future.cancel(true);
+                if (!probe.started) {
+                    probe.release();
+                }
+                logger.warn("probe of ThriftServerInfo '{}:{}' timed out.", server.getHost(),
+                        server.getPort());
+                recovered = false;
+            } else {
+                continue;
             }
+            state.probe = null;
+            if (recovered) {
+                if (recover(server)) {
+                    recoveryTime.record(now - state.invalidSinceNanos);
+                }
+            } else {
+                state.nextProbeNanos = now + backoffNanos(++state.failures);
+            }
+        }
+    }
+
+    private boolean isRecovered(Probe probe) {
+        try {
+            return probe.future.get();
+        } catch (Exception e) {
+            logger.error("ThriftServerInfo '{}:{}' is still invalid.", probe.server.getHost(),
+                    probe.server.getPort());
+            return false;
         }
     }
 
+    /**
+     * exponential backoff with jitter, so the servers came back aren't probed all at once.
+     */
+    private long backoffNanos(int failures) {
+        long backoff = probeInitialBackoffNanos << Math.min(failures, 30);
+        if (backoff <= 0 || backoff > probeMaxBackoffNanos) {
+            backoff = probeMaxBackoffNanos;
+        }
+        return ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+    }
+
+    /**
+     * @param probeParallelism max probes running at the same time, set it before
+     *        {@link #start()}.
+     */
+    public void setProbeParallelism(int probeParallelism) {
+        checkArgument(probeParallelism > 0, "probeParallelism must be positive.");
+        this.probeParallelism = probeParallelism;
+    }
+
+    /**
+     * @param probeTimeoutMillis a probe not returned in it is cancelled and counted as failed.
+     */
+    public void setProbeTimeoutMillis(long probeTimeoutMillis) {
+        checkArgument(probeTimeoutMillis > 0, "probeTimeoutMillis must be positive.");
+        this.probeTimeoutNanos = MILLISECONDS.toNanos(probeTimeoutMillis);
+    }
+
+    /**
+     * @param initialMillis delay of the first probe of an invalid server, doubled after each
+     *        failed probe.
+     * @param maxMillis max delay between the probes of a server.
+     */
+    public void setProbeBackoffMillis(long initialMillis, long maxMillis) {
+        checkArgument(initialMillis > 0 && maxMillis >= initialMillis,
+                "initialMillis must be positive and not greater than maxMillis.");
+        this.probeInitialBackoffNanos = MILLISECONDS.toNanos(initialMillis);
+        this.probeMaxBackoffNanos = MILLISECONDS.toNanos(maxMillis);
+    }
+
+    /**
+     * @return latencies of the probes in nanoseconds.
+     */
+    public LatencyHistogram getProbeLatency() {
+        return probeLatency;
+    }
+
+    /**
+     * @return time from invalid to valid again of the recovered servers in nanoseconds.
+     */
+    public LatencyHistogram getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    /**
+     * @return the valid servers, an immutable snapshot.
+     */
     public List<ThriftServerInfo> getAll() {
-        return storage;
+        return table.getValid();
+    }
+
+    /**
+     * @return increased when the servers or their validity change, so a view derived from
+     *         them could be cached until it changes.
+     */
+    public long getVersion() {
+        return table.getVersion();
+    }
+
+    private final class ProbeState {
+
+        private final long invalidSinceNanos;
+
+        private long nextProbeNanos;
+
+        private int failures;
+
+        private Probe probe;
+
+        private ProbeState(long invalidSinceNanos) {
+            this.invalidSinceNanos = invalidSinceNanos;
+            this.nextProbeNanos = invalidSinceNanos + backoffNanos(0);
+        }
+    }
+
+    private final class Probe implements Callable<Boolean> {
+
+        private final ThriftServerInfo server;
+
+        private final long submitNanos;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private volatile boolean started;
+
+        private Future<Boolean> future;
+
+        private Probe(ThriftServerInfo server, long submitNanos) {
+            this.server = server;
+            this.submitNanos = submitNanos;
+        }
+
+        @Override
+        public Boolean call() {
+            started = true;
+            long start = System.nanoTime();
+            try {
+                return Boolean.TRUE.equals(validator.apply(server));
+            } finally {
+                probeLatency.record(System.nanoTime() - start);
+                release();
+            }
+        }
+
+        /**
+         * a hung probe keeps its slot until it returns, one cancelled before running doesn't.
+         */
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                probesInFlight.decrementAndGet();
+            }
+        }
     }
 }
@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import com.github.phantomthief.thrift.client.metrics.ThriftClientMetrics;
+import com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * opens the connections of a {@link WarmUpPolicy} by
+ * {@link ThriftConnectionPoolProvider#warmUp}, in parallel on a few threads which go away when
+ * it's done.
+ *
+ * @author w.vela
+ */
+final class WarmUp {
+
+    private static final Logger logger = getLogger(WarmUp.class);
+    private static final int MAX_THREADS = 32;
+
+    private WarmUp() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * returns at once, or when enough connections are opened if the policy blocks. How long it
+     * took is logged and given to the metrics when all the attempts are done.
+     */
+    static void run(WarmUpPolicy policy, List<ThriftServerInfo> servers,
+            ThriftConnectionPoolProvider poolProvider, ThriftClientMetrics metrics) {
+        int total = servers.size() * policy.getConnectionsPerServer();
+        if (total == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        int required = (int) Math.ceil(total * policy.getBlockPercent() / 100.0);
+        AtomicInteger opened = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(total);
+        CountDownLatch enough = new CountDownLatch(1);
+        int threads = Math.min(total, MAX_THREADS);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS,
+                new LinkedBlockingQueue<>(), new ThreadFactoryBuilder()
+                        .setNameFormat("thrift-warm-up-%d").setDaemon(true).build());
+        // one connection to each server a round, so every server gets some before blocking ends.
+        for (int i = 0; i < policy.getConnectionsPerServer(); i++) {
+            for (ThriftServerInfo server : servers) {
+                executor.execute(() -> {
+                    int openedNow;
+                    try {
+                        poolProvider.warmUp(server, policy.getConnectTimeoutMillis());
+                        openedNow = opened.incrementAndGet();
+                    } catch (Throwable e) {
+                        logger.warn("fail to warm up a connection to {}", server, e);
+                        openedNow = opened.get();
+                    }
+                    boolean last = remaining.decrementAndGet() == 0;
+                    if (openedNow >= required || last) {
+                        enough.countDown();
+                    }
+                    if (last) {
+                        long elapsedNanos = System.nanoTime() - start;
+                        logger.info("warmed up {}/{} connections to {} servers in {}ms.",
+                                opened.get(), total, servers.size(),
+                                NANOSECONDS.toMillis(elapsedNanos));
+                        metrics.onWarmUp(opened.get(), total, elapsedNanos);
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        if (required > 0) {
+            if (policy.getBlockTimeoutMillis() > 0) {
+                Uninterruptibles.awaitUninterruptibly(enough, policy.getBlockTimeoutMillis(),
+                        MILLISECONDS);
+            } else {
+                Uninterruptibles.awaitUninterruptibly(enough);
+            }
+            logger.info("{}/{} connections are opened in {}ms before the client starts.",
+                    opened.get(), total, NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+}
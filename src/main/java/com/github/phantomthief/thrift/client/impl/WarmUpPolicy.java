@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>
+ * WarmUpPolicy class.
+ * </p>
+ * <p>
+ * How {@link ThriftClientImpl} opens connections to all the servers in parallel when it's
+ * created, so the first calls after a deploy don't pay for connecting.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class WarmUpPolicy {
+
+    private final int connectionsPerServer;
+
+    private final int connectTimeoutMillis;
+
+    private final int blockPercent;
+
+    private final long blockTimeoutMillis;
+
+    /**
+     * <p>
+     * Constructor for WarmUpPolicy, the warm up runs in background.
+     * </p>
+     *
+     * @param connectionsPerServer connections opened to each server.
+     * @param connectTimeoutMillis connect timeout of the connections opened.
+     */
+    public WarmUpPolicy(int connectionsPerServer, int connectTimeoutMillis) {
+        this(connectionsPerServer, connectTimeoutMillis, 0, 0);
+    }
+
+    /**
+     * <p>
+     * Constructor for WarmUpPolicy.
+     * </p>
+     *
+     * @param connectionsPerServer connections opened to each server.
+     * @param connectTimeoutMillis connect timeout of the connections opened.
+     * @param blockPercent creating the client blocks until this percent of the connections
+     *        are opened or all the attempts are done, 0 for not blocking.
+     * @param blockTimeoutMillis creating the client blocks for it at most, 0 for no limit.
+     */
+    public WarmUpPolicy(int connectionsPerServer, int connectTimeoutMillis, int blockPercent,
+            long blockTimeoutMillis) {
+        checkArgument(connectionsPerServer > 0, "connectionsPerServer must be positive.");
+        checkArgument(connectTimeoutMillis > 0, "connectTimeoutMillis must be positive.");
+        checkArgument(blockPercent >= 0 && blockPercent <= 100,
+                "blockPercent must be in [0, 100].");
+        checkArgument(blockTimeoutMillis >= 0, "blockTimeoutMillis must not be negative.");
+        this.connectionsPerServer = connectionsPerServer;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.blockPercent = blockPercent;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    public int getConnectionsPerServer() {
+        return connectionsPerServer;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getBlockPercent() {
+        return blockPercent;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.metrics;
+
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+
+/**
+ * <p>
+ * ThriftClientMetrics interface.
+ * </p>
+ * <p>
+ * Listener of the calls made by a client, it's called on the calling thread, implementations
+ * should be fast, thread safe and not allocate.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public interface ThriftClientMetrics {
+
+    /**
+     * a listener does nothing.
+     */
+    ThriftClientMetrics NONE = new ThriftClientMetrics() {
+    };
+
+    /**
+     * a connection was borrowed from the pool.
+     *
+     * @param thriftServerInfo the server of the connection.
+     * @param waitNanos time spent in borrowing.
+     */
+    default void onBorrow(ThriftServerInfo thriftServerInfo, long waitNanos) {
+    }
+
+    /**
+     * fail to borrow a connection from the pool.
+     *
+     * @param thriftServerInfo the server.
+     * @param cause the exception thrown by the pool.
+     */
+    default void onBorrowFailure(ThriftServerInfo thriftServerInfo, Throwable cause) {
+    }
+
+    /**
+     * there is no server to call, a {@link com.github.phantomthief.thrift.client.exception.NoBackendException}
+     * is thrown.
+     */
+    default void onNoBackend() {
+    }
+
+    /**
+     * a call didn't go to the server as it's at its concurrency limit, the call goes to
+     * another server or it's rejected.
+     *
+     * @param thriftServerInfo the server.
+     */
+    default void onLimitExceeded(ThriftServerInfo thriftServerInfo) {
+    }
+
+    /**
+     * a call was answered by the response cache, no connection was borrowed.
+     *
+     * @param method name of the method.
+     */
+    default void onCacheHit(String method) {
+    }
+
+    /**
+     * a call of a cached method wasn't in the response cache, the server is called.
+     *
+     * @param method name of the method.
+     */
+    default void onCacheMiss(String method) {
+    }
+
+    /**
+     * a result was evicted from the response cache, by its size limit or as it expired.
+     *
+     * @param method name of the method.
+     */
+    default void onCacheEviction(String method) {
+    }
+
+    /**
+     * a call waits for the same call in flight instead of calling the server.
+     *
+     * @param method name of the method.
+     */
+    default void onCoalesced(String method) {
+    }
+
+    /**
+     * a call finished.
+     *
+     * @param thriftServerInfo the server called.
+     * @param method name of the method.
+     * @param latencyNanos time spent in the call, borrowing is not included.
+     * @param success false if the call threw an exception.
+     */
+    default void onCall(ThriftServerInfo thriftServerInfo, String method, long latencyNanos,
+            boolean success) {
+    }
+
+    /**
+     * a frame was written by a
+     * {@link com.github.phantomthief.thrift.client.transport.CompressedFramedTransport}.
+     *
+     * @param thriftServerInfo the server of the connection.
+     * @param rawBytes size of the frame.
+     * @param wireBytes size sent, a frame not compressed is sent with one more byte.
+     * @param cpuNanos time spent in compressing, 0 if it's too small to try.
+     */
+    default void onCompress(ThriftServerInfo thriftServerInfo, int rawBytes, int wireBytes,
+            long cpuNanos) {
+    }
+
+    /**
+     * a frame was read by a
+     * {@link com.github.phantomthief.thrift.client.transport.CompressedFramedTransport}.
+     *
+     * @param thriftServerInfo the server of the connection.
+     * @param wireBytes size received.
+     * @param rawBytes size of the frame, after decompressing.
+     * @param cpuNanos time spent in decompressing, 0 if it wasn't compressed.
+     */
+    default void onDecompress(ThriftServerInfo thriftServerInfo, int wireBytes, int rawBytes,
+            long cpuNanos) {
+    }
+
+    /**
+     * the warm up of the connections is done, called on a warming thread.
+     *
+     * @param opened connections opened.
+     * @param total connections tried.
+     * @param elapsedNanos time spent in the warm up.
+     */
+    default void onWarmUp(int opened, int total, long elapsedNanos) {
+    }
+}
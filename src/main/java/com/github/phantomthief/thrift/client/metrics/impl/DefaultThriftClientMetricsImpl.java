@@ -0,0 +1,240 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.metrics.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.phantomthief.thrift.client.metrics.LatencyHistogram;
+import com.github.phantomthief.thrift.client.metrics.ThriftClientMetrics;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+
+/**
+ * <p>
+ * DefaultThriftClientMetricsImpl class.
+ * </p>
+ * <p>
+ * Keeps latency histograms (in microseconds) per server and per method, borrow wait histograms
+ * and failure counters per server, the compression of the frames per server, the counters of
+ * the response cache and the coalesced calls. The histograms of a server or a method are created by its
+ * first call, later calls only look them up and record.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class DefaultThriftClientMetricsImpl implements ThriftClientMetrics {
+
+    private final ConcurrentMap<ThriftServerInfo, ServerMetrics> servers = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LatencyHistogram> methods = new ConcurrentHashMap<>();
+
+    private final LongAdder noBackend = new LongAdder();
+
+    private final LongAdder cacheHits = new LongAdder();
+
+    private final LongAdder cacheMisses = new LongAdder();
+
+    private final LongAdder cacheEvictions = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    /** {@inheritDoc} */
+    @Override
+    public void onBorrow(ThriftServerInfo thriftServerInfo, long waitNanos) {
+        server(thriftServerInfo).borrowWait.record(waitNanos / 1000);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onBorrowFailure(ThriftServerInfo thriftServerInfo, Throwable cause) {
+        server(thriftServerInfo).borrowFailures.increment();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onNoBackend() {
+        noBackend.increment();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onCacheHit(String method) {
+        cacheHits.increment();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onCacheMiss(String method) {
+        cacheMisses.increment();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onCacheEviction(String method) {
+        cacheEvictions.increment();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onCoalesced(String method) {
+        coalesced.increment();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onCall(ThriftServerInfo thriftServerInfo, String method, long latencyNanos,
+            boolean success) {
+        long latencyMicros = latencyNanos / 1000;
+        ServerMetrics serverMetrics = server(thriftServerInfo);
+        serverMetrics.latency.record(latencyMicros);
+        if (!success) {
+            serverMetrics.failures.increment();
+        }
+        LatencyHistogram methodLatency = methods.get(method);
+        if (methodLatency == null) {
+            methodLatency = methods.computeIfAbsent(method, m -> new LatencyHistogram());
+        }
+        methodLatency.record(latencyMicros);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onCompress(ThriftServerInfo thriftServerInfo, int rawBytes, int wireBytes,
+            long cpuNanos) {
+        server(thriftServerInfo).compression.record(rawBytes, wireBytes, cpuNanos);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onDecompress(ThriftServerInfo thriftServerInfo, int wireBytes, int rawBytes,
+            long cpuNanos) {
+        server(thriftServerInfo).compression.record(rawBytes, wireBytes, cpuNanos);
+    }
+
+    private ServerMetrics server(ThriftServerInfo thriftServerInfo) {
+        ServerMetrics serverMetrics = servers.get(thriftServerInfo);
+        if (serverMetrics == null) {
+            serverMetrics = servers.computeIfAbsent(thriftServerInfo, s -> new ServerMetrics());
+        }
+        return serverMetrics;
+    }
+
+    /**
+     * @return call latency in microseconds by server.
+     */
+    public Map<ThriftServerInfo, LatencyHistogram> getServerLatencies() {
+        Map<ThriftServerInfo, LatencyHistogram> result = new HashMap<>();
+        servers.forEach((server, metrics) -> result.put(server, metrics.latency));
+        return result;
+    }
+
+    /**
+     * @return call latency in microseconds by method name.
+     */
+    public Map<String, LatencyHistogram> getMethodLatencies() {
+        return Collections.unmodifiableMap(methods);
+    }
+
+    /**
+     * @return call latency in microseconds, {@code null} if the server was never called.
+     */
+    public LatencyHistogram getLatency(ThriftServerInfo thriftServerInfo) {
+        ServerMetrics serverMetrics = servers.get(thriftServerInfo);
+        return serverMetrics == null ? null : serverMetrics.latency;
+    }
+
+    /**
+     * @return borrow wait time in microseconds, {@code null} if the server was never called.
+     */
+    public LatencyHistogram getBorrowWait(ThriftServerInfo thriftServerInfo) {
+        ServerMetrics serverMetrics = servers.get(thriftServerInfo);
+        return serverMetrics == null ? null : serverMetrics.borrowWait;
+    }
+
+    public long getBorrowFailures(ThriftServerInfo thriftServerInfo) {
+        ServerMetrics serverMetrics = servers.get(thriftServerInfo);
+        return serverMetrics == null ? 0 : serverMetrics.borrowFailures.sum();
+    }
+
+    public long getCallFailures(ThriftServerInfo thriftServerInfo) {
+        ServerMetrics serverMetrics = servers.get(thriftServerInfo);
+        return serverMetrics == null ? 0 : serverMetrics.failures.sum();
+    }
+
+    /**
+     * @return bytes of the frames before compressing (or after decompressing) divided by the
+     *         bytes on the wire, both ways, 1 if the server was never called over a
+     *         {@link com.github.phantomthief.thrift.client.transport.CompressedFramedTransport}.
+     */
+    public double getCompressionRatio(ThriftServerInfo thriftServerInfo) {
+        ServerMetrics serverMetrics = servers.get(thriftServerInfo);
+        return serverMetrics == null ? 1 : serverMetrics.compression.ratio();
+    }
+
+    /**
+     * @return time spent in compressing and decompressing the frames in nanoseconds.
+     */
+    public long getCompressionNanos(ThriftServerInfo thriftServerInfo) {
+        ServerMetrics serverMetrics = servers.get(thriftServerInfo);
+        return serverMetrics == null ? 0 : serverMetrics.compression.cpuNanos.sum();
+    }
+
+    public long getNoBackendCount() {
+        return noBackend.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public long getCacheEvictions() {
+        return cacheEvictions.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    private static final class ServerMetrics {
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private final LatencyHistogram borrowWait = new LatencyHistogram();
+
+        private final LongAdder failures = new LongAdder();
+
+        private final LongAdder borrowFailures = new LongAdder();
+
+        private final CompressionMetrics compression = new CompressionMetrics();
+    }
+
+    private static final class CompressionMetrics {
+
+        private final LongAdder rawBytes = new LongAdder();
+
+        private final LongAdder wireBytes = new LongAdder();
+
+        private final LongAdder cpuNanos = new LongAdder();
+
+        private void record(int raw, int wire, long nanos) {
+            rawBytes.add(raw);
+            wireBytes.add(wire);
+            cpuNanos.add(nanos);
+        }
+
+        private double ratio() {
+            long wire = wireBytes.sum();
+            return wire == 0 ? 1 : (double) rawBytes.sum() / wire;
+        }
+    }
+}
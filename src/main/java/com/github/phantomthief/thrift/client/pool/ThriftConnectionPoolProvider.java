@@ -50,4 +50,91 @@ public interface ThriftConnectionPoolProvider {
      */
     void returnBrokenConnection(ThriftServerInfo thriftServerInfo, TTransport transport);
 
+    /**
+     * <p>
+     * discardConnection.
+     * </p>
+     * <p>
+     * Gives up a connection left in the middle of a call which was abandoned rather than
+     * failed, like the losing attempt of a hedged call. It can't be used again, but it says
+     * nothing of the health of the server. The default returns it as broken.
+     * </p>
+     *
+     * @param thriftServerInfo a
+     *        {@link com.github.phantomthief.thrift.client.pool.ThriftServerInfo} object.
+     * @param transport a {@link org.apache.thrift.transport.TTransport}
+     *        object.
+     */
+    default void discardConnection(ThriftServerInfo thriftServerInfo, TTransport transport) {
+        returnBrokenConnection(thriftServerInfo, transport);
+    }
+
+    /**
+     * <p>
+     * returnUnusedConnection.
+     * </p>
+     * <p>
+     * Returns a connection nothing was sent over, which tells nothing about the server.
+     * </p>
+     *
+     * @param thriftServerInfo a {@link com.github.phantomthief.thrift.client.pool.ThriftServerInfo} object.
+     * @param transport a {@link org.apache.thrift.transport.TTransport} object.
+     */
+    default void returnUnusedConnection(ThriftServerInfo thriftServerInfo,
+            TTransport transport) {
+        returnConnection(thriftServerInfo, transport);
+    }
+
+    /**
+     * <p>
+     * setTimeout.
+     * </p>
+     * <p>
+     * Bounds how long the next call over a borrowed connection waits for its response, for a
+     * connection without a socket of its own (a socket is bounded by its SO_TIMEOUT). The
+     * default can't.
+     * </p>
+     *
+     * @param transport a connection borrowed from this pool.
+     * @param timeoutMillis the time left for the call.
+     * @return false if the connection can't be bounded.
+     */
+    default boolean setTimeout(TTransport transport, int timeoutMillis) {
+        return false;
+    }
+
+    /**
+     * <p>
+     * warmUp.
+     * </p>
+     * <p>
+     * Opens a connection to the server ahead of the calls and keeps it idle in the pool, so
+     * the first calls don't pay for connecting. The default borrows one and returns it, which
+     * opens one only if there is no idle one.
+     * </p>
+     *
+     * @param thriftServerInfo a
+     *        {@link com.github.phantomthief.thrift.client.pool.ThriftServerInfo} object.
+     * @param connectTimeout in milliseconds, 0 for the one of the transport.
+     * @throws java.lang.Exception if it fails to connect.
+     */
+    default void warmUp(ThriftServerInfo thriftServerInfo, int connectTimeout) throws Exception {
+        returnConnection(thriftServerInfo, getConnection(thriftServerInfo));
+    }
+
+    /**
+     * <p>
+     * isReusingConnections.
+     * </p>
+     * <p>
+     * Whether a connection returned is handed out again by {@link #getConnection}, the client
+     * keeps the protocols and the client instance made on such a connection for its next
+     * calls then.
+     * </p>
+     *
+     * @return false if each borrowing gets a new {@link org.apache.thrift.transport.TTransport}.
+     */
+    default boolean isReusingConnections() {
+        return true;
+    }
 }
@@ -5,8 +5,10 @@ package com.github.phantomthief.thrift.client.pool.impl;
 
 import com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider;
 import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.utils.ThriftClientUtils;
 import org.apache.commons.pool2.KeyedPooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectState;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
@@ -16,8 +18,10 @@ import org.apache.thrift.transport.TTransport;
 import org.slf4j.Logger;
 
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
@@ -34,6 +38,8 @@ public final class DefaultThriftConnectionPoolImpl implements ThriftConnectionPo
     private static final int MIN_CONN = 1;
     private static final int MAX_CONN = 1000;
     private static final int TIMEOUT = (int) MINUTES.toMillis(5);
+    private static final long VALIDATE_AFTER_IDLE = SECONDS.toMillis(30);
+    private static final long SWEEP_INTERVAL = SECONDS.toMillis(30);
 
     private final GenericKeyedObjectPool<ThriftServerInfo, TTransport> connections;
 
@@ -50,8 +56,30 @@ public final class DefaultThriftConnectionPoolImpl implements ThriftConnectionPo
      */
     public DefaultThriftConnectionPoolImpl(GenericKeyedObjectPoolConfig config,
             Function<ThriftServerInfo, TTransport> transportProvider) {
-        connections = new GenericKeyedObjectPool<>(new ThriftConnectionFactory(transportProvider),
-                config);
+        this(config, new ThriftConnectionFactory(transportProvider));
+    }
+
+    /**
+     * <p>
+     * Constructor for DefaultThriftConnectionPoolImpl.
+     * </p>
+     * <p>
+     * The connections are validated by the factory, turn on
+     * {@link GenericKeyedObjectPoolConfig#setTestWhileIdle(boolean)} with
+     * {@link GenericKeyedObjectPoolConfig#setTimeBetweenEvictionRunsMillis(long)} to sweep
+     * the dead idle connections in background.
+     * </p>
+     *
+     * @param config a
+     *        {@link org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig}
+     *        object.
+     * @param factory a
+     *        {@link com.github.phantomthief.thrift.client.pool.impl.DefaultThriftConnectionPoolImpl.ThriftConnectionFactory}
+     *        object.
+     */
+    public DefaultThriftConnectionPoolImpl(GenericKeyedObjectPoolConfig config,
+            ThriftConnectionFactory factory) {
+        connections = new GenericKeyedObjectPool<>(factory, config);
     }
 
     /**
@@ -111,6 +139,19 @@ public final class DefaultThriftConnectionPoolImpl implements ThriftConnectionPo
         }
     }
 
+    /**
+     * adds an idle connection to the pool, nothing if the pool of the server is full.
+     */
+    @Override
+    public void warmUp(ThriftServerInfo thriftServerInfo, int connectTimeout) throws Exception {
+        ThriftConnectionFactory.CONNECT_TIMEOUT.set(connectTimeout);
+        try {
+            connections.addObject(thriftServerInfo);
+        } finally {
+            ThriftConnectionFactory.CONNECT_TIMEOUT.remove();
+        }
+    }
+
     private static class LazyHolder {
 
         private static final DefaultThriftConnectionPoolImpl INSTANCE;
@@ -120,7 +161,11 @@ public final class DefaultThriftConnectionPoolImpl implements ThriftConnectionPo
             config.setMaxTotalPerKey(MAX_CONN);
             config.setMaxIdlePerKey(MAX_CONN);
             config.setMinIdlePerKey(MIN_CONN);
+            // cheap unless the connection has been idle for a while, the sweeper checks the
+            // rest in background.
             config.setTestOnBorrow(true);
+            config.setTestWhileIdle(true);
+            config.setTimeBetweenEvictionRunsMillis(SWEEP_INTERVAL);
             config.setMinEvictableIdleTimeMillis(MINUTES.toMillis(1));
             config.setSoftMinEvictableIdleTimeMillis(MINUTES.toMillis(1));
             config.setJmxEnabled(false);
@@ -128,13 +173,69 @@ public final class DefaultThriftConnectionPoolImpl implements ThriftConnectionPo
         }
     }
 
+    /**
+     * <p>
+     * ThriftConnectionFactory class.
+     * </p>
+     * <p>
+     * A connection returned recently is only checked by {@link TTransport#isOpen()} on
+     * borrowing, one idle for longer than {@code validateAfterIdleMillis} is validated by the
+     * borrow validator, {@link ThriftClientUtils#isQuiet} by default, which doesn't block. The
+     * sweeper validates the idle connections by the idle validator,
+     * {@link ThriftClientUtils#isAlive} by default, which blocks for a millisecond on each
+     * live connection to see the ones closed by the server.
+     * </p>
+     */
     public static final class ThriftConnectionFactory implements
                                                      KeyedPooledObjectFactory<ThriftServerInfo, TTransport> {
 
+        /** the pool creates the connection on the warming thread, the timeout goes along it. */
+        private static final ThreadLocal<Integer> CONNECT_TIMEOUT = new ThreadLocal<>();
+
         private final Function<ThriftServerInfo, TTransport> transportProvider;
 
+        private final Predicate<TTransport> borrowValidator;
+
+        private final Predicate<TTransport> idleValidator;
+
+        private final long validateAfterIdleMillis;
+
+        /**
+         * @param transportProvider creates the connections.
+         */
         public ThriftConnectionFactory(Function<ThriftServerInfo, TTransport> transportProvider) {
+            this(transportProvider, ThriftClientUtils::isQuiet, ThriftClientUtils::isAlive,
+                    VALIDATE_AFTER_IDLE);
+        }
+
+        /**
+         * @param transportProvider creates the connections.
+         * @param validator checks an idle connection on borrowing and in the sweeper, like
+         *        {@link ThriftClientUtils#isAlive} or a cheap ping call.
+         * @param validateAfterIdleMillis connections idle for longer than it are validated on
+         *        borrowing.
+         */
+        public ThriftConnectionFactory(Function<ThriftServerInfo, TTransport> transportProvider,
+                Predicate<TTransport> validator, long validateAfterIdleMillis) {
+            this(transportProvider, validator, validator, validateAfterIdleMillis);
+        }
+
+        /**
+         * @param transportProvider creates the connections.
+         * @param borrowValidator checks an idle connection on borrowing, in the caller's
+         *        latency, like {@link ThriftClientUtils#isQuiet} or a cheap ping call.
+         * @param idleValidator checks an idle connection in the sweeper, like
+         *        {@link ThriftClientUtils#isAlive}.
+         * @param validateAfterIdleMillis connections idle for longer than it are validated on
+         *        borrowing.
+         */
+        public ThriftConnectionFactory(Function<ThriftServerInfo, TTransport> transportProvider,
+                Predicate<TTransport> borrowValidator, Predicate<TTransport> idleValidator,
+                long validateAfterIdleMillis) {
             this.transportProvider = transportProvider;
+            this.borrowValidator = borrowValidator;
+            this.idleValidator = idleValidator;
+            this.validateAfterIdleMillis = validateAfterIdleMillis;
         }
 
         /* (non-Javadoc)
@@ -143,6 +244,13 @@ public final class DefaultThriftConnectionPoolImpl implements ThriftConnectionPo
         @Override
         public PooledObject<TTransport> makeObject(ThriftServerInfo info) throws Exception {
             TTransport transport = transportProvider.apply(info);
+            Integer connectTimeout = CONNECT_TIMEOUT.get();
+            if (connectTimeout != null && connectTimeout > 0) {
+                TSocket tsocket = ThriftClientUtils.getTSocket(transport);
+                if (tsocket != null) {
+                    tsocket.setConnectTimeout(connectTimeout);
+                }
+            }
             transport.open();
             DefaultPooledObject<TTransport> result = new DefaultPooledObject<>(transport);
             logger.trace("make new thrift connection:{}", info);
@@ -168,7 +276,19 @@ public final class DefaultThriftConnectionPoolImpl implements ThriftConnectionPo
         @Override
         public boolean validateObject(ThriftServerInfo info, PooledObject<TTransport> p) {
             try {
-                return p.getObject().isOpen();
+                TTransport transport = p.getObject();
+                if (!transport.isOpen()) {
+                    return false;
+                }
+                // borrowing, the sweeper always validates.
+                if (p.getState() == PooledObjectState.ALLOCATED) {
+                    long idleMillis = System.currentTimeMillis() - p.getLastReturnTime();
+                    if (idleMillis < validateAfterIdleMillis) {
+                        return true;
+                    }
+                    return borrowValidator.test(transport);
+                }
+                return idleValidator.test(transport);
             } catch (Throwable e) {
                 logger.error("fail to validate tsocket:{}", info, e);
                 return false;
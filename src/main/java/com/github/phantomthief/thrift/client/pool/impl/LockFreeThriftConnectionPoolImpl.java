@@ -0,0 +1,357 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.pool.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.slf4j.Logger;
+
+import com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.utils.ThriftClientUtils;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * LockFreeThriftConnectionPoolImpl class.
+ * </p>
+ * <p>
+ * Keeps a lock-free LIFO stack of idle connections per server, borrowing and returning are
+ * CAS operations only, so threads hammering the same server don't queue on a lock like
+ * {@link DefaultThriftConnectionPoolImpl}. The connections of a server are bounded by
+ * {@code maxPerServer}, when all are borrowed a borrower parks until one is returned or
+ * {@code maxWaitMillis} elapsed, or it's interrupted. A background evictor closes the connections idle longer than
+ * {@code minEvictableIdleMillis}.
+ * </p>
+ * <p>
+ * There is no monitor on the borrowing path and waiting is {@link LockSupport#parkNanos}, so
+ * it's the pool to use from virtual threads: a waiting virtual thread unmounts instead of
+ * pinning its carrier.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public final class LockFreeThriftConnectionPoolImpl implements ThriftConnectionPoolProvider,
+                                                      Closeable {
+
+    private static final Logger logger = getLogger(LockFreeThriftConnectionPoolImpl.class);
+    private static final int MIN_IDLE = 1;
+    private static final int MAX_CONN = 1000;
+    private static final int TIMEOUT = (int) MINUTES.toMillis(5);
+    private static final long MAX_WAIT = SECONDS.toMillis(5);
+    private static final long MIN_EVICTABLE_IDLE = MINUTES.toMillis(1);
+    private static final long WAIT_PARK_NANOS = MILLISECONDS.toNanos(10);
+
+    private final Function<ThriftServerInfo, TTransport> transportProvider;
+
+    private final int maxPerServer;
+
+    private final long maxWaitNanos;
+
+    private final long minEvictableIdleMillis;
+
+    private final ConcurrentMap<ThriftServerInfo, ServerPool> pools = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * <p>
+     * Constructor for LockFreeThriftConnectionPoolImpl.
+     * </p>
+     */
+    public LockFreeThriftConnectionPoolImpl() {
+        this(info -> {
+            TSocket tsocket = new TSocket(info.getHost(), info.getPort());
+            tsocket.setTimeout(TIMEOUT);
+            return new TFramedTransport(tsocket);
+        });
+    }
+
+    /**
+     * <p>
+     * Constructor for LockFreeThriftConnectionPoolImpl.
+     * </p>
+     *
+     * @param transportProvider a {@link java.util.function.Function} object.
+     */
+    public LockFreeThriftConnectionPoolImpl(Function<ThriftServerInfo, TTransport> transportProvider) {
+        this(transportProvider, MAX_CONN, MAX_WAIT, MIN_EVICTABLE_IDLE);
+    }
+
+    /**
+     * <p>
+     * Constructor for LockFreeThriftConnectionPoolImpl.
+     * </p>
+     *
+     * @param transportProvider a {@link java.util.function.Function} object.
+     * @param maxPerServer max connections (borrowed and idle) to a server.
+     * @param maxWaitMillis how long a borrow waits when all connections are borrowed.
+     * @param minEvictableIdleMillis idle connections older than it are closed by the evictor.
+     */
+    public LockFreeThriftConnectionPoolImpl(
+            Function<ThriftServerInfo, TTransport> transportProvider, int maxPerServer,
+            long maxWaitMillis, long minEvictableIdleMillis) {
+        this.transportProvider = transportProvider;
+        this.maxPerServer = maxPerServer;
+        this.maxWaitNanos = MILLISECONDS.toNanos(maxWaitMillis);
+        this.minEvictableIdleMillis = minEvictableIdleMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("thrift-pool-evictor-%d").setDaemon(true).build());
+        long evictionInterval = Math.max(1, minEvictableIdleMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evict, evictionInterval, evictionInterval,
+                MILLISECONDS);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public TTransport getConnection(ThriftServerInfo thriftServerInfo) throws Exception {
+        ServerPool pool = pools.get(thriftServerInfo);
+        if (pool == null) {
+            pool = pools.computeIfAbsent(thriftServerInfo, ServerPool::new);
+        }
+        long deadline = 0;
+        Waiter waiter = null;
+        try {
+            while (true) {
+                IdleConnection idle;
+                while ((idle = pool.idle.pollFirst()) != null) {
+                    pool.idleCount.decrementAndGet();
+                    if (idle.transport.isOpen()) {
+                        return idle.transport;
+                    }
+                    destroy(pool, idle.transport);
+                }
+                int total = pool.total.get();
+                if (total < maxPerServer) {
+                    if (pool.total.compareAndSet(total, total + 1)) {
+                        return create(pool);
+                    }
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + maxWaitNanos;
+                } else if (now - deadline >= 0) {
+                    throw new NoSuchElementException("Timeout waiting for idle connection to "
+                            + thriftServerInfo);
+                }
+                if (waiter == null || waiter.polled) {
+                    // enqueue before checking again, so a connection returned in between
+                    // isn't missed.
+                    waiter = new Waiter(Thread.currentThread());
+                    pool.waiters.offer(waiter);
+                    continue;
+                }
+                // parking returns at once if interrupted, it would spin until the deadline.
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("interrupted in waiting for idle connection to "
+                            + thriftServerInfo);
+                }
+                // the wake up might race with another borrower, so the parking is bounded.
+                LockSupport.parkNanos(this, Math.min(WAIT_PARK_NANOS, deadline - now));
+            }
+        } finally {
+            if (waiter != null) {
+                waiter.done = true;
+            }
+        }
+    }
+
+    /**
+     * adds an idle connection to the pool, nothing if the pool of the server is full.
+     */
+    @Override
+    public void warmUp(ThriftServerInfo thriftServerInfo, int connectTimeout) throws Exception {
+        ServerPool pool = pools.get(thriftServerInfo);
+        if (pool == null) {
+            pool = pools.computeIfAbsent(thriftServerInfo, ServerPool::new);
+        }
+        int total;
+        do {
+            total = pool.total.get();
+            if (total >= maxPerServer) {
+                return;
+            }
+        } while (!pool.total.compareAndSet(total, total + 1));
+        returnConnection(thriftServerInfo, create(pool, connectTimeout));
+    }
+
+    private TTransport create(ServerPool pool) throws Exception {
+        return create(pool, 0);
+    }
+
+    private TTransport create(ServerPool pool, int connectTimeout) throws Exception {
+        try {
+            TTransport transport = transportProvider.apply(pool.server);
+            if (connectTimeout > 0) {
+                TSocket tsocket = ThriftClientUtils.getTSocket(transport);
+                if (tsocket != null) {
+                    tsocket.setConnectTimeout(connectTimeout);
+                }
+            }
+            transport.open();
+            logger.trace("make new thrift connection:{}", pool.server);
+            return transport;
+        } catch (Throwable e) {
+            pool.total.decrementAndGet();
+            pool.wakeUpWaiter();
+            throw e;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void returnConnection(ThriftServerInfo thriftServerInfo, TTransport transport) {
+        ServerPool pool = pools.get(thriftServerInfo);
+        if (pool == null) {
+            close(thriftServerInfo, transport);
+            return;
+        }
+        pool.idleCount.incrementAndGet();
+        pool.idle.offerFirst(new IdleConnection(transport, System.currentTimeMillis()));
+        pool.wakeUpWaiter();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void returnBrokenConnection(ThriftServerInfo thriftServerInfo, TTransport transport) {
+        ServerPool pool = pools.get(thriftServerInfo);
+        if (pool == null) {
+            close(thriftServerInfo, transport);
+            return;
+        }
+        destroy(pool, transport);
+    }
+
+    /**
+     * the stack is LIFO, so the connections idle for the longest time are at the bottom.
+     */
+    private void evict() {
+        long evictBefore = System.currentTimeMillis() - minEvictableIdleMillis;
+        for (ServerPool pool : pools.values()) {
+            try {
+                IdleConnection oldest;
+                while (pool.idleCount.get() > MIN_IDLE && (oldest = pool.idle.peekLast()) != null
+                        && oldest.since < evictBefore) {
+                    if (pool.idle.removeLastOccurrence(oldest)) {
+                        pool.idleCount.decrementAndGet();
+                        destroy(pool, oldest.transport);
+                    }
+                }
+            } catch (Throwable e) {
+                logger.error("fail to evict idle connections of {}", pool.server, e);
+            }
+        }
+    }
+
+    private void destroy(ServerPool pool, TTransport transport) {
+        pool.total.decrementAndGet();
+        close(pool.server, transport);
+        pool.wakeUpWaiter();
+    }
+
+    private void close(ThriftServerInfo info, TTransport transport) {
+        try {
+            if (transport.isOpen()) {
+                transport.close();
+                logger.trace("close thrift connection:{}", info);
+            }
+        } catch (Throwable e) {
+            logger.error("fail to close connection:{},{}", info, transport, e);
+        }
+    }
+
+    /**
+     * stops the evictor and closes all idle connections.
+     */
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        for (ServerPool pool : pools.values()) {
+            IdleConnection idle;
+            while ((idle = pool.idle.pollFirst()) != null) {
+                pool.idleCount.decrementAndGet();
+                destroy(pool, idle.transport);
+            }
+        }
+    }
+
+    private static final class ServerPool {
+
+        private final ThriftServerInfo server;
+
+        private final Deque<IdleConnection> idle = new ConcurrentLinkedDeque<>();
+
+        /** size of {@link #idle}, the size() of the deque is O(n). */
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        /** borrowed and idle connections. */
+        private final AtomicInteger total = new AtomicInteger();
+
+        /** borrowers parking for a connection, the ones done are skipped lazily. */
+        private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+        private ServerPool(ThriftServerInfo server) {
+            this.server = server;
+        }
+
+        private void wakeUpWaiter() {
+            Waiter waiter;
+            while ((waiter = waiters.poll()) != null) {
+                waiter.polled = true;
+                if (!waiter.done) {
+                    LockSupport.unpark(waiter.thread);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class IdleConnection {
+
+        private final TTransport transport;
+
+        private final long since;
+
+        private IdleConnection(TTransport transport, long since) {
+            this.transport = transport;
+            this.since = since;
+        }
+    }
+
+    private static final class Waiter {
+
+        private final Thread thread;
+
+        /** it's out of the queue, the borrower enqueues again if it has to wait more. */
+        private volatile boolean polled;
+
+        private volatile boolean done;
+
+        private Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
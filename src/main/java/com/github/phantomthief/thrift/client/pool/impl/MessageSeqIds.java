@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.pool.impl;
+
+import java.util.Arrays;
+
+import org.apache.thrift.protocol.TProtocolException;
+
+/**
+ * reads and rewrites the seqid in the message header at the beginning of a frame, without
+ * decoding the message. Supports {@link org.apache.thrift.protocol.TCompactProtocol} and the
+ * strict {@link org.apache.thrift.protocol.TBinaryProtocol} (the default of both sides), a
+ * {@link org.apache.thrift.protocol.TMultiplexedProtocol} only changes the name so it's fine
+ * too.
+ *
+ * @author w.vela
+ */
+final class MessageSeqIds {
+
+    private static final byte COMPACT_PROTOCOL_ID = (byte) 0x82;
+    private static final int COMPACT_TYPE_SHIFT = 5;
+    private static final int COMPACT_TYPE_MASK = 0x07;
+    private static final int COMPACT_SEQ_ID_OFFSET = 2;
+    private static final byte BINARY_VERSION_1 = (byte) 0x80;
+    private static final int BINARY_NAME_OFFSET = 8;
+
+    private MessageSeqIds() {
+        throw new UnsupportedOperationException();
+    }
+
+    static byte getType(byte[] frame, int length) throws TProtocolException {
+        checkLength(length, COMPACT_SEQ_ID_OFFSET);
+        if (frame[0] == COMPACT_PROTOCOL_ID) {
+            return (byte) ((frame[1] >> COMPACT_TYPE_SHIFT) & COMPACT_TYPE_MASK);
+        }
+        if (frame[0] == BINARY_VERSION_1) {
+            checkLength(length, BINARY_NAME_OFFSET);
+            return frame[3];
+        }
+        throw unsupported();
+    }
+
+    static int getSeqId(byte[] frame, int length) throws TProtocolException {
+        checkLength(length, COMPACT_SEQ_ID_OFFSET);
+        if (frame[0] == COMPACT_PROTOCOL_ID) {
+            int result = 0;
+            int shift = 0;
+            for (int i = COMPACT_SEQ_ID_OFFSET; i < length && shift < 35; i++) {
+                byte b = frame[i];
+                result |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+                shift += 7;
+            }
+            throw new TProtocolException(TProtocolException.INVALID_DATA, "bad seqid varint.");
+        }
+        if (frame[0] == BINARY_VERSION_1) {
+            int offset = binarySeqIdOffset(frame, length);
+            return readInt(frame, offset);
+        }
+        throw unsupported();
+    }
+
+    /**
+     * @return a frame with the seqid replaced, it might be the given array if the seqid is
+     *         replaced in place, and it's always exactly sized.
+     */
+    static byte[] replaceSeqId(byte[] frame, int length, int seqId) throws TProtocolException {
+        checkLength(length, COMPACT_SEQ_ID_OFFSET);
+        if (frame[0] == COMPACT_PROTOCOL_ID) {
+            int oldEnd = COMPACT_SEQ_ID_OFFSET;
+            while (oldEnd < length && (frame[oldEnd] & 0x80) != 0) {
+                oldEnd++;
+            }
+            oldEnd++;
+            checkLength(length, oldEnd);
+            int newSize = varintSize(seqId);
+            byte[] result = new byte[length - (oldEnd - COMPACT_SEQ_ID_OFFSET) + newSize];
+            System.arraycopy(frame, 0, result, 0, COMPACT_SEQ_ID_OFFSET);
+            writeVarint(result, COMPACT_SEQ_ID_OFFSET, seqId);
+            System.arraycopy(frame, oldEnd, result, COMPACT_SEQ_ID_OFFSET + newSize, length
+                    - oldEnd);
+            return result;
+        }
+        if (frame[0] == BINARY_VERSION_1) {
+            int offset = binarySeqIdOffset(frame, length);
+            byte[] result = frame.length == length ? frame : Arrays.copyOf(frame, length);
+            result[offset] = (byte) (seqId >>> 24);
+            result[offset + 1] = (byte) (seqId >>> 16);
+            result[offset + 2] = (byte) (seqId >>> 8);
+            result[offset + 3] = (byte) seqId;
+            return result;
+        }
+        throw unsupported();
+    }
+
+    private static int binarySeqIdOffset(byte[] frame, int length) throws TProtocolException {
+        checkLength(length, BINARY_NAME_OFFSET);
+        int nameLength = readInt(frame, 4);
+        if (nameLength < 0 || nameLength > length - BINARY_NAME_OFFSET - 4) {
+            throw new TProtocolException(TProtocolException.INVALID_DATA,
+                    "bad message name length:" + nameLength);
+        }
+        return BINARY_NAME_OFFSET + nameLength;
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    private static int varintSize(int n) {
+        int size = 1;
+        while ((n & ~0x7f) != 0) {
+            n >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarint(byte[] buf, int offset, int n) {
+        while ((n & ~0x7f) != 0) {
+            buf[offset++] = (byte) ((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        buf[offset] = (byte) n;
+    }
+
+    private static void checkLength(int length, int required) throws TProtocolException {
+        if (length < required) {
+            throw new TProtocolException(TProtocolException.INVALID_DATA,
+                    "frame is too short for a message header.");
+        }
+    }
+
+    private static TProtocolException unsupported() {
+        return new TProtocolException(TProtocolException.NOT_IMPLEMENTED,
+                "only compact and strict binary protocols could be pipelined.");
+    }
+}
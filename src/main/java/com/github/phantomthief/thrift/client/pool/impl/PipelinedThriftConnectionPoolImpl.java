@@ -0,0 +1,419 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.pool.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+
+import com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+
+/**
+ * <p>
+ * PipelinedThriftConnectionPoolImpl class.
+ * </p>
+ * <p>
+ * Sends the calls to a server over a few shared framed connections instead of one connection
+ * per concurrent call. A borrowed transport is a lightweight per-call view: on flush its request
+ * frame is written to a shared connection with the seqid replaced by a connection-unique one,
+ * a reader thread per connection matches the response frames by seqid (so the server could
+ * respond out of order) and hands them back with the original seqid restored.
+ * </p>
+ * <p>
+ * Only compact and strict binary protocols are supported, the server must use framed
+ * transport.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public final class PipelinedThriftConnectionPoolImpl implements ThriftConnectionPoolProvider,
+                                                       Closeable {
+
+    private static final Logger logger = getLogger(PipelinedThriftConnectionPoolImpl.class);
+    private static final int CONNECTIONS_PER_SERVER = 2;
+    private static final int TIMEOUT = (int) MINUTES.toMillis(5);
+    private static final int CONNECT_TIMEOUT = (int) SECONDS.toMillis(5);
+    private static final int MAX_FRAME_SIZE = 16384000;
+
+    private final int connectionsPerServer;
+
+    private final int timeout;
+
+    private final ConcurrentMap<ThriftServerInfo, ServerConnections> servers = new ConcurrentHashMap<>();
+
+    /**
+     * <p>
+     * Constructor for PipelinedThriftConnectionPoolImpl.
+     * </p>
+     */
+    public PipelinedThriftConnectionPoolImpl() {
+        this(CONNECTIONS_PER_SERVER, TIMEOUT);
+    }
+
+    /**
+     * <p>
+     * Constructor for PipelinedThriftConnectionPoolImpl.
+     * </p>
+     *
+     * @param connectionsPerServer how many connections are shared by the calls to a server.
+     * @param timeout how long a call waits for its response in milliseconds.
+     */
+    public PipelinedThriftConnectionPoolImpl(int connectionsPerServer, int timeout) {
+        this.connectionsPerServer = connectionsPerServer;
+        this.timeout = timeout;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public TTransport getConnection(ThriftServerInfo thriftServerInfo) throws Exception {
+        ServerConnections connections = servers.get(thriftServerInfo);
+        if (connections == null) {
+            connections = servers.computeIfAbsent(thriftServerInfo,
+                    s -> new ServerConnections(s, connectionsPerServer));
+        }
+        return new CallTransport(connections.next());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void returnConnection(ThriftServerInfo thriftServerInfo, TTransport transport) {
+        ((CallTransport) transport).abandon();
+    }
+
+    /**
+     * the shared connection is closed by its reader if it's really broken, otherwise only the
+     * call is abandoned, a late response of it is dropped.
+     */
+    @Override
+    public void returnBrokenConnection(ThriftServerInfo thriftServerInfo, TTransport transport) {
+        ((CallTransport) transport).abandon();
+    }
+
+    /**
+     * the call waits for its response for the time left instead of the timeout of the pool.
+     */
+    @Override
+    public boolean setTimeout(TTransport transport, int timeoutMillis) {
+        ((CallTransport) transport).timeoutMillis = timeoutMillis;
+        return true;
+    }
+
+    /**
+     * each call gets its own transport over a shared connection.
+     */
+    @Override
+    public boolean isReusingConnections() {
+        return false;
+    }
+
+    /**
+     * closes all shared connections, the calls in flight fail.
+     */
+    @Override
+    public void close() {
+        servers.values().forEach(ServerConnections::close);
+        servers.clear();
+    }
+
+    private final class ServerConnections {
+
+        private final ThriftServerInfo server;
+
+        private final AtomicReferenceArray<SharedConnection> connections;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        private final ReentrantLock connectLock = new ReentrantLock();
+
+        private ServerConnections(ThriftServerInfo server, int size) {
+            this.server = server;
+            this.connections = new AtomicReferenceArray<>(size);
+        }
+
+        private SharedConnection next() throws IOException {
+            int index = Math.abs(next.getAndIncrement() % connections.length());
+            SharedConnection connection = connections.get(index);
+            if (connection != null && !connection.closed) {
+                return connection;
+            }
+            connectLock.lock();
+            try {
+                connection = connections.get(index);
+                if (connection == null || connection.closed) {
+                    connection = new SharedConnection(server, timeout);
+                    connections.set(index, connection);
+                }
+                return connection;
+            } finally {
+                connectLock.unlock();
+            }
+        }
+
+        private void close() {
+            for (int i = 0; i < connections.length(); i++) {
+                SharedConnection connection = connections.get(i);
+                if (connection != null) {
+                    connection.close(null);
+                }
+            }
+        }
+    }
+
+    private static final class SharedConnection implements Runnable {
+
+        private final ThriftServerInfo server;
+
+        private final Socket socket;
+
+        private final DataInputStream in;
+
+        private final DataOutputStream out;
+
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        private final ConcurrentMap<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+        private final AtomicInteger nextSeqId = new AtomicInteger();
+
+        private volatile boolean closed;
+
+        private SharedConnection(ThriftServerInfo server, int timeout) throws IOException {
+            this.server = server;
+            this.socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(server.getHost(), server.getPort()),
+                    Math.min(timeout, CONNECT_TIMEOUT));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Thread reader = new Thread(this, "thrift-pipeline-" + server.getHost() + ":"
+                    + server.getPort());
+            reader.setDaemon(true);
+            reader.start();
+            logger.trace("make new pipelined thrift connection:{}", server);
+        }
+
+        private int nextSeqId() {
+            return nextSeqId.incrementAndGet() & Integer.MAX_VALUE;
+        }
+
+        private void send(byte[] frame) throws TTransportException {
+            writeLock.lock();
+            try {
+                out.writeInt(frame.length);
+                out.write(frame);
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+                throw new TTransportException(TTransportException.NOT_OPEN, e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_FRAME_SIZE) {
+                        throw new TTransportException(TTransportException.UNKNOWN,
+                                "bad frame size:" + length);
+                    }
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    CompletableFuture<byte[]> response = pending.remove(MessageSeqIds.getSeqId(
+                            frame, length));
+                    if (response != null) {
+                        response.complete(frame);
+                    } else {
+                        logger.debug("drop response of an abandoned call from {}", server);
+                    }
+                }
+            } catch (Throwable e) {
+                // whatever kills the reader closes the connection, or its calls would hang.
+                close(e);
+            }
+        }
+
+        private void close(Throwable cause) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.error("fail to close pipelined connection:{}", server, e);
+            }
+            if (cause != null) {
+                logger.warn("pipelined connection to {} is closed.", server, cause);
+            }
+            pending.values().forEach(response -> response.completeExceptionally(
+                    new TTransportException(TTransportException.NOT_OPEN, cause)));
+            pending.clear();
+        }
+    }
+
+    private final class CallTransport extends TTransport {
+
+        private final SharedConnection connection;
+
+        private final TByteArrayOutputStream writeBuffer = new TByteArrayOutputStream(1024);
+
+        private final TMemoryInputTransport readBuffer = new TMemoryInputTransport();
+
+        private volatile CompletableFuture<byte[]> response;
+
+        private int seqId;
+
+        private int originalSeqId;
+
+        private int timeoutMillis = timeout;
+
+        private CallTransport(SharedConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !connection.closed;
+        }
+
+        @Override
+        public void open() {
+            // the shared connection is already opened.
+        }
+
+        /**
+         * could be called by another thread to cancel the call, the waiting read fails at once.
+         */
+        @Override
+        public void close() {
+            CompletableFuture<byte[]> current = response;
+            if (current != null) {
+                current.completeExceptionally(new TTransportException(
+                        TTransportException.NOT_OPEN, "the call is cancelled."));
+            }
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            writeBuffer.write(buf, off, len);
+        }
+
+        @Override
+        public void flush() throws TTransportException {
+            byte[] request = writeBuffer.get();
+            int length = writeBuffer.len();
+            writeBuffer.reset();
+            try {
+                originalSeqId = MessageSeqIds.getSeqId(request, length);
+                seqId = connection.nextSeqId();
+                byte[] frame = MessageSeqIds.replaceSeqId(request, length, seqId);
+                if (MessageSeqIds.getType(frame, frame.length) != TMessageType.ONEWAY) {
+                    response = new CompletableFuture<>();
+                    connection.pending.put(seqId, response);
+                }
+                connection.send(frame);
+            } catch (TTransportException e) {
+                abandon();
+                throw e;
+            } catch (TException e) {
+                abandon();
+                throw new TTransportException(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws TTransportException {
+            int got = readBuffer.read(buf, off, len);
+            if (got > 0) {
+                return got;
+            }
+            readResponse();
+            return readBuffer.read(buf, off, len);
+        }
+
+        private void readResponse() throws TTransportException {
+            if (response == null) {
+                throw new TTransportException(TTransportException.END_OF_FILE,
+                        "no response is expected.");
+            }
+            byte[] frame;
+            try {
+                frame = response.get(timeoutMillis, MILLISECONDS);
+                response = null;
+                readBuffer.reset(MessageSeqIds.replaceSeqId(frame, frame.length, originalSeqId));
+            } catch (TimeoutException e) {
+                abandon();
+                throw new TTransportException(TTransportException.TIMED_OUT, e);
+            } catch (ExecutionException e) {
+                abandon();
+                throw new TTransportException(TTransportException.NOT_OPEN, e.getCause());
+            } catch (InterruptedException e) {
+                abandon();
+                Thread.currentThread().interrupt();
+                throw new TTransportException(TTransportException.UNKNOWN, e);
+            } catch (TException e) {
+                throw new TTransportException(e);
+            }
+        }
+
+        private void abandon() {
+            if (response != null) {
+                connection.pending.remove(seqId);
+                response = null;
+            }
+        }
+
+        @Override
+        public byte[] getBuffer() {
+            return readBuffer.getBuffer();
+        }
+
+        @Override
+        public int getBufferPosition() {
+            return readBuffer.getBufferPosition();
+        }
+
+        @Override
+        public int getBytesRemainingInBuffer() {
+            return readBuffer.getBytesRemainingInBuffer();
+        }
+
+        @Override
+        public void consumeBuffer(int len) {
+            readBuffer.consumeBuffer(len);
+        }
+    }
+}
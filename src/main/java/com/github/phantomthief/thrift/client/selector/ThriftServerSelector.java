@@ -0,0 +1,46 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.selector;
+
+import com.github.phantomthief.thrift.client.impl.ThriftServerInfoManager;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+
+/**
+ * <p>
+ * ThriftServerSelector interface.
+ * </p>
+ * <p>
+ * Picks the server of each call made by a client. It's called on the calling thread for every
+ * call, implementations should be fast and thread safe.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public interface ThriftServerSelector {
+
+    /**
+     * the consistent hashing of {@link ThriftServerInfoManager#get(int)}, the default.
+     */
+    ThriftServerSelector CONSISTENT_HASH = ThriftServerInfoManager::get;
+
+    /**
+     * @param manager the valid servers.
+     * @param hash the hash of the call, given by the iface.
+     * @return {@code null} if there is no valid server.
+     */
+    ThriftServerInfo select(ThriftServerInfoManager manager, int hash);
+
+    /**
+     * a call to the server is started, the connection is borrowed.
+     */
+    default void onCallStart(ThriftServerInfo thriftServerInfo) {
+    }
+
+    /**
+     * a call started by {@link #onCallStart} is finished, no matter it succeeded or not.
+     */
+    default void onCallEnd(ThriftServerInfo thriftServerInfo) {
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.selector.impl;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.phantomthief.thrift.client.impl.ThriftServerInfoManager;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.selector.ThriftServerSelector;
+
+/**
+ * <p>
+ * LeastInFlightThriftServerSelector class.
+ * </p>
+ * <p>
+ * Power of two random choices: picks two distinct servers at random and calls the one with
+ * fewer calls in flight, so a server stuck in GC or overloaded (its calls pile up) gets less
+ * traffic quickly, while the load is still spread without a global scan. The in-flight counters
+ * are striped ({@link LongAdder}), the calling threads don't contend on a single cache line.
+ * </p>
+ * <p>
+ * The hash of the call is ignored, use it only if the calls don't need server affinity.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class LeastInFlightThriftServerSelector implements ThriftServerSelector {
+
+    private final ConcurrentMap<ThriftServerInfo, LongAdder> inFlights = new ConcurrentHashMap<>();
+
+    /** {@inheritDoc} */
+    @Override
+    public ThriftServerInfo select(ThriftServerInfoManager manager, int hash) {
+        List<ThriftServerInfo> servers = manager.getAll();
+        int size = servers.size();
+        if (size <= 1) {
+            return manager.get(hash);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        // an immutable snapshot, it doesn't change under us.
+        ThriftServerInfo a = servers.get(first);
+        ThriftServerInfo b = servers.get(second);
+        return getInFlight(b) < getInFlight(a) ? b : a;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onCallStart(ThriftServerInfo thriftServerInfo) {
+        counter(thriftServerInfo).increment();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onCallEnd(ThriftServerInfo thriftServerInfo) {
+        counter(thriftServerInfo).decrement();
+    }
+
+    /**
+     * @return calls to the server in flight.
+     */
+    public long getInFlight(ThriftServerInfo thriftServerInfo) {
+        LongAdder counter = inFlights.get(thriftServerInfo);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    private LongAdder counter(ThriftServerInfo thriftServerInfo) {
+        LongAdder counter = inFlights.get(thriftServerInfo);
+        if (counter == null) {
+            counter = inFlights.computeIfAbsent(thriftServerInfo, s -> new LongAdder());
+        }
+        return counter;
+    }
+}
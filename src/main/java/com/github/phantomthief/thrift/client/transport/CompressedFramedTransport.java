@@ -0,0 +1,485 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.transport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+
+import com.github.phantomthief.thrift.client.metrics.ThriftClientMetrics;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+
+/**
+ * <p>
+ * CompressedFramedTransport class.
+ * </p>
+ * <p>
+ * A framed transport whose frames are compressed by deflate, for the servers where the
+ * network bytes cost more than the CPU (large results across data centers). A frame smaller
+ * than {@code minCompressSize}, or one which doesn't get smaller, is sent as is. The server
+ * must use it too, by {@link Factory}. Use it from the transport provider of a pool:
+ * </p>
+ *
+ * <pre>
+ * info -&gt; new CompressedFramedTransport(new TSocket(info.getHost(), info.getPort()), 1024,
+ *         info, metrics)
+ * </pre>
+ * <p>
+ * A frame is its size (4 bytes, like {@link TFramedTransport}), then a codec byte: 0 for a
+ * frame as is, 1 for a compressed one followed by its original size (4 bytes) and the raw
+ * deflate data. The {@link Deflater} and the {@link Inflater} of a connection, and its
+ * buffers, are reused by its frames. {@link #close()} ends the codecs, which frees their
+ * native memory at once. It could be called by another thread (a cancelled hedge) while a
+ * frame is being compressed, then the codecs are ended by the thread using them when it's
+ * done. A buffer grown over {@value #MAX_RETAINED_BUFFER_SIZE} bytes by a large frame is
+ * dropped after it, so a connection doesn't keep the largest frame it ever saw.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class CompressedFramedTransport extends TTransport {
+
+    /** frames smaller than this are not compressed by default. */
+    public static final int DEFAULT_MIN_COMPRESS_SIZE = 1024;
+
+    private static final byte RAW = 0;
+
+    private static final byte DEFLATE = 1;
+
+    /** larger buffers are dropped after their frame. */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int CODEC_IDLE = 0;
+    private static final int CODEC_BUSY = 1;
+    private static final int CODEC_CLOSED = 2;
+    /** closed while busy, the codecs are ended when it's idle. */
+    private static final int CODEC_CLOSING = 3;
+
+    private final TTransport transport;
+
+    private final int minCompressSize;
+
+    private final int level;
+
+    private final int maxFrameSize;
+
+    private final ThriftServerInfo thriftServerInfo;
+
+    private final ThriftClientMetrics metrics;
+
+    private final AtomicInteger codecState = new AtomicInteger(CODEC_IDLE);
+
+    private TByteArrayOutputStream writeBuffer = new TByteArrayOutputStream(1024);
+
+    private final TMemoryInputTransport readBuffer = new TMemoryInputTransport();
+
+    private final byte[] header = new byte[9];
+
+    private byte[] frame = EMPTY;
+
+    private byte[] inflated = EMPTY;
+
+    private byte[] deflated = EMPTY;
+
+    private Deflater deflater;
+
+    private Inflater inflater;
+
+    /**
+     * <p>
+     * Constructor for CompressedFramedTransport, frames from
+     * {@link #DEFAULT_MIN_COMPRESS_SIZE} are compressed, nothing is reported.
+     * </p>
+     *
+     * @param transport the underlying transport, like a {@link org.apache.thrift.transport.TSocket}.
+     */
+    public CompressedFramedTransport(TTransport transport) {
+        this(transport, DEFAULT_MIN_COMPRESS_SIZE, null, ThriftClientMetrics.NONE);
+    }
+
+    /**
+     * <p>
+     * Constructor for CompressedFramedTransport, by the fastest compression level.
+     * </p>
+     *
+     * @param transport the underlying transport, like a {@link org.apache.thrift.transport.TSocket}.
+     * @param minCompressSize frames smaller than it are sent as is.
+     * @param thriftServerInfo the server of the connection, given to the metrics.
+     * @param metrics told the sizes and the time spent of the frames, see
+     *        {@link ThriftClientMetrics#onCompress} and {@link ThriftClientMetrics#onDecompress}.
+     */
+    public CompressedFramedTransport(TTransport transport, int minCompressSize,
+            ThriftServerInfo thriftServerInfo, ThriftClientMetrics metrics) {
+        this(transport, minCompressSize, Deflater.BEST_SPEED,
+                PooledFramedTransport.DEFAULT_MAX_FRAME_SIZE, thriftServerInfo, metrics);
+    }
+
+    /**
+     * <p>
+     * Constructor for CompressedFramedTransport.
+     * </p>
+     *
+     * @param transport the underlying transport, like a {@link org.apache.thrift.transport.TSocket}.
+     * @param minCompressSize frames smaller than it are sent as is.
+     * @param level the compression level of {@link Deflater}, from 0 to 9.
+     * @param maxFrameSize a larger frame written or read (before or after decompressing) fails
+     *        the transport.
+     * @param thriftServerInfo the server of the connection, given to the metrics.
+     * @param metrics told the sizes and the time spent of the frames.
+     */
+    public CompressedFramedTransport(TTransport transport, int minCompressSize, int level,
+            int maxFrameSize, ThriftServerInfo thriftServerInfo, ThriftClientMetrics metrics) {
+        checkArgument(minCompressSize >= 0, "minCompressSize must not be negative.");
+        checkArgument(level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION,
+                "level must be between 0 and 9.");
+        checkArgument(maxFrameSize > 0, "maxFrameSize must be positive.");
+        this.transport = transport;
+        this.minCompressSize = minCompressSize;
+        this.level = level;
+        this.maxFrameSize = maxFrameSize;
+        this.thriftServerInfo = thriftServerInfo;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the underlying transport.
+     */
+    public TTransport getTransport() {
+        return transport;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void open() throws TTransportException {
+        transport.open();
+        codecState.compareAndSet(CODEC_CLOSED, CODEC_IDLE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Ends the codecs, or lets the thread using them end them when it's done.
+     * </p>
+     */
+    @Override
+    public void close() {
+        while (true) {
+            int state = codecState.get();
+            if (state == CODEC_IDLE) {
+                if (codecState.compareAndSet(CODEC_IDLE, CODEC_CLOSED)) {
+                    endCodecs();
+                    break;
+                }
+            } else if (state == CODEC_BUSY) {
+                if (codecState.compareAndSet(CODEC_BUSY, CODEC_CLOSING)) {
+                    break;
+                }
+            } else {
+                break;
+            }
+        }
+        transport.close();
+    }
+
+    /**
+     * the codecs are only used between it and {@link #exitCodec()}.
+     */
+    private void enterCodec() throws TTransportException {
+        if (!codecState.compareAndSet(CODEC_IDLE, CODEC_BUSY)) {
+            throw new TTransportException(TTransportException.NOT_OPEN,
+                    "The transport is closed!");
+        }
+    }
+
+    private void exitCodec() {
+        if (!codecState.compareAndSet(CODEC_BUSY, CODEC_IDLE)) {
+            // closed by another thread meanwhile.
+            codecState.set(CODEC_CLOSED);
+            endCodecs();
+        }
+    }
+
+    private void endCodecs() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The frame buffer is not exposed by {@link #getBuffer()}, it's reused by the next frame.
+     * </p>
+     */
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        if (len == 0) {
+            return 0;
+        }
+        int got = readBuffer.read(buf, off, len);
+        while (got == 0) {
+            // the next frame, skipping the empty ones.
+            readFrame();
+            got = readBuffer.read(buf, off, len);
+        }
+        if (readBuffer.getBytesRemainingInBuffer() == 0) {
+            releaseReadBuffers();
+        }
+        return got;
+    }
+
+    /**
+     * drops the read buffers grown by a large frame, once it's read to the end.
+     */
+    private void releaseReadBuffers() {
+        if (frame.length > MAX_RETAINED_BUFFER_SIZE || inflated.length > MAX_RETAINED_BUFFER_SIZE) {
+            readBuffer.clear();
+            if (frame.length > MAX_RETAINED_BUFFER_SIZE) {
+                frame = EMPTY;
+            }
+            if (inflated.length > MAX_RETAINED_BUFFER_SIZE) {
+                inflated = EMPTY;
+            }
+        }
+    }
+
+    private void readFrame() throws TTransportException {
+        transport.readAll(header, 0, 4);
+        int size = TFramedTransport.decodeFrameSize(header);
+        if (size < 1) {
+            close();
+            throw new TTransportException("Read an invalid frame size (" + size + ")!");
+        }
+        checkReadSize(size);
+        if (frame.length < size) {
+            frame = new byte[size];
+        }
+        transport.readAll(frame, 0, size);
+        if (frame[0] == RAW) {
+            readBuffer.reset(frame, 1, size - 1);
+            metrics.onDecompress(thriftServerInfo, size, size - 1, 0);
+            return;
+        }
+        if (frame[0] != DEFLATE || size < 5) {
+            close();
+            throw new TTransportException("Read an invalid compressed frame (codec " + frame[0]
+                    + ", size " + size + ")!");
+        }
+        long start = System.nanoTime();
+        int rawSize = decodeInt(frame, 1);
+        if (rawSize < 0) {
+            close();
+            throw new TTransportException("Read a negative original frame size (" + rawSize
+                    + ")!");
+        }
+        checkReadSize(rawSize);
+        if (inflated.length < rawSize) {
+            inflated = new byte[rawSize];
+        }
+        int got = 0;
+        enterCodec();
+        try {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            } else {
+                inflater.reset();
+            }
+            inflater.setInput(frame, 5, size - 5);
+            while (got < rawSize) {
+                int n = inflater.inflate(inflated, got, rawSize - got);
+                if (n == 0) {
+                    break;
+                }
+                got += n;
+            }
+        } catch (DataFormatException e) {
+            close();
+            throw new TTransportException("Read a corrupted compressed frame!", e);
+        } finally {
+            exitCodec();
+        }
+        if (got != rawSize) {
+            close();
+            throw new TTransportException("Read a compressed frame of " + got
+                    + " bytes, expected " + rawSize + "!");
+        }
+        readBuffer.reset(inflated, 0, rawSize);
+        metrics.onDecompress(thriftServerInfo, size, rawSize, System.nanoTime() - start);
+    }
+
+    private void checkReadSize(int size) throws TTransportException {
+        if (size > maxFrameSize) {
+            close();
+            throw new TTransportException("Frame size (" + size + ") larger than max length ("
+                    + maxFrameSize + ")!");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        writeBuffer.write(buf, off, len);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush() throws TTransportException {
+        byte[] raw = writeBuffer.get();
+        int rawSize = writeBuffer.len();
+        writeBuffer.reset();
+        try {
+            writeFrame(raw, rawSize);
+        } finally {
+            // drops the buffers grown by a large frame.
+            if (raw.length > MAX_RETAINED_BUFFER_SIZE) {
+                writeBuffer = new TByteArrayOutputStream(1024);
+            }
+            if (deflated.length > MAX_RETAINED_BUFFER_SIZE) {
+                deflated = EMPTY;
+            }
+        }
+    }
+
+    private void writeFrame(byte[] raw, int rawSize) throws TTransportException {
+        if (rawSize + 1 > maxFrameSize) {
+            throw new TTransportException("Frame size (" + rawSize + ") larger than max length ("
+                    + maxFrameSize + ")!");
+        }
+        if (rawSize >= minCompressSize && rawSize > 0) {
+            long start = System.nanoTime();
+            int size = deflate(raw, rawSize);
+            long cpuNanos = System.nanoTime() - start;
+            if (size > 0) {
+                TFramedTransport.encodeFrameSize(5 + size, header);
+                header[4] = DEFLATE;
+                encodeInt(rawSize, header, 5);
+                transport.write(header, 0, 9);
+                transport.write(deflated, 0, size);
+                transport.flush();
+                metrics.onCompress(thriftServerInfo, rawSize, 5 + size, cpuNanos);
+                return;
+            }
+            metrics.onCompress(thriftServerInfo, rawSize, 1 + rawSize, cpuNanos);
+        } else {
+            metrics.onCompress(thriftServerInfo, rawSize, 1 + rawSize, 0);
+        }
+        TFramedTransport.encodeFrameSize(1 + rawSize, header);
+        header[4] = RAW;
+        transport.write(header, 0, 5);
+        transport.write(raw, 0, rawSize);
+        transport.flush();
+    }
+
+    /**
+     * @return the size compressed into {@link #deflated}, 0 if it's not smaller than the
+     *         frame as is.
+     */
+    private int deflate(byte[] raw, int rawSize) throws TTransportException {
+        // worth it only if the compressed one and its original size are smaller.
+        int limit = rawSize - 4;
+        if (limit <= 0) {
+            return 0;
+        }
+        if (deflated.length < limit) {
+            deflated = new byte[limit];
+        }
+        enterCodec();
+        try {
+            if (deflater == null) {
+                deflater = new Deflater(level, true);
+            } else {
+                deflater.reset();
+            }
+            deflater.setInput(raw, 0, rawSize);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished() && size < limit) {
+                int n = deflater.deflate(deflated, size, limit - size);
+                if (n == 0) {
+                    break;
+                }
+                size += n;
+            }
+            return deflater.finished() ? size : 0;
+        } finally {
+            exitCodec();
+        }
+    }
+
+    private static int decodeInt(byte[] buf, int off) {
+        return ((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16)
+                | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+    }
+
+    private static void encodeInt(int value, byte[] buf, int off) {
+        buf[off] = (byte) (value >> 24);
+        buf[off + 1] = (byte) (value >> 16);
+        buf[off + 2] = (byte) (value >> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * <p>
+     * Factory class.
+     * </p>
+     * <p>
+     * The server side of {@link CompressedFramedTransport}, nothing is reported.
+     * </p>
+     */
+    public static class Factory extends TTransportFactory {
+
+        private final int minCompressSize;
+
+        private final int level;
+
+        private final int maxFrameSize;
+
+        public Factory() {
+            this(DEFAULT_MIN_COMPRESS_SIZE, Deflater.BEST_SPEED,
+                    PooledFramedTransport.DEFAULT_MAX_FRAME_SIZE);
+        }
+
+        /**
+         * @param minCompressSize frames smaller than it are sent as is.
+         * @param level the compression level of {@link Deflater}, from 0 to 9.
+         * @param maxFrameSize a larger frame written or read fails the transport.
+         */
+        public Factory(int minCompressSize, int level, int maxFrameSize) {
+            this.minCompressSize = minCompressSize;
+            this.level = level;
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public TTransport getTransport(TTransport base) {
+            return new CompressedFramedTransport(base, minCompressSize, level, maxFrameSize,
+                    null, ThriftClientMetrics.NONE);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.transport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * FrameBufferPool class.
+ * </p>
+ * <p>
+ * Buffers of {@link PooledFramedTransport} shared by all its connections, in size classes of
+ * powers of two from {@value #MIN_SIZE} bytes to {@code maxPooledSize}. A class keeps at most
+ * its share of {@code maxPooledBytes} (and {@value #MAX_SLOTS} buffers) in slots taken and put
+ * back by CAS, so neither acquiring nor releasing locks or allocates. A buffer larger than
+ * {@code maxPooledSize} is allocated for the frame and dropped after it.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class FrameBufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 9;
+    private static final int MIN_SIZE = 1 << MIN_SIZE_SHIFT;
+    private static final int MAX_SLOTS = 64;
+
+    private static final FrameBufferPool DEFAULT = new FrameBufferPool(1 << 20, 32 << 20, false);
+
+    private final int maxPooledSize;
+
+    private final boolean direct;
+
+    private final SizeClass[] classes;
+
+    /**
+     * <p>
+     * Constructor for FrameBufferPool.
+     * </p>
+     *
+     * @param maxPooledSize the largest buffer pooled, a power of two at least
+     *        {@value #MIN_SIZE}.
+     * @param maxPooledBytes the most bytes kept idle in the pool, split evenly by the size
+     *        classes.
+     * @param direct true for direct {@link ByteBuffer}s, off the heap. The transport copies
+     *        through a small heap chunk then.
+     */
+    public FrameBufferPool(int maxPooledSize, long maxPooledBytes, boolean direct) {
+        checkArgument(maxPooledSize >= MIN_SIZE && Integer.bitCount(maxPooledSize) == 1,
+                "maxPooledSize must be a power of two at least " + MIN_SIZE + ".");
+        checkArgument(maxPooledBytes >= 0, "maxPooledBytes must not be negative.");
+        this.maxPooledSize = maxPooledSize;
+        this.direct = direct;
+        this.classes = new SizeClass[Integer.numberOfTrailingZeros(maxPooledSize)
+                - MIN_SIZE_SHIFT + 1];
+        long bytesPerClass = maxPooledBytes / classes.length;
+        for (int i = 0; i < classes.length; i++) {
+            int size = MIN_SIZE << i;
+            classes[i] = new SizeClass(size, (int) Math.min(MAX_SLOTS, bytesPerClass / size));
+        }
+    }
+
+    /**
+     * @return the pool of heap buffers up to 1MB, 32MB at most kept idle.
+     */
+    public static FrameBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return a cleared buffer of at least the capacity, give it back by {@link #release}.
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity > maxPooledSize) {
+            return allocate(capacity);
+        }
+        SizeClass sizeClass = classes[indexOf(capacity)];
+        ByteBuffer buffer = sizeClass.poll();
+        return buffer != null ? buffer : allocate(sizeClass.size);
+    }
+
+    /**
+     * puts the buffer back, it's dropped if it's not of a size class or the class is full.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > maxPooledSize || capacity < MIN_SIZE || Integer.bitCount(capacity) != 1
+                || buffer.isDirect() != direct) {
+            return;
+        }
+        buffer.clear();
+        classes[indexOf(capacity)].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int indexOf(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, MIN_SIZE) - 1);
+        return shift - MIN_SIZE_SHIFT;
+    }
+
+    private static final class SizeClass {
+
+        private final int size;
+
+        private final AtomicReferenceArray<ByteBuffer> slots;
+
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        private SizeClass(int size, int slots) {
+            this.size = size;
+            this.slots = new AtomicReferenceArray<>(slots);
+        }
+
+        private ByteBuffer poll() {
+            if (pooled.get() <= 0) {
+                return null;
+            }
+            int length = slots.length();
+            int start = start(length);
+            for (int i = 0; i < length; i++) {
+                int index = (start + i) % length;
+                ByteBuffer buffer = slots.get(index);
+                if (buffer != null && slots.compareAndSet(index, buffer, null)) {
+                    pooled.decrementAndGet();
+                    return buffer;
+                }
+            }
+            return null;
+        }
+
+        private void offer(ByteBuffer buffer) {
+            int length = slots.length();
+            if (pooled.get() >= length) {
+                return;
+            }
+            int start = start(length);
+            for (int i = 0; i < length; i++) {
+                int index = (start + i) % length;
+                if (slots.get(index) == null && slots.compareAndSet(index, null, buffer)) {
+                    pooled.incrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        /** threads start from different slots, so they rarely race for the same one. */
+        private static int start(int length) {
+            return (int) (Thread.currentThread().getId() % length);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.transport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * <p>
+ * PooledFramedTransport class.
+ * </p>
+ * <p>
+ * A framed transport (the same wire format as {@link TFramedTransport}) whose frames are
+ * written and read in buffers of a {@link FrameBufferPool}. A buffer is only held while its
+ * frame is being written or read, it's back in the pool once the frame is flushed or read to
+ * the end, so an idle connection keeps no buffer and an unusually large frame doesn't leave a
+ * large buffer behind. Use it from the transport provider of a pool:
+ * </p>
+ *
+ * <pre>
+ * info -&gt; new PooledFramedTransport(new TSocket(info.getHost(), info.getPort()))
+ * </pre>
+ * <p>
+ * The frame buffer is not exposed by {@link #getBuffer()}: the zero-copy reads of the
+ * protocols wrap it for binary fields, which would then see it reused by the next frame. So
+ * the protocols copy what they read.
+ * </p>
+ * <p>
+ * {@link #close()} could be called by another thread (a cancelled hedge) while the frames are
+ * being read or written. It closes the underlying transport at once, and the buffers are given
+ * back by the thread using them when it's done, so a buffer is never given back twice nor used
+ * after that. The buffers are handed between the threads by the CAS of the state.
+ * </p>
+ *
+ * @author w.vela
+ * @version $Id: $Id
+ */
+public class PooledFramedTransport extends TTransport {
+
+    /** the same as {@link TFramedTransport}. */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384000;
+
+    private static final int COPY_CHUNK_SIZE = 8192;
+
+    /** copies between the underlying transport and direct buffers. */
+    private static final ThreadLocal<byte[]> COPY_CHUNK = ThreadLocal.withInitial(
+            () -> new byte[COPY_CHUNK_SIZE]);
+
+    private final TTransport transport;
+
+    private final FrameBufferPool pool;
+
+    private final int maxFrameSize;
+
+    private static final int IDLE = 0;
+    private static final int BUSY = 1;
+    private static final int CLOSED = 2;
+    /** closed while busy, the buffers are given back when it's idle. */
+    private static final int CLOSING = 3;
+
+    private final byte[] sizeBuffer = new byte[4];
+
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+
+    private ByteBuffer writeFrame;
+
+    private ByteBuffer readFrame;
+
+    /**
+     * <p>
+     * Constructor for PooledFramedTransport, by {@link FrameBufferPool#getDefault()}.
+     * </p>
+     *
+     * @param transport the underlying transport, like a {@link org.apache.thrift.transport.TSocket}.
+     */
+    public PooledFramedTransport(TTransport transport) {
+        this(transport, FrameBufferPool.getDefault(), DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * <p>
+     * Constructor for PooledFramedTransport.
+     * </p>
+     *
+     * @param transport the underlying transport, like a {@link org.apache.thrift.transport.TSocket}.
+     * @param pool the buffers of the frames.
+     * @param maxFrameSize a larger frame written or read fails the transport.
+     */
+    public PooledFramedTransport(TTransport transport, FrameBufferPool pool, int maxFrameSize) {
+        checkArgument(maxFrameSize > 0, "maxFrameSize must be positive.");
+        this.transport = transport;
+        this.pool = pool;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * @return the underlying transport.
+     */
+    public TTransport getTransport() {
+        return transport;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void open() throws TTransportException {
+        transport.open();
+        state.compareAndSet(CLOSED, IDLE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Gives back the buffers, or lets the thread using them give them back when it's done.
+     * </p>
+     */
+    @Override
+    public void close() {
+        while (true) {
+            int current = state.get();
+            if (current == IDLE) {
+                if (state.compareAndSet(IDLE, CLOSED)) {
+                    releaseFrames();
+                    break;
+                }
+            } else if (current == BUSY) {
+                if (state.compareAndSet(BUSY, CLOSING)) {
+                    break;
+                }
+            } else {
+                break;
+            }
+        }
+        transport.close();
+    }
+
+    /**
+     * the buffers are only touched between it and {@link #exit()}.
+     */
+    private void enter() throws TTransportException {
+        if (!state.compareAndSet(IDLE, BUSY)) {
+            throw new TTransportException(TTransportException.NOT_OPEN,
+                    "The transport is closed!");
+        }
+    }
+
+    private void exit() {
+        if (!state.compareAndSet(BUSY, IDLE)) {
+            // closed by another thread meanwhile.
+            state.set(CLOSED);
+            releaseFrames();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        enter();
+        try {
+            while (readFrame == null) {
+                readFrame();
+                if (!readFrame.hasRemaining()) {
+                    // an empty frame.
+                    releaseReadFrame();
+                }
+            }
+            int got = Math.min(len, readFrame.remaining());
+            readFrame.get(buf, off, got);
+            if (!readFrame.hasRemaining()) {
+                releaseReadFrame();
+            }
+            return got;
+        } finally {
+            exit();
+        }
+    }
+
+    private void readFrame() throws TTransportException {
+        transport.readAll(sizeBuffer, 0, 4);
+        int size = TFramedTransport.decodeFrameSize(sizeBuffer);
+        if (size < 0) {
+            close();
+            throw new TTransportException("Read a negative frame size (" + size + ")!");
+        }
+        if (size > maxFrameSize) {
+            close();
+            throw new TTransportException("Frame size (" + size + ") larger than max length ("
+                    + maxFrameSize + ")!");
+        }
+        ByteBuffer frame = pool.acquire(size);
+        try {
+            if (frame.hasArray()) {
+                transport.readAll(frame.array(), frame.arrayOffset(), size);
+                frame.limit(size);
+            } else {
+                byte[] chunk = COPY_CHUNK.get();
+                int remaining = size;
+                while (remaining > 0) {
+                    int got = transport.read(chunk, 0, Math.min(remaining, chunk.length));
+                    if (got <= 0) {
+                        throw new TTransportException(TTransportException.END_OF_FILE,
+                                "No more data available.");
+                    }
+                    frame.put(chunk, 0, got);
+                    remaining -= got;
+                }
+                frame.flip();
+            }
+        } catch (TTransportException e) {
+            pool.release(frame);
+            throw e;
+        }
+        readFrame = frame;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        enter();
+        try {
+            int size = writeFrame == null ? len : writeFrame.position() + len;
+            if (size > maxFrameSize) {
+                releaseWriteFrame();
+                throw new TTransportException("Frame size (" + size
+                        + ") larger than max length (" + maxFrameSize + ")!");
+            }
+            if (writeFrame == null) {
+                writeFrame = pool.acquire(size);
+            } else if (writeFrame.remaining() < len) {
+                ByteBuffer larger = pool.acquire(size);
+                writeFrame.flip();
+                larger.put(writeFrame);
+                pool.release(writeFrame);
+                writeFrame = larger;
+            }
+            writeFrame.put(buf, off, len);
+        } finally {
+            exit();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush() throws TTransportException {
+        enter();
+        try {
+            writeFrame();
+        } finally {
+            exit();
+        }
+        transport.flush();
+    }
+
+    private void writeFrame() throws TTransportException {
+        ByteBuffer frame = writeFrame;
+        writeFrame = null;
+        int size = frame == null ? 0 : frame.position();
+        try {
+            TFramedTransport.encodeFrameSize(size, sizeBuffer);
+            transport.write(sizeBuffer, 0, 4);
+            if (size > 0) {
+                if (frame.hasArray()) {
+                    transport.write(frame.array(), frame.arrayOffset(), size);
+                } else {
+                    byte[] chunk = COPY_CHUNK.get();
+                    frame.flip();
+                    while (frame.hasRemaining()) {
+                        int length = Math.min(frame.remaining(), chunk.length);
+                        frame.get(chunk, 0, length);
+                        transport.write(chunk, 0, length);
+                    }
+                }
+            }
+        } finally {
+            if (frame != null) {
+                pool.release(frame);
+            }
+        }
+    }
+
+    private void releaseFrames() {
+        releaseReadFrame();
+        releaseWriteFrame();
+    }
+
+    private void releaseReadFrame() {
+        if (readFrame != null) {
+            pool.release(readFrame);
+            readFrame = null;
+        }
+    }
+
+    private void releaseWriteFrame() {
+        if (writeFrame != null) {
+            pool.release(writeFrame);
+            writeFrame = null;
+        }
+    }
+}
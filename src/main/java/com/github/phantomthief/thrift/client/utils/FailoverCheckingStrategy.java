@@ -3,8 +3,8 @@
  */
 package com.github.phantomthief.thrift.client.utils;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.cache.CacheBuilder.newBuilder;
-import static com.google.common.collect.EvictingQueue.create;
 import static java.lang.Boolean.TRUE;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -12,18 +12,24 @@ import static org.slf4j.LoggerFactory.getLogger;
 
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.slf4j.Logger;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.google.common.collect.EvictingQueue;
 
 /**
  * <p>
  * FailoverCheckingStrategy class.
  * </p>
+ * <p>
+ * A server is failed for {@code recoveryDuration} after it failed {@code failCount} times in
+ * {@code failDuration}, or, if an error rate threshold is given, after its fails reached the
+ * rate of the calls in {@code failDuration}. Both are counted without locking or allocation.
+ * </p>
  *
  * @author w.vela
  * @version $Id: $Id
@@ -33,12 +39,19 @@ public class FailoverCheckingStrategy<T> {
     private static final int DEFAULT_FAIL_COUNT = 10;
     private static final long DEFAULT_FAIL_DURATION = MINUTES.toMillis(1);
     private static final long DEFAULT_RECOVERY_DURATION = MINUTES.toMillis(3);
+    private static final long MARK_FAILED_INTERVAL = 1000;
     private final Logger logger = getLogger(getClass());
     private final long failDuration;
 
+    private final double errorRateThreshold;
+
+    private final int minCalls;
+
     private final Cache<T, Boolean> failedList;
 
-    private final LoadingCache<T, EvictingQueue<Long>> failCountMap;
+    private final LoadingCache<T, ServerFailures> failCountMap;
+
+    private final AtomicLong version = new AtomicLong();
 
     /**
      * <p>
@@ -58,15 +71,37 @@ public class FailoverCheckingStrategy<T> {
      * @param recoveryDuration a long.
      */
     public FailoverCheckingStrategy(int failCount, long failDuration, long recoveryDuration) {
+        this(failCount, failDuration, recoveryDuration, 0, 0);
+    }
+
+    /**
+     * <p>
+     * Constructor for FailoverCheckingStrategy, also fails a server by its error rate, the
+     * successful calls must be reported by {@link #success(Object)}.
+     * </p>
+     *
+     * @param failDuration a long.
+     * @param recoveryDuration a long.
+     * @param errorRateThreshold a server is failed if its fails reach this rate of the calls
+     *        in {@code failDuration}, like 0.5; 0 for not checking the rate.
+     * @param minCalls the rate isn't checked with fewer calls in {@code failDuration}.
+     */
+    public FailoverCheckingStrategy(int failCount, long failDuration, long recoveryDuration,
+            double errorRateThreshold, int minCalls) {
+        checkArgument(errorRateThreshold >= 0 && errorRateThreshold <= 1,
+                "errorRateThreshold must be in [0, 1].");
         this.failDuration = failDuration;
+        this.errorRateThreshold = errorRateThreshold;
+        this.minCalls = Math.max(1, minCalls);
         this.failedList = newBuilder().weakKeys().expireAfterWrite(recoveryDuration, MILLISECONDS)
                 .build();
         this.failCountMap = newBuilder().weakKeys().build(
-                new CacheLoader<T, EvictingQueue<Long>>() {
+                new CacheLoader<T, ServerFailures>() {
 
                     @Override
-                    public EvictingQueue<Long> load(T key) throws Exception {
-                        return create(failCount);
+                    public ServerFailures load(T key) throws Exception {
+                        return new ServerFailures(failCount, errorRateThreshold > 0
+                                ? new CallCounts(failDuration) : null);
                     }
                 });
     }
@@ -93,20 +128,159 @@ public class FailoverCheckingStrategy<T> {
         logger.trace("server {} failed.", object);
         boolean addToFail = false;
         try {
-            EvictingQueue<Long> evictingQueue = failCountMap.get(object);
-            synchronized (evictingQueue) {
-                evictingQueue.add(System.currentTimeMillis());
-                if (evictingQueue.remainingCapacity() == 0
-                        && evictingQueue.element() >= System.currentTimeMillis() - failDuration) {
-                    addToFail = true;
-                }
+            long now = System.currentTimeMillis();
+            ServerFailures failures = failCountMap.get(object);
+            addToFail = failures.failTimes.add(now) >= now - failDuration;
+            if (failures.callCounts != null) {
+                failures.callCounts.add(now, true);
+                addToFail |= failures.callCounts.reached(now, errorRateThreshold, minCalls);
             }
+            // the cache write takes a lock, while a server keeps failing its recovery is only
+            // pushed back once in a while.
+            addToFail = addToFail && failures.markFailed(now);
         } catch (ExecutionException e) {
             logger.error("Ops.", e);
         }
         if (addToFail) {
             failedList.put(object, TRUE);
+            version.incrementAndGet();
             logger.trace("server {} failed. add to fail list.", object);
         }
     }
+
+    /**
+     * <p>
+     * getVersion.
+     * </p>
+     *
+     * @return increased when a server is put to the failed list, a server leaves it silently
+     *         after {@code recoveryDuration}.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * <p>
+     * success.
+     * </p>
+     * <p>
+     * Counts a successful call for the error rate, does nothing if the rate isn't checked.
+     * </p>
+     *
+     * @param object a T object.
+     */
+    public void success(T object) {
+        if (errorRateThreshold <= 0) {
+            return;
+        }
+        try {
+            failCountMap.get(object).callCounts.add(System.currentTimeMillis(), false);
+        } catch (ExecutionException e) {
+            logger.error("Ops.", e);
+        }
+    }
+
+    private static final class ServerFailures {
+
+        private final FailTimes failTimes;
+
+        private final CallCounts callCounts;
+
+        private final AtomicLong lastFailed = new AtomicLong();
+
+        private ServerFailures(int failCount, CallCounts callCounts) {
+            this.failTimes = new FailTimes(failCount);
+            this.callCounts = callCounts;
+        }
+
+        /**
+         * @return false if it was marked failed less than {@value #MARK_FAILED_INTERVAL}ms
+         *         ago.
+         */
+        private boolean markFailed(long now) {
+            long last = lastFailed.get();
+            return now - last >= MARK_FAILED_INTERVAL && lastFailed.compareAndSet(last, now);
+        }
+    }
+
+    /**
+     * the calls and fails of the last {@code failDuration} in {@value #BUCKETS} time buckets,
+     * a bucket is reused by CAS-ing its time slice when the window moves on. A count added
+     * while the bucket is being reset might be lost, it only makes the rate slightly
+     * inaccurate.
+     */
+    private static final class CallCounts {
+
+        private static final int BUCKETS = 10;
+
+        private final long bucketMillis;
+
+        private final AtomicLongArray slices = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLongArray calls = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLongArray fails = new AtomicLongArray(BUCKETS);
+
+        private CallCounts(long failDuration) {
+            this.bucketMillis = Math.max(1, failDuration / BUCKETS);
+        }
+
+        private void add(long now, boolean failed) {
+            long slice = now / bucketMillis;
+            int index = (int) (slice % BUCKETS);
+            long current = slices.get(index);
+            if (current != slice && slices.compareAndSet(index, current, slice)) {
+                calls.set(index, 0);
+                fails.set(index, 0);
+            }
+            calls.incrementAndGet(index);
+            if (failed) {
+                fails.incrementAndGet(index);
+            }
+        }
+
+        private boolean reached(long now, double errorRateThreshold, int minCalls) {
+            long slice = now / bucketMillis;
+            long callCount = 0;
+            long failCount = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (slice - slices.get(i) < BUCKETS) {
+                    callCount += calls.get(i);
+                    failCount += fails.get(i);
+                }
+            }
+            return callCount >= minCalls && failCount >= errorRateThreshold * callCount;
+        }
+    }
+
+    /**
+     * the last {@code failCount} fail times in a ring, it's lock-free so failing calls on many
+     * (virtual) threads neither block nor pin each other. Concurrent adds could overwrite a slot
+     * out of order, it only makes the window slightly inaccurate.
+     */
+    private static final class FailTimes {
+
+        private final AtomicLongArray times;
+
+        private final AtomicLong count = new AtomicLong();
+
+        private FailTimes(int failCount) {
+            this.times = new AtomicLongArray(failCount);
+        }
+
+        /**
+         * @return the oldest time of the last {@code failCount} fails including this one,
+         *         {@link Long#MIN_VALUE} if it has failed fewer times.
+         */
+        private long add(long time) {
+            int length = times.length();
+            long index = count.getAndIncrement();
+            times.set((int) (index % length), time);
+            if (index + 1 < length) {
+                return Long.MIN_VALUE;
+            }
+            return times.get((int) ((index + 1) % length));
+        }
+    }
 }
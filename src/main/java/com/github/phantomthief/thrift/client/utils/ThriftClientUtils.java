@@ -6,11 +6,24 @@ package com.github.phantomthief.thrift.client.utils;
 import static java.util.stream.Collectors.toSet;
 import static java.util.stream.Stream.of;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.Random;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import com.github.phantomthief.thrift.client.transport.CompressedFramedTransport;
+import com.github.phantomthief.thrift.client.transport.PooledFramedTransport;
 
 /**
  * <p>
@@ -22,9 +35,36 @@ import java.util.concurrent.ConcurrentMap;
  */
 public final class ThriftClientUtils {
 
-    private static final Random RANDOM = new Random();
+    private static final int PEEK_TIMEOUT = 1;
+
     private static ConcurrentMap<Class<?>, Set<String>> interfaceMethodCache = new ConcurrentHashMap<>();
 
+    /** TFramedTransport doesn't expose the transport it wraps. */
+    private static final Field FRAMED_TRANSPORT_FIELD;
+    static {
+        Field field;
+        try {
+            field = TFramedTransport.class.getDeclaredField("transport_");
+            field.setAccessible(true);
+        } catch (Exception e) {
+            field = null;
+        }
+        FRAMED_TRANSPORT_FIELD = field;
+    }
+
+    /** TSocket doesn't expose its buffered input stream either. */
+    private static final Field INPUT_STREAM_FIELD;
+    static {
+        Field field;
+        try {
+            field = TIOStreamTransport.class.getDeclaredField("inputStream_");
+            field.setAccessible(true);
+        } catch (Exception e) {
+            field = null;
+        }
+        INPUT_STREAM_FIELD = field;
+    }
+
     private ThriftClientUtils() {
         throw new UnsupportedOperationException();
     }
@@ -37,7 +77,7 @@ public final class ThriftClientUtils {
      * @return a int.
      */
     public static int randomNextInt() {
-        return RANDOM.nextInt();
+        return ThreadLocalRandom.current().nextInt();
     }
 
     /**
@@ -54,4 +94,129 @@ public final class ThriftClientUtils {
                 .map(Method::getName) //
                 .collect(toSet()));
     }
+
+    /**
+     * <p>
+     * getSocket.
+     * </p>
+     *
+     * @param transport a {@link TSocket}, or a {@link TFramedTransport}, a
+     *        {@link PooledFramedTransport} or a {@link CompressedFramedTransport} over it.
+     * @return the socket of the transport, {@code null} if it's not one of them.
+     */
+    public static Socket getSocket(TTransport transport) {
+        TSocket tsocket = getTSocket(transport);
+        return tsocket == null ? null : tsocket.getSocket();
+    }
+
+    /**
+     * <p>
+     * isQuiet.
+     * </p>
+     * <p>
+     * Checks an idle connection without blocking: it's open and has no unexpected data to
+     * read, neither buffered by the {@link TSocket} nor received by the socket. An end of
+     * stream (the server closed it) can't be seen without a read on a blocking socket, see
+     * {@link #isAlive(TTransport)} for that. Other transports are only checked by
+     * {@link TTransport#isOpen()}.
+     * </p>
+     *
+     * @param transport an idle connection, nobody else is reading it.
+     * @return false if the connection is not usable.
+     */
+    public static boolean isQuiet(TTransport transport) {
+        if (!transport.isOpen()) {
+            return false;
+        }
+        TSocket tsocket = getTSocket(transport);
+        if (tsocket == null) {
+            return true;
+        }
+        try {
+            return getInputStream(tsocket).available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * <p>
+     * isAlive.
+     * </p>
+     * <p>
+     * Peeks the socket of an idle connection for {@value #PEEK_TIMEOUT}ms: nothing to read
+     * means it's alive, while an end of stream (the server closed it, which
+     * {@link TTransport#isOpen()} doesn't see) or unexpected data means it's not. It's a
+     * blocking read, so a live connection always costs the whole {@value #PEEK_TIMEOUT}ms:
+     * fine for a background sweep, but too slow for borrowing, which should use
+     * {@link #isQuiet(TTransport)} or a cheap ping call. Other transports are only checked by
+     * {@link TTransport#isOpen()}.
+     * </p>
+     *
+     * @param transport an idle connection, nobody else is reading it.
+     * @return false if the connection is not usable.
+     */
+    public static boolean isAlive(TTransport transport) {
+        if (!isQuiet(transport)) {
+            return false;
+        }
+        TSocket tsocket = getTSocket(transport);
+        if (tsocket == null) {
+            return true;
+        }
+        Socket socket = tsocket.getSocket();
+        try {
+            int soTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(PEEK_TIMEOUT);
+            try {
+                // through the buffered stream of the TSocket, nothing is buffered as checked.
+                getInputStream(tsocket).read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(soTimeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static InputStream getInputStream(TSocket tsocket) throws IOException {
+        if (INPUT_STREAM_FIELD != null) {
+            try {
+                InputStream inputStream = (InputStream) INPUT_STREAM_FIELD.get(tsocket);
+                if (inputStream != null) {
+                    return inputStream;
+                }
+            } catch (IllegalAccessException e) {
+                // the raw one below
+            }
+        }
+        return tsocket.getSocket().getInputStream();
+    }
+
+    /**
+     * <p>
+     * getTSocket.
+     * </p>
+     *
+     * @param transport a {@link TSocket}, or a {@link TFramedTransport}, a
+     *        {@link PooledFramedTransport} or a {@link CompressedFramedTransport} over it.
+     * @return the {@link TSocket} of the transport, {@code null} if it's not one of them.
+     */
+    public static TSocket getTSocket(TTransport transport) {
+        if (transport instanceof PooledFramedTransport) {
+            transport = ((PooledFramedTransport) transport).getTransport();
+        } else if (transport instanceof CompressedFramedTransport) {
+            transport = ((CompressedFramedTransport) transport).getTransport();
+        } else if (transport instanceof TFramedTransport && FRAMED_TRANSPORT_FIELD != null) {
+            try {
+                transport = (TTransport) FRAMED_TRANSPORT_FIELD.get(transport);
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+        return transport instanceof TSocket ? (TSocket) transport : null;
+    }
 }
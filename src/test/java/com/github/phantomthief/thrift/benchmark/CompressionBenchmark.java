@@ -0,0 +1,224 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.benchmark;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.phantomthief.thrift.client.ThriftClient;
+import com.github.phantomthief.thrift.client.impl.ThriftClientImpl;
+import com.github.phantomthief.thrift.client.impl.ThriftServerInfoManager;
+import com.github.phantomthief.thrift.client.metrics.impl.DefaultThriftClientMetricsImpl;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.pool.impl.DefaultThriftConnectionPoolImpl;
+import com.github.phantomthief.thrift.client.transport.CompressedFramedTransport;
+import com.github.phantomthief.thrift.client.transport.PooledFramedTransport;
+import com.github.phantomthief.thrift.test.service.TestThriftService.Client;
+import com.github.phantomthief.thrift.test.service.TestThriftService.Iface;
+import com.github.phantomthief.thrift.test.service.TestThriftService.Processor;
+
+/**
+ * echo calls of a list-like text (records with random numbers, about 4x compressible) to an
+ * in-process server over a {@link TFramedTransport} or a {@link CompressedFramedTransport},
+ * on the loopback as is ({@code mbps} 0) or over a link of the given bandwidth both ways,
+ * made by pacing the bytes the client writes and reads. Compression costs CPU on both sides
+ * and pays off once the bytes saved take longer to send than that. The compression ratio and
+ * the time spent in compressing are printed after each trial.
+ *
+ * <pre>
+ * mvn -Pbenchmark test -Dbenchmark.main=com.github.phantomthief.thrift.benchmark.CompressionBenchmark
+ * </pre>
+ *
+ * @author w.vela
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+
+    @Param({ "framed", "compressed" })
+    private String transportType;
+
+    @Param({ "512", "8192", "262144" })
+    private int size;
+
+    @Param({ "0", "100" })
+    private int mbps;
+
+    private TServerSocket serverSocket;
+
+    private TServer server;
+
+    private DefaultThriftClientMetricsImpl metrics;
+
+    private ThriftServerInfo serverInfo;
+
+    private Client client;
+
+    private String message;
+
+    @Setup(Level.Trial)
+    public void setup() throws TTransportException {
+        boolean compressed = "compressed".equals(transportType);
+        serverSocket = new TServerSocket(0);
+        TTransportFactory serverTransport = compressed ? new CompressedFramedTransport.Factory()
+                : new TFramedTransport.Factory(Integer.MAX_VALUE);
+        server = new TThreadPoolServer(new TThreadPoolServer.Args(serverSocket) //
+                .processor(new Processor<Iface>(m -> m)) //
+                .transportFactory(serverTransport) //
+                .protocolFactory(new TCompactProtocol.Factory()));
+        Thread thread = new Thread(server::serve, "compression-server");
+        thread.setDaemon(true);
+        thread.start();
+        while (!server.isServing()) {
+            Thread.yield();
+        }
+
+        metrics = new DefaultThriftClientMetricsImpl();
+        Function<ThriftServerInfo, TTransport> transportProvider = info -> {
+            TTransport socket = new TSocket(info.getHost(), info.getPort());
+            if (mbps > 0) {
+                socket = new PacedTransport(socket, mbps * 1_000_000L / 8);
+            }
+            return compressed ? new CompressedFramedTransport(socket,
+                    CompressedFramedTransport.DEFAULT_MIN_COMPRESS_SIZE, Deflater.BEST_SPEED,
+                    PooledFramedTransport.DEFAULT_MAX_FRAME_SIZE, info, metrics)
+                    : new TFramedTransport(socket, Integer.MAX_VALUE);
+        };
+        DefaultThriftConnectionPoolImpl pool = new DefaultThriftConnectionPoolImpl(
+                new GenericKeyedObjectPoolConfig(), transportProvider);
+        serverInfo = ThriftServerInfo.of("127.0.0.1", serverSocket.getServerSocket()
+                .getLocalPort());
+        ThriftClient thriftClient = new ThriftClientImpl(new ThriftServerInfoManager(
+                Collections.singletonList(serverInfo), pool, i -> true), pool);
+        client = thriftClient.iface(Client.class);
+
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size) {
+            int id = random.nextInt(1000000);
+            sb.append("{\"id\":").append(id).append(",\"name\":\"user-").append(id)
+                    .append("\",\"score\":").append(random.nextInt(10000)).append("},");
+        }
+        message = sb.substring(0, size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.printf("%ncompression ratio: %.2f, compressing: %dms%n",
+                metrics.getCompressionRatio(serverInfo),
+                metrics.getCompressionNanos(serverInfo) / 1_000_000);
+        server.stop();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    public String echo() throws TException {
+        return client.echo(message);
+    }
+
+    /**
+     * a link of limited bandwidth: the bytes written and read go out one after another at its
+     * rate, a call waits until its bytes are through.
+     */
+    private static final class PacedTransport extends TTransport {
+
+        private final TTransport transport;
+
+        private final long bytesPerSecond;
+
+        private long linkFreeNanos = System.nanoTime();
+
+        private PacedTransport(TTransport transport, long bytesPerSecond) {
+            this.transport = transport;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return transport.isOpen();
+        }
+
+        @Override
+        public void open() throws TTransportException {
+            transport.open();
+        }
+
+        @Override
+        public void close() {
+            transport.close();
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws TTransportException {
+            int got = transport.read(buf, off, len);
+            pace(got);
+            return got;
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws TTransportException {
+            pace(len);
+            transport.write(buf, off, len);
+        }
+
+        @Override
+        public void flush() throws TTransportException {
+            transport.flush();
+        }
+
+        private void pace(int bytes) {
+            long now = System.nanoTime();
+            linkFreeNanos = Math.max(linkFreeNanos, now) + bytes * 1_000_000_000L
+                    / bytesPerSecond;
+            long wait;
+            while ((wait = linkFreeNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder() //
+                .include(CompressionBenchmark.class.getSimpleName()) //
+                .build()).run();
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.benchmark;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.phantomthief.thrift.client.ThriftClient;
+import com.github.phantomthief.thrift.client.exception.ConcurrencyLimitExceededException;
+import com.github.phantomthief.thrift.client.impl.ConcurrencyLimitPolicy;
+import com.github.phantomthief.thrift.client.impl.ThriftClientConfig;
+import com.github.phantomthief.thrift.client.impl.ThriftClientImpl;
+import com.github.phantomthief.thrift.client.impl.ThriftServerInfoManager;
+import com.github.phantomthief.thrift.client.pool.impl.DefaultThriftConnectionPoolImpl;
+import com.github.phantomthief.thrift.test.EchoServer;
+import com.github.phantomthief.thrift.test.service.TestThriftService.Client;
+
+/**
+ * 64 threads calling a stand-in server which gets slower as it gets busier: a call takes
+ * {@value #NANOS_PER_IN_FLIGHT_SQUARED}ns times the square of the calls in flight, so the
+ * more calls pile onto it the fewer it serves. Compares no limit (only the pool bounds the
+ * calls) with the adaptive concurrency limit, {@code succeeded} is the goodput and
+ * {@code rejected} the calls turned away at once.
+ *
+ * <pre>
+ * mvn -Pbenchmark test -Dbenchmark.main=com.github.phantomthief.thrift.benchmark.ConcurrencyLimitBenchmark
+ * </pre>
+ *
+ * @author w.vela
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = SECONDS)
+@Threads(64)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrencyLimitBenchmark {
+
+    private static final long NANOS_PER_IN_FLIGHT_SQUARED = 20_000;
+
+    @Param({ "none", "adaptive" })
+    private String limit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private EchoServer server;
+
+    private ThriftClient client;
+
+    @Setup(Level.Trial)
+    public void setup() throws TTransportException {
+        server = EchoServer.start(message -> {
+            int current = inFlight.incrementAndGet();
+            try {
+                LockSupport.parkNanos(NANOS_PER_IN_FLIGHT_SQUARED * current * current);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return message;
+        }, 128);
+        ThriftClientConfig config = new ThriftClientConfig();
+        if ("adaptive".equals(limit)) {
+            config.setConcurrencyLimitPolicy(new ConcurrencyLimitPolicy(8, 1, 128));
+        }
+        client = new ThriftClientImpl(new ThriftServerInfoManager(
+                Collections.singletonList(server.getServerInfo()),
+                DefaultThriftConnectionPoolImpl.getInstance(), info -> true),
+                DefaultThriftConnectionPoolImpl.getInstance(), config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void call(Calls calls) throws TException {
+        try {
+            client.iface(Client.class).echo("hello");
+            calls.succeeded++;
+        } catch (ConcurrencyLimitExceededException e) {
+            calls.rejected++;
+            // a real caller would fall back or fail the request, not retry at once.
+            LockSupport.parkNanos(MILLISECONDS.toNanos(1));
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Calls {
+
+        public long succeeded;
+
+        public long rejected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            succeeded = 0;
+            rejected = 0;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder() //
+                .include(ConcurrencyLimitBenchmark.class.getSimpleName()) //
+                .build()).run();
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.benchmark;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.pool.impl.DefaultThriftConnectionPoolImpl;
+import com.github.phantomthief.thrift.client.pool.impl.LockFreeThriftConnectionPoolImpl;
+
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * borrow and return on one hot server by many threads, commons-pool2 against the lock-free pool.
+ * The connections are in-memory transports so only the pool bookkeeping is measured.
+ *
+ * @author w.vela
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectionPoolBenchmark {
+
+    private static final ThriftServerInfo SERVER = ThriftServerInfo.of("127.0.0.1", 9090);
+
+    @Param({ "commons-pool2", "lock-free" })
+    private String poolType;
+
+    private ThriftConnectionPoolProvider pool;
+
+    @Setup
+    public void setup() {
+        switch (poolType) {
+            case "commons-pool2":
+                // the same as DefaultThriftConnectionPoolImpl.getInstance()
+                GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+                config.setMaxTotal(1000);
+                config.setMaxTotalPerKey(1000);
+                config.setMaxIdlePerKey(1000);
+                config.setMinIdlePerKey(1);
+                config.setTestOnBorrow(true);
+                config.setMinEvictableIdleTimeMillis(MINUTES.toMillis(1));
+                config.setSoftMinEvictableIdleTimeMillis(MINUTES.toMillis(1));
+                config.setJmxEnabled(false);
+                pool = new DefaultThriftConnectionPoolImpl(config, info -> new TMemoryBuffer(16));
+                break;
+            case "lock-free":
+                pool = new LockFreeThriftConnectionPoolImpl(info -> new TMemoryBuffer(16));
+                break;
+            default:
+                throw new IllegalArgumentException(poolType);
+        }
+    }
+
+    @Benchmark
+    public TTransport borrowAndReturn() throws Exception {
+        TTransport transport = pool.getConnection(SERVER);
+        pool.returnConnection(SERVER, transport);
+        return transport;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] { 1, 16, 64 }) {
+            new Runner(new OptionsBuilder() //
+                    .include(ConnectionPoolBenchmark.class.getSimpleName()) //
+                    .threads(threads) //
+                    .build()).run();
+        }
+    }
+}
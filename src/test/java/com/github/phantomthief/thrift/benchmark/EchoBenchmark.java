@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.benchmark;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.phantomthief.thrift.client.ThriftClient;
+import com.github.phantomthief.thrift.client.impl.FailoverThriftClientImpl;
+import com.github.phantomthief.thrift.client.impl.ThriftClientImpl;
+import com.github.phantomthief.thrift.client.impl.ThriftServerInfoManager;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.pool.impl.DefaultThriftConnectionPoolImpl;
+import com.github.phantomthief.thrift.test.EchoServer;
+import com.github.phantomthief.thrift.test.service.TestThriftService.Client;
+
+/**
+ * end to end echo calls against in-process servers on loopback, reports throughput and the
+ * latency percentiles (sample mode), {@link #main} runs it with 1, 8 and 64 threads and the gc
+ * profiler for the allocation rate.
+ *
+ * <pre>
+ * mvn -Pbenchmark test
+ * </pre>
+ *
+ * @author w.vela
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EchoBenchmark {
+
+    private static final String SERVICE_NAME = "echo";
+
+    @Param({ "plain", "failover" })
+    private String clientType;
+
+    @Param({ "16", "1024", "65536" })
+    private int payloadSize;
+
+    private EchoServer server;
+
+    private EchoServer multiplexedServer;
+
+    private ThriftClient client;
+
+    private ThriftClient multiplexedClient;
+
+    private String payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws TTransportException {
+        server = EchoServer.start(message -> message, 64);
+        multiplexedServer = EchoServer.startMultiplexed(SERVICE_NAME, 64);
+        client = newClient(server.getServerInfo());
+        multiplexedClient = newClient(multiplexedServer.getServerInfo());
+
+        StringBuilder sb = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            sb.append((char) ('a' + ThreadLocalRandom.current().nextInt(26)));
+        }
+        payload = sb.toString();
+    }
+
+    private ThriftClient newClient(ThriftServerInfo serverInfo) {
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(
+                Collections.singletonList(serverInfo), DefaultThriftConnectionPoolImpl.getInstance(),
+                info -> true);
+        switch (clientType) {
+            case "plain":
+                return new ThriftClientImpl(manager);
+            case "failover":
+                return new FailoverThriftClientImpl(manager);
+            default:
+                throw new IllegalArgumentException(clientType);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+        multiplexedServer.close();
+    }
+
+    @Benchmark
+    public String iface() throws TException {
+        return client.iface(Client.class).echo(payload);
+    }
+
+    @Benchmark
+    public String mpiface() throws TException {
+        return multiplexedClient.mpiface(Client.class, SERVICE_NAME).echo(payload);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] { 1, 8, 64 }) {
+            new Runner(new OptionsBuilder() //
+                    .include(EchoBenchmark.class.getSimpleName()) //
+                    .threads(threads) //
+                    .addProfiler(GCProfiler.class) //
+                    .build()).run();
+        }
+    }
+}
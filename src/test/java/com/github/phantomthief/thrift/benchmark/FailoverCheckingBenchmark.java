@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.benchmark;
+
+import static com.google.common.cache.CacheBuilder.newBuilder;
+import static java.lang.Boolean.TRUE;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.utils.FailoverCheckingStrategy;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.EvictingQueue;
+
+/**
+ * every call to one server fails (an outage) on many threads, the monitor-guarded
+ * {@code EvictingQueue<Long>} the strategy used to have against the lock-free fail times, with
+ * and without the error rate counters.
+ *
+ * @author w.vela
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FailoverCheckingBenchmark {
+
+    private static final ThriftServerInfo SERVER = ThriftServerInfo.of("127.0.0.1", 9090);
+    private static final int FAIL_COUNT = 10;
+    private static final long FAIL_DURATION = MINUTES.toMillis(1);
+
+    @Param({ "evicting-queue", "fail-times", "error-rate" })
+    private String strategyType;
+
+    private FailoverCheckingStrategy<ThriftServerInfo> strategy;
+
+    private LoadingCache<ThriftServerInfo, EvictingQueue<Long>> evictingQueues;
+
+    private Cache<ThriftServerInfo, Boolean> failedList;
+
+    @Setup
+    public void setup() {
+        switch (strategyType) {
+            case "evicting-queue":
+                failedList = newBuilder().weakKeys().expireAfterWrite(3, MINUTES).build();
+                evictingQueues = newBuilder().weakKeys().build(
+                        new CacheLoader<ThriftServerInfo, EvictingQueue<Long>>() {
+
+                            @Override
+                            public EvictingQueue<Long> load(ThriftServerInfo key) {
+                                return EvictingQueue.create(FAIL_COUNT);
+                            }
+                        });
+                break;
+            case "fail-times":
+                strategy = new FailoverCheckingStrategy<>(FAIL_COUNT, FAIL_DURATION,
+                        MINUTES.toMillis(3));
+                break;
+            case "error-rate":
+                strategy = new FailoverCheckingStrategy<>(FAIL_COUNT, FAIL_DURATION,
+                        MINUTES.toMillis(3), 0.5, 100);
+                break;
+            default:
+                throw new IllegalArgumentException(strategyType);
+        }
+    }
+
+    @Benchmark
+    public boolean fail() throws Exception {
+        if (strategy != null) {
+            strategy.fail(SERVER);
+            return false;
+        }
+        // what fail() did before
+        boolean addToFail;
+        EvictingQueue<Long> evictingQueue = evictingQueues.get(SERVER);
+        synchronized (evictingQueue) {
+            evictingQueue.add(System.currentTimeMillis());
+            addToFail = evictingQueue.remainingCapacity() == 0
+                    && evictingQueue.element() >= System.currentTimeMillis() - FAIL_DURATION;
+        }
+        if (addToFail) {
+            failedList.put(SERVER, TRUE);
+        }
+        return addToFail;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] { 1, 8, 64 }) {
+            new Runner(new OptionsBuilder() //
+                    .include(FailoverCheckingBenchmark.class.getSimpleName()) //
+                    .threads(threads) //
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.benchmark;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.phantomthief.thrift.client.transport.FrameBufferPool;
+import com.github.phantomthief.thrift.client.transport.PooledFramedTransport;
+import com.github.phantomthief.thrift.test.service.TestThriftService.echo_args;
+
+/**
+ * the allocation of the framed transports, a frame written and read back over an in-memory
+ * loopback which allocates nothing: {@link #frame} is the transport alone, {@link #compactEcho}
+ * an echo call message through the compact protocol. {@link #main} runs it with the gc
+ * profiler, see {@code gc.alloc.rate.norm}.
+ *
+ * <pre>
+ * mvn -Pbenchmark test -Dbenchmark.main=com.github.phantomthief.thrift.benchmark.FramedTransportBenchmark
+ * </pre>
+ *
+ * @author w.vela
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class FramedTransportBenchmark {
+
+    private static final TMessage MESSAGE = new TMessage("echo", TMessageType.CALL, 1);
+
+    @Param({ "framed", "pooled", "pooled-direct" })
+    private String transportType;
+
+    @Param({ "1024", "65536" })
+    private int payloadSize;
+
+    private TTransport transport;
+
+    private TProtocol protocol;
+
+    private byte[] payload;
+
+    private byte[] readBuffer;
+
+    private echo_args args;
+
+    private final echo_args readArgs = new echo_args();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        LoopbackTransport loopback = new LoopbackTransport(payloadSize * 2 + 64);
+        switch (transportType) {
+            case "framed":
+                transport = new TFramedTransport(loopback);
+                break;
+            case "pooled":
+                transport = new PooledFramedTransport(loopback);
+                break;
+            case "pooled-direct":
+                transport = new PooledFramedTransport(loopback, new FrameBufferPool(1 << 20,
+                        32 << 20, true), PooledFramedTransport.DEFAULT_MAX_FRAME_SIZE);
+                break;
+            default:
+                throw new IllegalArgumentException(transportType);
+        }
+        protocol = new TCompactProtocol(transport);
+        payload = new byte[payloadSize];
+        readBuffer = new byte[payloadSize];
+        StringBuilder sb = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+            sb.append((char) payload[i]);
+        }
+        args = new echo_args(sb.toString());
+    }
+
+    @Benchmark
+    public byte frame() throws TException {
+        transport.write(payload, 0, payload.length);
+        transport.flush();
+        transport.readAll(readBuffer, 0, readBuffer.length);
+        return readBuffer[0];
+    }
+
+    @Benchmark
+    public String compactEcho() throws TException {
+        protocol.writeMessageBegin(MESSAGE);
+        args.write(protocol);
+        protocol.writeMessageEnd();
+        transport.flush();
+        protocol.readMessageBegin();
+        readArgs.read(protocol);
+        protocol.readMessageEnd();
+        return readArgs.getMessage();
+    }
+
+    /**
+     * what's written is read back, from a fixed buffer.
+     */
+    private static final class LoopbackTransport extends TTransport {
+
+        private final byte[] buffer;
+
+        private int writePosition;
+
+        private int readPosition;
+
+        private LoopbackTransport(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) {
+            int got = Math.min(len, writePosition - readPosition);
+            System.arraycopy(buffer, readPosition, buf, off, got);
+            readPosition += got;
+            if (readPosition == writePosition) {
+                readPosition = writePosition = 0;
+            }
+            return got;
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            System.arraycopy(buf, off, buffer, writePosition, len);
+            writePosition += len;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder() //
+                .include(FramedTransportBenchmark.class.getSimpleName()) //
+                .addProfiler(GCProfiler.class) //
+                .build()).run();
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.benchmark;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Collections;
+
+import javassist.util.proxy.ProxyFactory;
+
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.phantomthief.thrift.client.ThriftClient;
+import com.github.phantomthief.thrift.client.impl.ThriftClientImpl;
+import com.github.phantomthief.thrift.client.impl.ThriftServerInfoManager;
+import com.github.phantomthief.thrift.client.pool.ThriftConnectionPoolProvider;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.utils.ThriftClientUtils;
+import com.github.phantomthief.thrift.test.service.TestThriftService.Client;
+
+/**
+ * per call cost of {@code iface()}, building a {@link ProxyFactory} for every call (the old way)
+ * against the cached proxy class. The pool hands out in-memory transports, so only the proxy
+ * work is measured.
+ *
+ * @author w.vela
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProxyCreationBenchmark {
+
+    private ThriftClient client;
+
+    @Setup
+    public void setup() {
+        ThriftConnectionPoolProvider poolProvider = new ThriftConnectionPoolProvider() {
+
+            @Override
+            public TTransport getConnection(ThriftServerInfo thriftServerInfo) {
+                return new TMemoryBuffer(16);
+            }
+
+            @Override
+            public void returnConnection(ThriftServerInfo thriftServerInfo, TTransport transport) {
+                // do nothing
+            }
+
+            @Override
+            public void returnBrokenConnection(ThriftServerInfo thriftServerInfo,
+                    TTransport transport) {
+                // do nothing
+            }
+        };
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(
+                Collections.singletonList(ThriftServerInfo.of("127.0.0.1", 9090)), poolProvider,
+                info -> true);
+        client = new ThriftClientImpl(manager, poolProvider);
+    }
+
+    @Benchmark
+    public Object uncachedProxyFactory() throws Exception {
+        ProxyFactory factory = new ProxyFactory();
+        factory.setSuperclass(Client.class);
+        factory.setFilter(m -> ThriftClientUtils.getInterfaceMethodNames(Client.class).contains(
+                m.getName()));
+        return factory.create(new Class[] { TProtocol.class },
+                new Object[] { new TCompactProtocol(new TMemoryBuffer(16)) });
+    }
+
+    @Benchmark
+    public Object cachedIface() {
+        return client.iface(Client.class, 1);
+    }
+
+    @Benchmark
+    public Object sharedIface() {
+        return client.iface(Client.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder() //
+                .include(ProxyCreationBenchmark.class.getSimpleName()) //
+                .build()).run();
+    }
+}
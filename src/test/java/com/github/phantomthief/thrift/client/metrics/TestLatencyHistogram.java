@@ -0,0 +1,105 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.client.metrics;
+
+import static com.github.phantomthief.thrift.client.metrics.LatencyHistogram.bucketOf;
+import static com.github.phantomthief.thrift.client.metrics.LatencyHistogram.upperBoundOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * in the package of the histogram for its buckets.
+ *
+ * @author w.vela
+ */
+public class TestLatencyHistogram {
+
+    @Test
+    public void testBuckets() {
+        // exact below the sub buckets, then each power of two is split in 8.
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, bucketOf(i));
+            assertEquals(i, upperBoundOf(i));
+        }
+        assertEquals(8, bucketOf(8));
+        assertEquals(15, bucketOf(15));
+        assertEquals(16, bucketOf(16));
+        assertEquals(16, bucketOf(17));
+        assertEquals(17, bucketOf(18));
+        assertEquals(17, upperBoundOf(16));
+        assertEquals(24, bucketOf(32));
+        assertEquals(35, upperBoundOf(24));
+
+        // the last bucket ends at Long.MAX_VALUE.
+        int last = bucketOf(Long.MAX_VALUE);
+        assertEquals(bucketOf(1L << 62 | 7L << 59), last);
+        assertEquals(Long.MAX_VALUE, upperBoundOf(last));
+        assertEquals(last - 1, bucketOf((1L << 62 | 7L << 59) - 1));
+
+        // the buckets are contiguous.
+        for (int i = 1; i <= last; i++) {
+            assertTrue(upperBoundOf(i) > upperBoundOf(i - 1));
+            assertEquals(i, bucketOf(upperBoundOf(i - 1) + 1));
+            assertEquals(i, bucketOf(upperBoundOf(i)));
+        }
+    }
+
+    @Test
+    public void testRelativeError() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> 1 + random.nextInt(63);
+            long upperBound = upperBoundOf(bucketOf(value));
+            assertTrue(upperBound >= value);
+            // a bucket is at most 1/8 of its lower bound wide.
+            assertTrue(upperBound - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 10000; i > 0; i--) {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 0);
+        assertWithin(5000, histogram.getPercentile(50));
+        assertWithin(9000, histogram.getPercentile(90));
+        assertWithin(9900, histogram.getPercentile(99));
+        assertWithin(1, histogram.getPercentile(0.01));
+        // capped by the max.
+        assertEquals(10000, histogram.getPercentile(100));
+
+        // negative values are recorded as 0.
+        LatencyHistogram negative = new LatencyHistogram();
+        negative.record(-1);
+        assertEquals(0, negative.getPercentile(100));
+        assertEquals(0, negative.getMax());
+
+        LatencyHistogram huge = new LatencyHistogram();
+        huge.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, huge.getPercentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " for " + expected, actual >= expected
+                && actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.test;
+
+import java.io.Closeable;
+
+import org.apache.thrift.TMultiplexedProcessor;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.test.service.TestThriftService.Iface;
+import com.github.phantomthief.thrift.test.service.TestThriftService.Processor;
+
+/**
+ * in-process {@code TestThriftService} server on a random loopback port, framed transport and
+ * compact protocol like the default client side.
+ *
+ * @author w.vela
+ */
+public final class EchoServer implements Closeable {
+
+    private final TNonblockingServerSocket serverSocket;
+
+    private final TServer server;
+
+    private EchoServer(TProcessor processor, int workerThreads, TProtocolFactory protocolFactory,
+            TTransportFactory transportFactory) throws TTransportException {
+        serverSocket = new TNonblockingServerSocket(0);
+        TThreadedSelectorServer.Args args = new TThreadedSelectorServer.Args(serverSocket) //
+                .processor(processor) //
+                .transportFactory(transportFactory) //
+                .protocolFactory(protocolFactory) //
+                .workerThreads(workerThreads);
+        server = new TThreadedSelectorServer(args);
+        Thread thread = new Thread(server::serve, "echo-server-" + serverSocket.getPort());
+        thread.setDaemon(true);
+        thread.start();
+        while (!server.isServing()) {
+            Thread.yield();
+        }
+    }
+
+    public static EchoServer start() throws TTransportException {
+        return start(message -> message);
+    }
+
+    public static EchoServer start(Iface iface) throws TTransportException {
+        return start(iface, 16);
+    }
+
+    public static EchoServer start(Iface iface, int workerThreads) throws TTransportException {
+        return start(iface, workerThreads, new TCompactProtocol.Factory());
+    }
+
+    public static EchoServer start(Iface iface, int workerThreads,
+            TProtocolFactory protocolFactory) throws TTransportException {
+        return start(iface, workerThreads, protocolFactory, new TFramedTransport.Factory(
+                Integer.MAX_VALUE));
+    }
+
+    /**
+     * @param transportFactory the transport of each request and response, over the frames
+     *        read and written by the server.
+     */
+    public static EchoServer start(Iface iface, int workerThreads,
+            TProtocolFactory protocolFactory, TTransportFactory transportFactory)
+            throws TTransportException {
+        return new EchoServer(new Processor<>(iface), workerThreads, protocolFactory,
+                transportFactory);
+    }
+
+    /**
+     * serves the echo service as {@code serviceName} of a multiplexed server, for mpiface.
+     */
+    public static EchoServer startMultiplexed(String serviceName, int workerThreads)
+            throws TTransportException {
+        TMultiplexedProcessor processor = new TMultiplexedProcessor();
+        processor.registerProcessor(serviceName, new Processor<Iface>(message -> message));
+        return new EchoServer(processor, workerThreads, new TCompactProtocol.Factory(),
+                new TFramedTransport.Factory(Integer.MAX_VALUE));
+    }
+
+    public ThriftServerInfo getServerInfo() {
+        return ThriftServerInfo.of("127.0.0.1", serverSocket.getPort());
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.test;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.utils.FailoverCheckingStrategy;
+
+/**
+ * @author w.vela
+ */
+public class TestFailoverCheckingStrategy {
+
+    private static final ThriftServerInfo SERVER = ThriftServerInfo.of("127.0.0.1", 9090);
+
+    @Test
+    public void testFailCount() {
+        FailoverCheckingStrategy<ThriftServerInfo> strategy = new FailoverCheckingStrategy<>(3,
+                MINUTES.toMillis(1), MINUTES.toMillis(1));
+        strategy.fail(SERVER);
+        strategy.fail(SERVER);
+        assertFalse(strategy.getFailed().contains(SERVER));
+        strategy.fail(SERVER);
+        assertTrue(strategy.getFailed().contains(SERVER));
+    }
+
+    @Test
+    public void testErrorRate() {
+        FailoverCheckingStrategy<ThriftServerInfo> strategy = new FailoverCheckingStrategy<>(
+                1000, MINUTES.toMillis(1), MINUTES.toMillis(1), 0.5, 20);
+        for (int i = 0; i < 30; i++) {
+            strategy.success(SERVER);
+        }
+        for (int i = 0; i < 20; i++) {
+            strategy.fail(SERVER);
+        }
+        // 40%
+        assertFalse(strategy.getFailed().contains(SERVER));
+        for (int i = 0; i < 10; i++) {
+            strategy.fail(SERVER);
+        }
+        // 50%
+        assertTrue(strategy.getFailed().contains(SERVER));
+    }
+}
@@ -3,15 +3,93 @@
  */
 package com.github.phantomthief.thrift.test;
 
-import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
-import org.junit.Test;
-import org.slf4j.Logger;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNoException;
+import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.function.Supplier;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.Deflater;
 
-import static org.slf4j.LoggerFactory.getLogger;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import org.apache.thrift.TException;
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import com.github.phantomthief.thrift.client.ThriftBatchResult;
+import com.github.phantomthief.thrift.client.ThriftClient;
+import com.github.phantomthief.thrift.client.ThriftDeadline;
+import com.github.phantomthief.thrift.client.exception.ConcurrencyLimitExceededException;
+import com.github.phantomthief.thrift.client.exception.DeadlineExceededException;
+import com.github.phantomthief.thrift.client.exception.NoBackendException;
+import com.github.phantomthief.thrift.client.impl.CircuitBreakerPolicy;
+import com.github.phantomthief.thrift.client.impl.FailoverThriftClientImpl;
+import com.github.phantomthief.thrift.client.impl.ConcurrencyLimitPolicy;
+import com.github.phantomthief.thrift.client.impl.HedgingPolicy;
+import com.github.phantomthief.thrift.client.impl.ResponseCachePolicy;
+import com.github.phantomthief.thrift.client.impl.ThriftAsyncClientImpl;
+import com.github.phantomthief.thrift.client.impl.ThriftClientConfig;
+import com.github.phantomthief.thrift.client.impl.ThriftClientImpl;
+import com.github.phantomthief.thrift.client.impl.ThriftServerInfoManager;
+import com.github.phantomthief.thrift.client.impl.WarmUpPolicy;
+import com.github.phantomthief.thrift.client.metrics.LatencyHistogram;
+import com.github.phantomthief.thrift.client.metrics.ThriftClientMetrics;
+import com.github.phantomthief.thrift.client.metrics.impl.DefaultThriftClientMetricsImpl;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.pool.impl.DefaultThriftConnectionPoolImpl;
+import com.github.phantomthief.thrift.client.pool.impl.DefaultThriftConnectionPoolImpl.ThriftConnectionFactory;
+import com.github.phantomthief.thrift.client.pool.impl.LockFreeThriftConnectionPoolImpl;
+import com.github.phantomthief.thrift.client.pool.impl.PipelinedThriftConnectionPoolImpl;
+import com.github.phantomthief.thrift.client.transport.CompressedFramedTransport;
+import com.github.phantomthief.thrift.client.transport.FrameBufferPool;
+import com.github.phantomthief.thrift.client.transport.PooledFramedTransport;
+import com.github.phantomthief.thrift.client.utils.FailoverCheckingStrategy;
+import com.github.phantomthief.thrift.client.utils.ThriftClientUtils;
+import com.github.phantomthief.thrift.test.service.TestThriftService.AsyncClient;
+import com.github.phantomthief.thrift.test.service.TestThriftService.AsyncClient.echo_call;
+import com.github.phantomthief.thrift.test.service.TestThriftService.Client;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * @author w.vela
@@ -21,31 +99,1223 @@ public class TestThriftPoolClient {
     private final Logger logger = getLogger(getClass());
 
     @Test
-    public void testEcho() throws InterruptedException {
-
-        // define serverList provider, you can use dynamic provider here to impl on the fly changing...
-        Supplier<List<ThriftServerInfo>> serverListProvider = () -> Arrays.asList( //
-                ThriftServerInfo.of("127.0.0.1", 9092), //
-                ThriftServerInfo.of("127.0.0.1", 9091), //
-                ThriftServerInfo.of("127.0.0.1", 9090));
+    public void testEcho() throws Exception {
+        List<EchoServer> servers = new ArrayList<>();
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            EchoServer server = EchoServer.start();
+            servers.add(server);
+            serverList.add(server.getServerInfo());
+        }
 
         // init pool client
-//        ThriftClientImpl client = new ThriftClientImpl(serverListProvider);
-//
-//        ExecutorService executorService = Executors.newFixedThreadPool(10);
-//
-//        for (int i = 0; i < 100; i++) {
-//            int counter = i;
-//            executorService.submit(() -> {
-//                try {
-//                    String result = client.iface(Client.class).echo("hi " + counter + "!");
-//                    logger.info("get result: {}", result);
-//                } catch (Throwable e) {
-//                    logger.error("get client fail", e);
-//                }
-//            });
-//        }
-//
-//        MoreExecutors.shutdownAndAwaitTermination(executorService, 1, MINUTES);
+        DefaultThriftClientMetricsImpl metrics = new DefaultThriftClientMetricsImpl();
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setMetrics(metrics);
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true),
+                DefaultThriftConnectionPoolImpl.getInstance(), config);
+
+        // the iface borrows a connection for each call, so it could be shared by threads.
+        Client iface = client.iface(Client.class);
+        assertSame(iface, client.iface(Client.class));
+        assertSame(iface, client.iface(Client.class));
+
+        ExecutorService executorService = Executors.newFixedThreadPool(10);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int counter = i;
+            results.add(executorService.submit(() -> {
+                String result = iface.echo("hi " + counter + "!");
+                logger.info("get result: {}", result);
+                return result;
+            }));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("hi " + i + "!", results.get(i).get());
+        }
+
+        Client hashed = client.iface(Client.class, TCompactProtocol::new, args -> args[0]
+                .hashCode());
+        assertEquals("hello", hashed.echo("hello"));
+        assertEquals("hello", client.iface(Client.class, "hello".hashCode()).echo("hello"));
+
+        assertEquals(102, metrics.getMethodLatencies().get("echo").getCount());
+        assertEquals(102, metrics.getServerLatencies().values().stream()
+                .mapToLong(LatencyHistogram::getCount).sum());
+        logger.info("echo latency: {}", metrics.getMethodLatencies().get("echo"));
+
+        MoreExecutors.shutdownAndAwaitTermination(executorService, 1, MINUTES);
+        servers.forEach(EchoServer::close);
+    }
+
+    @Test
+    public void testAsyncEcho() throws Exception {
+        List<EchoServer> servers = new ArrayList<>();
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            EchoServer server = EchoServer.start();
+            servers.add(server);
+            serverList.add(server.getServerInfo());
+        }
+
+        ThriftAsyncClientImpl client = new ThriftAsyncClientImpl(new ThriftServerInfoManager(
+                serverList, DefaultThriftConnectionPoolImpl.getInstance(), i -> true));
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String message = "hi " + i + "!";
+            results.add(client.asyncIface(AsyncClient.class,
+                    (c, callback) -> c.echo(message, callback), echo_call::getResult));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("hi " + i + "!", results.get(i).get(1, MINUTES));
+        }
+
+        client.close();
+        servers.forEach(EchoServer::close);
+    }
+
+    @Test
+    public void testPipelinedEcho() throws Exception {
+        List<EchoServer> servers = new ArrayList<>();
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            EchoServer server = EchoServer.start();
+            servers.add(server);
+            serverList.add(server.getServerInfo());
+        }
+
+        // all threads share a single connection per server.
+        PipelinedThriftConnectionPoolImpl pool = new PipelinedThriftConnectionPoolImpl(1,
+                (int) MINUTES.toMillis(1));
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList, pool,
+                i -> true), pool);
+        Client iface = client.iface(Client.class);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(50);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String message = "hi " + i + "!";
+            results.add(executorService.submit(() -> iface.echo(message)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("hi " + i + "!", results.get(i).get(1, MINUTES));
+        }
+
+        MoreExecutors.shutdownAndAwaitTermination(executorService, 1, MINUTES);
+        pool.close();
+        servers.forEach(EchoServer::close);
+    }
+
+    @Test
+    public void testPipelinedBadResponse() throws Exception {
+        // responds a strict binary header with a negative name length to each request.
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                        in.readFully(new byte[in.readInt()]);
+                        out.writeInt(12);
+                        out.write(new byte[] { (byte) 0x80, 1, 0, 2, -1, -1, -1, -16, 0, 0, 0,
+                                1 });
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            PipelinedThriftConnectionPoolImpl pool = new PipelinedThriftConnectionPoolImpl(1,
+                    (int) MINUTES.toMillis(1));
+            ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(Collections
+                    .singletonList(ThriftServerInfo.of("127.0.0.1", serverSocket
+                            .getLocalPort())), pool, i -> true), pool);
+            for (int i = 0; i < 2; i++) {
+                long start = System.nanoTime();
+                try {
+                    client.iface(Client.class).echo("hello");
+                    fail();
+                } catch (TException e) {
+                    // the connection is closed by its reader, not waited for its timeout.
+                    assertTrue(System.nanoTime() - start < SECONDS.toNanos(10));
+                }
+            }
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testInvokeAll() throws Exception {
+        List<EchoServer> servers = new ArrayList<>();
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            EchoServer server = EchoServer.start();
+            servers.add(server);
+            serverList.add(server.getServerInfo());
+        }
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true));
+
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add(i);
+        }
+        ThriftBatchResult<Integer, String> result = client.invokeAll(Client.class, (c, key) -> {
+            if (key == 13) {
+                throw new TException("bad key.");
+            }
+            return c.echo("hi " + key + "!");
+        }, keys, 8);
+
+        assertEquals(1000, result.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(keys.get(i), result.getKey(i));
+            if (i == 13) {
+                assertFalse(result.isSuccess(i));
+                assertTrue(result.getFailure(i) instanceof TException);
+            } else {
+                assertEquals("hi " + i + "!", result.get(i));
+            }
+        }
+        assertEquals(999, result.getResults().size());
+        assertEquals(1, result.getFailures().size());
+
+        servers.forEach(EchoServer::close);
+    }
+
+    @Test
+    public void testDefaultMethods() throws Exception {
+        EchoServer server = EchoServer.start();
+        ThriftClient impl = new ThriftClientImpl(new ThriftServerInfoManager(Collections
+                .singletonList(server.getServerInfo()),
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true));
+        // implements only the methods the interface had before.
+        ThriftClient client = new ThriftClient() {
+
+            @Override
+            public <X extends TServiceClient> X iface(Class<X> ifaceClass) {
+                return impl.iface(ifaceClass);
+            }
+
+            @Override
+            public <X extends TServiceClient> X iface(Class<X> ifaceClass, int hash) {
+                return impl.iface(ifaceClass, hash);
+            }
+
+            @Override
+            public <X extends TServiceClient> X iface(Class<X> ifaceClass,
+                    Function<TTransport, TProtocol> protocolProvider, int hash) {
+                return impl.iface(ifaceClass, protocolProvider, hash);
+            }
+
+            @Override
+            public <X extends TServiceClient> X mpiface(Class<X> ifaceClass,
+                    String serviceName) {
+                return impl.mpiface(ifaceClass, serviceName);
+            }
+
+            @Override
+            public <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName,
+                    int hash) {
+                return impl.mpiface(ifaceClass, serviceName, hash);
+            }
+
+            @Override
+            public <X extends TServiceClient> X mpiface(Class<X> ifaceClass, String serviceName,
+                    Function<TTransport, TProtocol> protocolProvider, int hash) {
+                return impl.mpiface(ifaceClass, serviceName, protocolProvider, hash);
+            }
+        };
+
+        ThriftBatchResult<Integer, String> result = client.invokeAll(Client.class, (c, key) -> {
+            if (key == 1) {
+                throw new TException("bad key.");
+            }
+            return c.echo("hi " + key + "!");
+        }, Arrays.asList(0, 1, 2), 8);
+        assertEquals("hi 0!", result.get(0));
+        assertTrue(result.getFailure(1) instanceof TException);
+        assertEquals("hi 2!", result.get(2));
+        ThriftBatchResult<String, String> echoed = client.invokeAll(Client.class,
+                TCompactProtocol::new, Client::echo, Arrays.asList("hello"), 8);
+        assertEquals("hello", echoed.get(0));
+        try {
+            client.iface(Client.class, 200, MILLISECONDS);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        server.close();
+    }
+
+    @Test
+    public void testInvokeAllByProtocol() throws Exception {
+        EchoServer binaryServer = EchoServer.start(message -> message, 16,
+                new TBinaryProtocol.Factory());
+        EchoServer multiplexedServer = EchoServer.startMultiplexed("echo", 16);
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keys.add(i);
+        }
+        ThriftClient binaryClient = new ThriftClientImpl(new ThriftServerInfoManager(
+                Collections.singletonList(binaryServer.getServerInfo()),
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true));
+        ThriftBatchResult<Integer, String> result = binaryClient.invokeAll(Client.class,
+                TBinaryProtocol::new, (c, key) -> c.echo("hi " + key), keys, 4);
+        assertEquals(100, result.getResults().size());
+        assertEquals("hi 42", result.get(42));
+
+        ThriftClient multiplexedClient = new ThriftClientImpl(new ThriftServerInfoManager(
+                Collections.singletonList(multiplexedServer.getServerInfo()),
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true));
+        result = multiplexedClient.invokeAll(Client.class, "echo", TCompactProtocol::new, (c,
+                key) -> c.echo("hi " + key), keys, 4);
+        assertEquals(100, result.getResults().size());
+        assertEquals("hi 42", result.get(42));
+
+        binaryServer.close();
+        multiplexedServer.close();
+    }
+
+    @Test
+    public void testHedging() throws Exception {
+        EchoServer slow = EchoServer.start(message -> {
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return message;
+        });
+        EchoServer fast = EchoServer.start();
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        serverList.add(slow.getServerInfo());
+        serverList.add(fast.getServerInfo());
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(serverList,
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true);
+
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setHedgingPolicy(new HedgingPolicy(Collections.singleton("echo"), 50, 100));
+        ThriftClient client = new ThriftClientImpl(manager,
+                DefaultThriftConnectionPoolImpl.getInstance(), config);
+        int slowHash = 0;
+        while (!slow.getServerInfo().equals(manager.get(slowHash))) {
+            slowHash++;
+        }
+
+        // the call to the slow server is hedged to the fast one after 50ms.
+        long start = System.nanoTime();
+        assertEquals("hello", client.iface(Client.class, slowHash).echo("hello"));
+        long elapsed = System.nanoTime() - start;
+        assertTrue("elapsed:" + elapsed, elapsed < SECONDS.toNanos(2));
+
+        slow.close();
+        fast.close();
+    }
+
+    @Test
+    public void testHedgingWithFailover() throws Exception {
+        EchoServer slow = EchoServer.start(message -> {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return message;
+        });
+        EchoServer fast = EchoServer.start();
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        serverList.add(slow.getServerInfo());
+        serverList.add(fast.getServerInfo());
+        DefaultThriftConnectionPoolImpl pool = new DefaultThriftConnectionPoolImpl(
+                new GenericKeyedObjectPoolConfig());
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(serverList, pool, i -> true);
+        FailoverCheckingStrategy<ThriftServerInfo> strategy = new FailoverCheckingStrategy<>(1,
+                MINUTES.toMillis(1), MINUTES.toMillis(1));
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setHedgingPolicy(new HedgingPolicy(Collections.singleton("echo"), 50, 100));
+        ThriftClient client = new FailoverThriftClientImpl(strategy, manager, pool, config);
+        int slowHash = 0;
+        while (!slow.getServerInfo().equals(manager.get(slowHash))) {
+            slowHash++;
+        }
+
+        // the lost attempts to the slow server are no failures of it.
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            assertEquals("hello", client.iface(Client.class, slowHash).echo("hello"));
+            assertTrue(System.nanoTime() - start < MILLISECONDS.toNanos(800));
+        }
+        assertTrue(strategy.getFailed().isEmpty());
+
+        slow.close();
+        fast.close();
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        EchoServer slow = EchoServer.start(message -> {
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return message;
+        });
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        serverList.add(slow.getServerInfo());
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true),
+                DefaultThriftConnectionPoolImpl.getInstance());
+
+        long start = System.nanoTime();
+        try (ThriftDeadline deadline = ThriftDeadline.within(200, MILLISECONDS)) {
+            client.iface(Client.class).echo("hello");
+            fail();
+        } catch (DeadlineExceededException e) {
+            assertTrue(System.nanoTime() - start < SECONDS.toNanos(2));
+        }
+
+        start = System.nanoTime();
+        try {
+            client.iface(Client.class, 200, MILLISECONDS).echo("hello");
+            fail();
+        } catch (DeadlineExceededException e) {
+            assertTrue(System.nanoTime() - start < SECONDS.toNanos(2));
+        }
+
+        // a pipelined call has no socket of its own, it waits for the time left instead.
+        PipelinedThriftConnectionPoolImpl pipelinedPool = new PipelinedThriftConnectionPoolImpl(1,
+                (int) MINUTES.toMillis(1));
+        ThriftClient pipelinedClient = new ThriftClientImpl(new ThriftServerInfoManager(
+                serverList, pipelinedPool, i -> true), pipelinedPool);
+        start = System.nanoTime();
+        try {
+            pipelinedClient.iface(Client.class, 200, MILLISECONDS).echo("hello");
+            fail();
+        } catch (DeadlineExceededException e) {
+            assertTrue(System.nanoTime() - start < SECONDS.toNanos(2));
+        }
+        pipelinedPool.close();
+        slow.close();
+    }
+
+    @Test
+    public void testBorrowDeadlineExceeded() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        EchoServer server = EchoServer.start(message -> {
+            calls.incrementAndGet();
+            throw new TException("down");
+        });
+        List<ThriftServerInfo> serverList = Collections.singletonList(server.getServerInfo());
+
+        // the connection of a call out of time before it's made isn't a success of the server.
+        DefaultThriftConnectionPoolImpl pool = new DefaultThriftConnectionPoolImpl(
+                new GenericKeyedObjectPoolConfig());
+        FailoverCheckingStrategy<ThriftServerInfo> strategy = new FailoverCheckingStrategy<>(100,
+                MINUTES.toMillis(1), MINUTES.toMillis(1), 0.5, 2);
+        ThriftClient failoverClient = new FailoverThriftClientImpl(strategy,
+                new ThriftServerInfoManager(serverList, pool, i -> true), pool,
+                new ThriftClientConfig());
+        for (int i = 0; i < 10; i++) {
+            try (ThriftDeadline deadline = ThriftDeadline.within(0, MILLISECONDS)) {
+                failoverClient.iface(Client.class).echo("hello");
+                fail();
+            } catch (DeadlineExceededException e) {
+                // expected
+            }
+        }
+        assertEquals(0, calls.get());
+        for (int i = 0; i < 2; i++) {
+            try {
+                failoverClient.iface(Client.class).echo("hello");
+                fail();
+            } catch (TException e) {
+                // expected
+            }
+        }
+        assertEquals(Collections.singleton(server.getServerInfo()), strategy.getFailed());
+
+        // nor does it use up the trial of a half-open circuit.
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setCircuitBreakerPolicy(new CircuitBreakerPolicy(1, 300, 1));
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList, pool,
+                i -> true), pool, config);
+        try {
+            client.iface(Client.class).echo("hello");
+            fail();
+        } catch (TException e) {
+            // expected
+        }
+        Thread.sleep(400);
+        try (ThriftDeadline deadline = ThriftDeadline.within(0, MILLISECONDS)) {
+            client.iface(Client.class).echo("hello");
+            fail();
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        int called = calls.get();
+        try {
+            client.iface(Client.class).echo("hello");
+            fail();
+        } catch (TException e) {
+            // the trial reaches the server.
+            assertEquals(called + 1, calls.get());
+        }
+        server.close();
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        AtomicBoolean down = new AtomicBoolean(true);
+        AtomicInteger calls = new AtomicInteger();
+        EchoServer server = EchoServer.start(message -> {
+            calls.incrementAndGet();
+            if (down.get()) {
+                throw new TException("down");
+            }
+            return message;
+        });
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        serverList.add(server.getServerInfo());
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setCircuitBreakerPolicy(new CircuitBreakerPolicy(3, 300, 2));
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true),
+                DefaultThriftConnectionPoolImpl.getInstance(), config);
+
+        // opens after 3 failures, no call reaches the server then.
+        for (int i = 0; i < 3; i++) {
+            try {
+                client.iface(Client.class).echo("hello");
+                fail();
+            } catch (TException e) {
+                // expected
+            }
+        }
+        assertEquals(3, calls.get());
+        try {
+            client.iface(Client.class).echo("hello");
+            fail();
+        } catch (NoBackendException e) {
+            assertEquals(3, calls.get());
+        }
+
+        // a failed trial opens it again.
+        Thread.sleep(400);
+        try {
+            client.iface(Client.class).echo("hello");
+            fail();
+        } catch (TException e) {
+            assertEquals(4, calls.get());
+        }
+        try {
+            client.iface(Client.class).echo("hello");
+            fail();
+        } catch (NoBackendException e) {
+            assertEquals(4, calls.get());
+        }
+
+        // closed after 2 successful trials.
+        down.set(false);
+        Thread.sleep(400);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("hello", client.iface(Client.class).echo("hello"));
+        }
+        assertEquals(14, calls.get());
+        server.close();
+    }
+
+    @Test
+    public void testCircuitBreakerIgnoresLateSuccess() throws Exception {
+        CountDownLatch slowEntered = new CountDownLatch(1);
+        CountDownLatch slowRelease = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        EchoServer server = EchoServer.start(message -> {
+            calls.incrementAndGet();
+            if ("slow".equals(message)) {
+                slowEntered.countDown();
+                try {
+                    slowRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if ("fail".equals(message)) {
+                throw new TException("fail");
+            }
+            return message;
+        });
+        List<ThriftServerInfo> serverList = Collections.singletonList(server.getServerInfo());
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setCircuitBreakerPolicy(new CircuitBreakerPolicy(2, 300, 2));
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true),
+                DefaultThriftConnectionPoolImpl.getInstance(), config);
+
+        // a slow call let through while it's closed.
+        CompletableFuture<String> slow = CompletableFuture.supplyAsync(() -> {
+            try {
+                return client.iface(Client.class).echo("slow");
+            } catch (TException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(slowEntered.await(10, SECONDS));
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.iface(Client.class).echo("fail");
+                fail();
+            } catch (TException e) {
+                // expected
+            }
+        }
+
+        // half-open, one of the 2 trials succeeded.
+        Thread.sleep(400);
+        assertEquals("hello", client.iface(Client.class).echo("hello"));
+
+        // the slow call succeeds late, it's not a trial so it doesn't close the circuit.
+        slowRelease.countDown();
+        assertEquals("slow", slow.get(10, SECONDS));
+
+        // still half-open: the last trial fails and opens it again.
+        try {
+            client.iface(Client.class).echo("fail");
+            fail();
+        } catch (TException e) {
+            // expected
+        }
+        int called = calls.get();
+        try {
+            client.iface(Client.class).echo("hello");
+            fail();
+        } catch (NoBackendException e) {
+            assertEquals(called, calls.get());
+        }
+        server.close();
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        CountDownLatch entered = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        EchoServer server = EchoServer.start(message -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return message;
+        });
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        serverList.add(server.getServerInfo());
+        AtomicInteger limitExceeded = new AtomicInteger();
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setMetrics(new ThriftClientMetrics() {
+
+            @Override
+            public void onLimitExceeded(ThriftServerInfo thriftServerInfo) {
+                limitExceeded.incrementAndGet();
+            }
+        });
+        config.setConcurrencyLimitPolicy(new ConcurrencyLimitPolicy(2, 1, 10));
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true),
+                DefaultThriftConnectionPoolImpl.getInstance(), config);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            futures.add(executor.submit(() -> client.iface(Client.class).echo("hello")));
+        }
+        assertTrue(entered.await(10, SECONDS));
+
+        // the third call in flight is rejected at once.
+        long start = System.nanoTime();
+        try {
+            client.iface(Client.class).echo("hello");
+            fail();
+        } catch (ConcurrencyLimitExceededException e) {
+            assertTrue(System.nanoTime() - start < SECONDS.toNanos(1));
+            assertEquals(1, limitExceeded.get());
+        }
+
+        release.countDown();
+        for (Future<String> future : futures) {
+            assertEquals("hello", future.get(10, SECONDS));
+        }
+        assertEquals("hello", client.iface(Client.class).echo("hello"));
+        executor.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void testResponseCache() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        EchoServer server = EchoServer.start(message -> {
+            calls.incrementAndGet();
+            return message;
+        });
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        serverList.add(server.getServerInfo());
+        DefaultThriftClientMetricsImpl metrics = new DefaultThriftClientMetricsImpl();
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setMetrics(metrics);
+        config.setResponseCachePolicy(new ResponseCachePolicy(Collections.singleton("echo"),
+                1000, 300));
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true),
+                DefaultThriftConnectionPoolImpl.getInstance(), config);
+
+        assertEquals("hello", client.iface(Client.class).echo("hello"));
+        // a hit doesn't even borrow a connection.
+        assertEquals("hello", client.iface(Client.class).echo("hello"));
+        assertEquals(1, calls.get());
+        assertEquals(1, metrics.getBorrowWait(server.getServerInfo()).getCount());
+        assertEquals(1, metrics.getCacheHits());
+        assertEquals(1, metrics.getCacheMisses());
+
+        // the arguments are the key.
+        assertEquals("world", client.iface(Client.class).echo("world"));
+        assertEquals(2, calls.get());
+
+        // expired.
+        Thread.sleep(400);
+        assertEquals("hello", client.iface(Client.class).echo("hello"));
+        assertEquals(3, calls.get());
+
+        // evicted beyond the size.
+        for (int i = 0; i < 200; i++) {
+            client.iface(Client.class).echo("hello" + i);
+        }
+        assertTrue(metrics.getCacheEvictions() > 0);
+        server.close();
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        EchoServer server = EchoServer.start(message -> {
+            calls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return message;
+        });
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        serverList.add(server.getServerInfo());
+        DefaultThriftClientMetricsImpl metrics = new DefaultThriftClientMetricsImpl();
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setMetrics(metrics);
+        config.setCoalescedMethods(Collections.singleton("echo"));
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                DefaultThriftConnectionPoolImpl.getInstance(), i -> true),
+                DefaultThriftConnectionPoolImpl.getInstance(), config);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(() -> client.iface(Client.class).echo("hello")));
+        }
+        while (metrics.getCoalescedCount() < 7) {
+            Thread.sleep(10);
+        }
+
+        // a waiter gives up by its own deadline, the call goes on.
+        try {
+            client.iface(Client.class, 100, MILLISECONDS).echo("hello");
+            fail();
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+
+        release.countDown();
+        for (Future<String> future : futures) {
+            assertEquals("hello", future.get(10, SECONDS));
+        }
+        assertEquals(1, calls.get());
+
+        // the call is over, the next one calls the server.
+        assertEquals("hello", client.iface(Client.class).echo("hello"));
+        assertEquals(2, calls.get());
+        executor.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void testLockFreePool() throws Exception {
+        EchoServer server = EchoServer.start();
+        ThriftServerInfo info = server.getServerInfo();
+        AtomicInteger created = new AtomicInteger();
+        LockFreeThriftConnectionPoolImpl pool = new LockFreeThriftConnectionPoolImpl(i -> {
+            created.incrementAndGet();
+            return new TFramedTransport(new TSocket(i.getHost(), i.getPort()));
+        }, 2, 300, 200);
+
+        // bounded per server, a borrower waits until its timeout.
+        TTransport first = pool.getConnection(info);
+        TTransport second = pool.getConnection(info);
+        long start = System.nanoTime();
+        try {
+            pool.getConnection(info);
+            fail();
+        } catch (NoSuchElementException e) {
+            assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(300));
+        }
+
+        // a waiter is woken by a connection returned.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<TTransport> waiting = executor.submit(() -> pool.getConnection(info));
+        Thread.sleep(50);
+        pool.returnConnection(info, first);
+        assertSame(first, waiting.get(1, MINUTES));
+
+        // an interrupted waiter gives up at once.
+        Thread.currentThread().interrupt();
+        start = System.nanoTime();
+        try {
+            pool.getConnection(info);
+            fail();
+        } catch (InterruptedException e) {
+            assertTrue(System.nanoTime() - start < MILLISECONDS.toNanos(200));
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+
+        // the idle connections are evicted but one.
+        pool.returnConnection(info, first);
+        pool.returnConnection(info, second);
+        assertEquals(2, created.get());
+        Thread.sleep(600);
+        TTransport kept = pool.getConnection(info);
+        assertTrue(kept == first || kept == second);
+        pool.getConnection(info);
+        assertEquals(3, created.get());
+        executor.shutdown();
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void testPooledFramedTransport() throws Exception {
+        EchoServer server = EchoServer.start();
+        List<ThriftServerInfo> serverList = Collections.singletonList(server.getServerInfo());
+        for (boolean direct : new boolean[] { false, true }) {
+            FrameBufferPool bufferPool = new FrameBufferPool(1024, 64 * 1024, direct);
+            DefaultThriftConnectionPoolImpl pool = new DefaultThriftConnectionPoolImpl(
+                    new GenericKeyedObjectPoolConfig(), info -> new PooledFramedTransport(
+                            new TSocket(info.getHost(), info.getPort()), bufferPool, 4096));
+            ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                    pool, i -> true), pool);
+
+            // pooled, pooled after growing while writing, and larger than the pooled ones.
+            for (int size : new int[] { 10, 1000, 3000 }) {
+                String message = newMessage(size);
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(message, client.iface(Client.class).echo(message));
+                }
+            }
+            assertEquals("hello", client.iface(Client.class, 1, SECONDS).echo("hello"));
+
+            TTransport transport = pool.getConnection(server.getServerInfo());
+            assertTrue(ThriftClientUtils.getSocket(transport) != null);
+            pool.returnConnection(server.getServerInfo(), transport);
+
+            try {
+                client.iface(Client.class).echo(newMessage(5000));
+                fail();
+            } catch (TException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("larger than max length"));
+            }
+            assertEquals("hello", client.iface(Client.class).echo("hello"));
+        }
+        server.close();
+    }
+
+    @Test
+    public void testPooledFramedTransportClosedByAnotherThread() throws Exception {
+        Set<ByteBuffer> acquired = Collections.newSetFromMap(new IdentityHashMap<>());
+        AtomicInteger doubleReleases = new AtomicInteger();
+        FrameBufferPool bufferPool = new FrameBufferPool(1024, 64 * 1024, false) {
+
+            @Override
+            public synchronized ByteBuffer acquire(int capacity) {
+                ByteBuffer buffer = super.acquire(capacity);
+                acquired.add(buffer);
+                return buffer;
+            }
+
+            @Override
+            public synchronized void release(ByteBuffer buffer) {
+                if (!acquired.remove(buffer)) {
+                    doubleReleases.incrementAndGet();
+                }
+                super.release(buffer);
+            }
+        };
+        // a frame of 8 bytes, its body arrives only when the transport is closed.
+        byte[] data = { 0, 0, 0, 8, 1, 2, 3, 4, 5, 6, 7, 8 };
+        CountDownLatch bodyWaited = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        TTransport socket = new TTransport() {
+
+            private int position;
+
+            @Override
+            public boolean isOpen() {
+                return closed.getCount() > 0;
+            }
+
+            @Override
+            public void open() {
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) {
+                if (position >= 4) {
+                    bodyWaited.countDown();
+                    Uninterruptibles.awaitUninterruptibly(closed);
+                }
+                int got = Math.min(len, data.length - position);
+                System.arraycopy(data, position, buf, off, got);
+                position += got;
+                return got;
+            }
+
+            @Override
+            public void write(byte[] buf, int off, int len) {
+            }
+        };
+        PooledFramedTransport transport = new PooledFramedTransport(socket, bufferPool, 1024);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Integer> reading = executor.submit(() -> transport.read(new byte[4], 0, 4));
+        bodyWaited.await();
+        transport.close();
+
+        // the reader finishes its read, then gives the frame back, exactly once.
+        assertEquals(4, (int) reading.get(1, MINUTES));
+        assertTrue(acquired.isEmpty());
+        assertEquals(0, doubleReleases.get());
+        try {
+            transport.read(new byte[4], 0, 4);
+            fail();
+        } catch (TTransportException e) {
+            assertEquals(TTransportException.NOT_OPEN, e.getType());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testCompressedFramedTransport() throws Exception {
+        EchoServer server = EchoServer.start(message -> message, 16,
+                new TCompactProtocol.Factory(), new CompressedFramedTransport.Factory(1024,
+                        Deflater.BEST_SPEED, 1 << 20));
+        List<ThriftServerInfo> serverList = Collections.singletonList(server.getServerInfo());
+        DefaultThriftClientMetricsImpl metrics = new DefaultThriftClientMetricsImpl();
+        DefaultThriftConnectionPoolImpl pool = new DefaultThriftConnectionPoolImpl(
+                new GenericKeyedObjectPoolConfig(), info -> new CompressedFramedTransport(
+                        new TSocket(info.getHost(), info.getPort()), 1024, Deflater.BEST_SPEED,
+                        1 << 20, info, metrics));
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList, pool,
+                i -> true), pool);
+
+        // as is below the threshold, with the codec byte.
+        assertEquals("hello", client.iface(Client.class).echo("hello"));
+        assertTrue(metrics.getCompressionRatio(server.getServerInfo()) < 1);
+        assertEquals(0, metrics.getCompressionNanos(server.getServerInfo()));
+
+        // compressed both ways, and many times smaller.
+        String message = newMessage(100000);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(message, client.iface(Client.class).echo(message));
+        }
+        assertTrue(metrics.getCompressionRatio(server.getServerInfo()) > 10);
+        assertTrue(metrics.getCompressionNanos(server.getServerInfo()) > 0);
+
+        // incompressible, sent as is.
+        Random rnd = new Random(1);
+        StringBuilder random = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            random.append((char) ('!' + rnd.nextInt(90)));
+        }
+        assertEquals(random.toString(), client.iface(Client.class).echo(random.toString()));
+
+        // a frame larger than the max size isn't sent.
+        try {
+            client.iface(Client.class).echo(newMessage(2 << 20));
+            fail();
+        } catch (TException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("larger than max length"));
+        }
+        assertEquals("hello", client.iface(Client.class).echo("hello"));
+
+        // the codecs are ended on close, a closed connection isn't usable.
+        CompressedFramedTransport transport = new CompressedFramedTransport(new TSocket(server
+                .getServerInfo().getHost(), server.getServerInfo().getPort()));
+        transport.open();
+        Client direct = new Client(new TCompactProtocol(transport));
+        assertEquals(message, direct.echo(message));
+        assertEquals("hello", direct.echo("hello"));
+        transport.close();
+        try {
+            direct.echo(message);
+            fail();
+        } catch (TTransportException e) {
+            // expected
+        }
+        server.close();
+    }
+
+    @Test
+    public void testFailoverSkipsFailedServers() throws Exception {
+        AtomicInteger failedCalls = new AtomicInteger();
+        AtomicInteger healthyCalls = new AtomicInteger();
+        EchoServer failedServer = EchoServer.start(message -> {
+            failedCalls.incrementAndGet();
+            return message;
+        });
+        EchoServer healthyServer = EchoServer.start(message -> {
+            healthyCalls.incrementAndGet();
+            return message;
+        });
+        FailoverCheckingStrategy<ThriftServerInfo> strategy = new FailoverCheckingStrategy<>(1,
+                MINUTES.toMillis(1), MINUTES.toMillis(1));
+        DefaultThriftConnectionPoolImpl pool = new DefaultThriftConnectionPoolImpl(
+                new GenericKeyedObjectPoolConfig());
+        ThriftClient client = new FailoverThriftClientImpl(strategy, new ThriftServerInfoManager(
+                Arrays.asList(failedServer.getServerInfo(), healthyServer.getServerInfo()), pool,
+                i -> true), pool);
+
+        strategy.fail(failedServer.getServerInfo());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("hello", client.iface(Client.class).echo("hello"));
+        }
+        assertEquals(0, failedCalls.get());
+        assertEquals(20, healthyCalls.get());
+
+        // all failed, still called.
+        strategy.fail(healthyServer.getServerInfo());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("hello", client.iface(Client.class).echo("hello"));
+        }
+        assertEquals(40, failedCalls.get() + healthyCalls.get());
+        failedServer.close();
+        healthyServer.close();
+    }
+
+    @Test
+    public void testConnectionBoundClients() throws Exception {
+        EchoServer compactServer = EchoServer.start();
+        EchoServer binaryServer = EchoServer.start(message -> message, 16,
+                new TBinaryProtocol.Factory());
+        EchoServer multiplexedServer = EchoServer.startMultiplexed("echo", 16);
+        AtomicInteger protocols = new AtomicInteger();
+        Function<TTransport, TProtocol> compact = transport -> {
+            protocols.incrementAndGet();
+            return new TCompactProtocol(transport);
+        };
+        Function<TTransport, TProtocol> binary = transport -> {
+            protocols.incrementAndGet();
+            return new TBinaryProtocol(transport);
+        };
+
+        // sequential calls take the same connection, and the client bound to it.
+        for (EchoServer server : new EchoServer[] { compactServer, binaryServer,
+                multiplexedServer }) {
+            List<ThriftServerInfo> serverList = Collections.singletonList(server
+                    .getServerInfo());
+            DefaultThriftConnectionPoolImpl pool = new DefaultThriftConnectionPoolImpl(
+                    new GenericKeyedObjectPoolConfig());
+            ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                    pool, i -> true), pool);
+            Client iface = server == multiplexedServer ? client.mpiface(Client.class, "echo",
+                    compact, args -> 0) : client.iface(Client.class,
+                    server == binaryServer ? binary : compact, args -> 0);
+            protocols.set(0);
+            for (int i = 0; i < 100; i++) {
+                assertEquals("hi " + i, iface.echo("hi " + i));
+            }
+            assertEquals(1, protocols.get());
+        }
+
+        // each call of a pipelined pool has its own transport, nothing is bound.
+        PipelinedThriftConnectionPoolImpl pipelinedPool = new PipelinedThriftConnectionPoolImpl();
+        List<ThriftServerInfo> serverList = Collections.singletonList(compactServer
+                .getServerInfo());
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList,
+                pipelinedPool, i -> true), pipelinedPool);
+        Client iface = client.iface(Client.class, compact, args -> 0);
+        protocols.set(0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("hi " + i, iface.echo("hi " + i));
+        }
+        assertEquals(10, protocols.get());
+
+        pipelinedPool.close();
+        compactServer.close();
+        binaryServer.close();
+        multiplexedServer.close();
+    }
+
+    private static String newMessage(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        List<EchoServer> servers = new ArrayList<>();
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            EchoServer server = EchoServer.start();
+            servers.add(server);
+            serverList.add(server.getServerInfo());
+        }
+        AtomicInteger opened = new AtomicInteger();
+        LockFreeThriftConnectionPoolImpl pool = new LockFreeThriftConnectionPoolImpl(info -> {
+            opened.incrementAndGet();
+            return new TFramedTransport(new TSocket(info.getHost(), info.getPort()));
+        }, 100, MINUTES.toMillis(1), MINUTES.toMillis(1));
+        CompletableFuture<Integer> warmedUp = new CompletableFuture<>();
+        ThriftClientConfig config = new ThriftClientConfig();
+        config.setMetrics(new ThriftClientMetrics() {
+
+            @Override
+            public void onWarmUp(int openedConnections, int total, long elapsedNanos) {
+                warmedUp.complete(openedConnections);
+            }
+        });
+        config.setWarmUpPolicy(new WarmUpPolicy(4, 1000, 100, SECONDS.toMillis(10)));
+
+        // blocks until all are opened.
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList, pool,
+                i -> true), pool, config);
+        assertEquals(12, opened.get());
+        assertEquals(12, (int) warmedUp.get(10, SECONDS));
+
+        // the calls take the idle connections.
+        for (int i = 0; i < 12; i++) {
+            assertEquals("hello", client.iface(Client.class).echo("hello"));
+        }
+        assertEquals(12, opened.get());
+
+        pool.close();
+        servers.forEach(EchoServer::close);
+    }
+
+    @Test
+    public void testLiveness() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            BlockingQueue<Socket> accepted = new LinkedBlockingQueue<>();
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        accepted.add(serverSocket.accept());
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+            config.setTestOnBorrow(true);
+            DefaultThriftConnectionPoolImpl pool = new DefaultThriftConnectionPoolImpl(config,
+                    new ThriftConnectionFactory(info -> new TFramedTransport(new TSocket(info
+                            .getHost(), info.getPort())), ThriftClientUtils::isAlive, 0));
+            ThriftServerInfo server = ThriftServerInfo.of("127.0.0.1",
+                    serverSocket.getLocalPort());
+
+            TTransport transport = pool.getConnection(server);
+            assertTrue(ThriftClientUtils.isAlive(transport));
+            pool.returnConnection(server, transport);
+
+            // the server closes it, the client side is still open but dead.
+            accepted.take().close();
+            Thread.sleep(100);
+            assertTrue(transport.isOpen());
+            assertFalse(ThriftClientUtils.isAlive(transport));
+
+            TTransport another = pool.getConnection(server);
+            assertNotSame(transport, another);
+            assertTrue(ThriftClientUtils.isAlive(another));
+            assertTrue(ThriftClientUtils.isQuiet(another));
+
+            // unexpected data is seen without blocking.
+            accepted.take().getOutputStream().write(1);
+            Thread.sleep(100);
+            assertFalse(ThriftClientUtils.isQuiet(another));
+            assertFalse(ThriftClientUtils.isAlive(another));
+            another.close();
+        }
+    }
+
+    /**
+     * runs only on JDK 21+, the pinning is reported by {@code -Djdk.tracePinnedThreads} which
+     * is set by the jdk21 profile.
+     */
+    @Test
+    public void testVirtualThreads() throws Exception {
+        ExecutorService executorService;
+        try {
+            executorService = (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            assumeNoException("virtual threads need JDK 21.", e);
+            return;
+        }
+
+        List<EchoServer> servers = new ArrayList<>();
+        List<ThriftServerInfo> serverList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            EchoServer server = EchoServer.start();
+            servers.add(server);
+            serverList.add(server.getServerInfo());
+        }
+        LockFreeThriftConnectionPoolImpl pool = new LockFreeThriftConnectionPoolImpl(
+                info -> new TFramedTransport(new TSocket(info.getHost(), info.getPort())), 100,
+                MINUTES.toMillis(1), MINUTES.toMillis(1));
+        ThriftClient client = new ThriftClientImpl(new ThriftServerInfoManager(serverList, pool,
+                i -> true), pool);
+        Client iface = client.iface(Client.class);
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream traced = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(traced, true));
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 100000; i++) {
+                String message = "hi " + i + "!";
+                results.add(executorService.submit(() -> iface.echo(message)));
+            }
+            for (int i = 0; i < 100000; i++) {
+                assertEquals("hi " + i + "!", results.get(i).get(1, MINUTES));
+            }
+        } finally {
+            System.setOut(out);
+        }
+        assertFalse(traced.toString(), traced.toString().contains("<== monitors"));
+
+        MoreExecutors.shutdownAndAwaitTermination(executorService, 1, MINUTES);
+        pool.close();
+        servers.forEach(EchoServer::close);
     }
 }
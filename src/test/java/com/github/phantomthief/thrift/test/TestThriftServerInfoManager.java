@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package com.github.phantomthief.thrift.test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.github.phantomthief.thrift.client.impl.ThriftServerInfoManager;
+import com.github.phantomthief.thrift.client.pool.ThriftServerInfo;
+import com.github.phantomthief.thrift.client.selector.impl.LeastInFlightThriftServerSelector;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * @author w.vela
+ */
+public class TestThriftServerInfoManager {
+
+    private static final int KEYS = 100000;
+
+    @Test
+    public void testConsistentHash() {
+        List<ThriftServerInfo> servers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            servers.add(ThriftServerInfo.of("127.0.0.1", 9000 + i));
+        }
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(servers, null, i -> true);
+
+        ThriftServerInfo[] before = new ThriftServerInfo[KEYS];
+        for (int key = 0; key < KEYS; key++) {
+            before[key] = manager.get(key);
+            assertEquals(before[key], manager.get(key));
+        }
+
+        ThriftServerInfo removed = servers.get(3);
+        manager.invalid(removed);
+        int moved = 0;
+        for (int key = 0; key < KEYS; key++) {
+            ThriftServerInfo after = manager.get(key);
+            assertNotEquals(removed, after);
+            if (!after.equals(before[key])) {
+                moved++;
+                // only the keys of the removed server are moved.
+                assertEquals(removed, before[key]);
+            }
+        }
+        // about 1/N of the keys.
+        assertTrue("moved:" + moved, moved > KEYS / 20 && moved < KEYS / 5);
+
+        manager.valid(removed);
+        for (int key = 0; key < KEYS; key++) {
+            assertEquals(before[key], manager.get(key));
+        }
+    }
+
+    @Test
+    public void testNoBackend() {
+        ThriftServerInfo server = ThriftServerInfo.of("127.0.0.1", 9000);
+        List<ThriftServerInfo> servers = new ArrayList<>();
+        servers.add(server);
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(servers, null, i -> true);
+        assertEquals(server, manager.get(1));
+        manager.remove(server);
+        assertNull(manager.get(1));
+    }
+
+    @Test
+    public void testSnapshot() {
+        List<ThriftServerInfo> servers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            servers.add(ThriftServerInfo.of("127.0.0.1", 9000 + i));
+        }
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(servers, null, i -> true);
+        long version = manager.getVersion();
+
+        ThriftServerInfo failed = servers.get(1);
+        manager.invalid(failed);
+        assertEquals(version + 1, manager.getVersion());
+        List<ThriftServerInfo> valid = manager.getAll();
+        assertEquals(2, valid.size());
+        assertFalse(valid.contains(failed));
+
+        // a failure storm doesn't rebuild it.
+        for (int i = 0; i < 1000; i++) {
+            manager.invalid(failed);
+        }
+        assertEquals(version + 1, manager.getVersion());
+        assertSame(valid, manager.getAll());
+
+        manager.valid(failed);
+        assertEquals(version + 2, manager.getVersion());
+        assertEquals(3, manager.getAll().size());
+    }
+
+    @Test
+    public void testAdd() {
+        List<ThriftServerInfo> servers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            servers.add(ThriftServerInfo.of("127.0.0.1", 9000 + i));
+        }
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(servers, null, i -> true);
+        ThriftServerInfo[] before = new ThriftServerInfo[KEYS];
+        for (int key = 0; key < KEYS; key++) {
+            before[key] = manager.get(key);
+        }
+
+        // a valid one isn't added twice, its points on the ring aren't doubled.
+        long version = manager.getVersion();
+        manager.add(servers.get(0));
+        assertEquals(version, manager.getVersion());
+        assertEquals(3, manager.getAll().size());
+        for (int key = 0; key < KEYS; key++) {
+            assertEquals(before[key], manager.get(key));
+        }
+
+        // an invalid one is valid again, and invalidated again later.
+        ThriftServerInfo failed = servers.get(1);
+        manager.invalid(failed);
+        manager.add(failed);
+        assertEquals(3, manager.getAll().size());
+        manager.invalid(failed);
+        assertEquals(2, manager.getAll().size());
+        assertFalse(manager.getAll().contains(failed));
+    }
+
+    @Test
+    public void testLeastInFlight() {
+        List<ThriftServerInfo> servers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            servers.add(ThriftServerInfo.of("127.0.0.1", 9000 + i));
+        }
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(servers, null, i -> true);
+        LeastInFlightThriftServerSelector selector = new LeastInFlightThriftServerSelector();
+
+        // the first server is stuck, every pair it's in goes to the other one.
+        ThriftServerInfo stuck = servers.get(0);
+        for (int i = 0; i < 10; i++) {
+            selector.onCallStart(stuck);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertNotEquals(stuck, selector.select(manager, i));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            selector.onCallEnd(stuck);
+        }
+        assertEquals(0, selector.getInFlight(stuck));
+        boolean selected = false;
+        for (int i = 0; i < 1000 && !selected; i++) {
+            selected = stuck.equals(selector.select(manager, i));
+        }
+        assertTrue(selected);
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        List<ThriftServerInfo> servers = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            servers.add(ThriftServerInfo.of("127.0.0.1", 9000 + i));
+        }
+        ThriftServerInfo hung = servers.get(0);
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(servers, null, server -> {
+            try {
+                Thread.sleep(server.equals(hung) ? Long.MAX_VALUE : 500);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return true;
+        });
+        manager.setProbeBackoffMillis(100, 1000);
+        manager.setProbeTimeoutMillis(1000);
+        servers.forEach(manager::invalid);
+        manager.start();
+
+        // 50 probes of 500ms each, a serial prober takes 25s.
+        long deadline = System.nanoTime() + SECONDS.toNanos(10);
+        while (manager.getAll().size() < 49 && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(49, manager.getAll().size());
+        assertFalse(manager.getAll().contains(hung));
+        assertEquals(49, manager.getRecoveryTime().getCount());
+        assertTrue(manager.getRecoveryTime().getMax() < SECONDS.toNanos(10));
+        assertTrue(manager.getProbeLatency().getCount() >= 49);
+        manager.interrupt();
+    }
+
+    @Test
+    public void testRemovedWhileProbed() throws Exception {
+        List<ThriftServerInfo> servers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            servers.add(ThriftServerInfo.of("127.0.0.1", 9000 + i));
+        }
+        ThriftServerInfo removed = servers.get(0);
+        CountDownLatch probing = new CountDownLatch(1);
+        CountDownLatch recovered = new CountDownLatch(1);
+        ThriftServerInfoManager manager = new ThriftServerInfoManager(servers, null, server -> {
+            probing.countDown();
+            Uninterruptibles.awaitUninterruptibly(recovered);
+            return true;
+        });
+        manager.setProbeBackoffMillis(10, 100);
+        manager.invalid(removed);
+        manager.start();
+
+        // the probe of the server succeeds after it's removed.
+        assertTrue(probing.await(10, SECONDS));
+        manager.remove(removed);
+        recovered.countDown();
+        Thread.sleep(500);
+        assertEquals(1, manager.getAll().size());
+        assertFalse(manager.getAll().contains(removed));
+        assertEquals(0, manager.getRecoveryTime().getCount());
+        manager.interrupt();
+    }
+}